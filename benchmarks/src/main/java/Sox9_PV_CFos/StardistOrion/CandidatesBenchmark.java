@@ -0,0 +1,155 @@
+package Sox9_PV_CFos.StardistOrion;
+
+import Sox9_PV_CFos_Benchmarks.SyntheticData;
+import de.lighti.clipper.Path;
+import de.lighti.clipper.Point.LongPoint;
+import ij.IJ;
+import ij.ImagePlus;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * StarDist post-processing of one frame: candidates, non-maximum suppression and label image
+ * Frames have the size of the downscaled images given to StarDist, with cells of 6 to 12 pixels radius
+ * In this package to reach package-private Candidates.poly_intersection_area and protected exportLabelImage
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CandidatesBenchmark {
+
+    @Param({"256", "512"})
+    public int size;
+
+    @Param({"100", "300"})
+    public int cellsPer512;
+
+    @Param({"0.5"})
+    public double probThresh;
+
+    private static final int N_RAYS = 32;
+    private static final double OVERLAP_THRESH = 0.2;
+
+    private ArrayImg<FloatType, FloatArray> prob;
+    private ArrayImg<FloatType, FloatArray> dist;
+    private Candidates candidates;
+    private List<Float> scores;
+    private Path[][] pairs;
+
+    /** Label image writer without ImageJ context */
+    private static class LabelExporter extends StarDist2DBase {
+        private final int width, height;
+
+        LabelExporter(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        protected void exportPolygons(Candidates polygons) {}
+
+        @Override
+        protected ImagePlus createLabelImage() {
+            return IJ.createImage("Label Image", "16-bit black", width, height, 1, 1, 1);
+        }
+    }
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int nbCells = cellsPer512 * size * size / (512 * 512);
+        SyntheticData.Cells cells = SyntheticData.randomCells(size, size, nbCells, 6, 12, 42);
+        prob = ArrayImgs.floats(SyntheticData.prob(cells, size, size), size, size);
+        dist = ArrayImgs.floats(SyntheticData.dist(cells, size, size, N_RAYS), size, size, N_RAYS);
+        candidates = new Candidates(prob, dist, probThresh, 2, null);
+        candidates.nms(OVERLAP_THRESH);
+
+        Random random = new Random(42);
+        scores = new ArrayList<>();
+        for (int i = 0; i < candidates.getSorted().size(); i++)
+            scores.add(random.nextFloat());
+
+        // overlapping polygons, as the candidates of a same cell compared during NMS
+        pairs = new Path[1000][];
+        for (int i = 0; i < pairs.length; i++) {
+            double r = 6 + 6 * random.nextDouble();
+            pairs[i] = new Path[]{polygon(0, 0, r), polygon(r * random.nextDouble(), r * random.nextDouble(), r)};
+        }
+    }
+
+
+    private static Path polygon(double cx, double cy, double r) {
+        Path poly = new Path();
+        double[] phis = Utils.rayAngles(N_RAYS);
+        for (double phi: phis)
+            poly.add(new LongPoint(Math.round(100 * (cx + r * Math.cos(phi))), Math.round(100 * (cy + r * Math.sin(phi)))));
+        return poly;
+    }
+
+
+    @Benchmark
+    public Candidates candidates() {
+        return new Candidates(prob, dist, probThresh, 2, null);
+    }
+
+
+    @Benchmark
+    public int nms() {
+        candidates.nms(OVERLAP_THRESH);
+        return candidates.getWinner().size();
+    }
+
+
+    @Benchmark
+    public int nms_v0() {
+        candidates.nms_v0(OVERLAP_THRESH);
+        return candidates.getWinner().size();
+    }
+
+
+    /** 1000 intersections */
+    @Benchmark
+    public double polyIntersectionArea() {
+        double area = 0;
+        for (Path[] pair: pairs)
+            area += Candidates.poly_intersection_area(pair[0], pair[1]);
+        return area;
+    }
+
+
+    @Benchmark
+    public List<Integer> argsortDescending() {
+        return Utils.argsortDescending(scores);
+    }
+
+
+    /** winners of setup, nms benchmarks give the same ones */
+    @Benchmark
+    public ImagePlus exportLabelImage() {
+        LabelExporter exporter = new LabelExporter(size, size);
+        exporter.exportLabelImage(candidates, 0);
+        return exporter.labelImage;
+    }
+}
@@ -0,0 +1,57 @@
+package Sox9_PV_CFos_Benchmarks;
+
+import Sox9_PV_CFos.StardistOrion.SliceAssociation;
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * 3D association of StarDist 2D labels, as done by StarDist2D.associateLabels
+ * @author ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class AssociationBenchmark {
+
+    @Param({"256", "512"})
+    public int size;
+
+    @Param({"30"})
+    public int depth;
+
+    @Param({"300"})
+    public int cellsPer512;
+
+    private ImagePlus labels;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        int nbCells = cellsPer512 * size * size / (512 * 512) * depth / 10;
+        labels = SyntheticData.sliceLabels(size, size, depth, nbCells, 6, 12, 42);
+    }
+
+
+    @Benchmark
+    public ImagePlus associateLabels() {
+        ImagePlus associated = SliceAssociation.associate(labels, SliceAssociation.MAX_BB, SliceAssociation.MIN_COLOC);
+        associated.close();
+        return(associated);
+    }
+}
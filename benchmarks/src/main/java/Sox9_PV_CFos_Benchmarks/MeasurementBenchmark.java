@@ -0,0 +1,82 @@
+package Sox9_PV_CFos_Benchmarks;
+
+import Sox9_PV_CFos_Tools.Tools;
+import ij.ImagePlus;
+import java.util.concurrent.TimeUnit;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.image3d.ImageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Background and per-cell measurements of one full-size channel, as in BatchProcessor
+ * @author ORION-CIRB
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class MeasurementBenchmark {
+
+    @Param({"1024"})
+    public int size;
+
+    @Param({"30"})
+    public int depth;
+
+    @Param({"500"})
+    public int nbCells;
+
+    private Tools tools;
+    private ImagePlus img;
+    private Objects3DIntPopulation pop;
+
+
+    @Setup(Level.Trial)
+    public void setup() {
+        tools = new Tools();
+        img = SyntheticData.channel(size, size, depth, nbCells, 12, 24, 300, 2000, 42);
+        ImagePlus labels = SyntheticData.labels3D(size, size, depth, nbCells, 12, 24, 42);
+        labels.setCalibration(img.getCalibration());
+        pop = new Objects3DIntPopulation(ImageHandler.wrap(labels));
+        pop.setVoxelSizeXY(img.getCalibration().pixelWidth);
+        pop.setVoxelSizeZ(img.getCalibration().pixelDepth);
+    }
+
+
+    @Benchmark
+    public double findBackground() {
+        return(tools.findBackground(img));
+    }
+
+
+    /** volume and integrated intensity of each cell */
+    @Benchmark
+    public double measureCells() {
+        double[] sums = tools.sumIntensities(pop, img);
+        double total = 0;
+        int index = 0;
+        for (Object3DInt cell: pop.getObjects3DInt()) {
+            double volUnit = new MeasureVolume(cell).getVolumeUnit();
+            double volPix = new MeasureVolume(cell).getVolumePix();
+            total += volUnit + sums[index] / volPix;
+            index++;
+        }
+        return(total);
+    }
+}
@@ -0,0 +1,315 @@
+package Sox9_PV_CFos_Benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Synthetic inputs of the detection and measurement steps, with the sizes and densities of real images
+ * Cells are discs in 2D and spheres in 3D, so StarDist distances can be computed exactly
+ * @author ORION-CIRB
+ */
+public class SyntheticData {
+
+    public static final double PIXEL_WIDTH = 0.3; // µm
+    public static final double PIXEL_DEPTH = 1;
+    private static final double ANISOTROPY = PIXEL_WIDTH / PIXEL_DEPTH;
+
+    /**
+     * Cells of a 2D frame: centers and radii in pixels
+     */
+    public static class Cells {
+        public final double[] x, y, r;
+
+        Cells(int n) {
+            x = new double[n];
+            y = new double[n];
+            r = new double[n];
+        }
+    }
+
+
+    /**
+     * Random cells that do not overlap, radii between rMin and rMax
+     * Placement stops early if the frame is full
+     */
+    public static Cells randomCells(int width, int height, int nbCells, double rMin, double rMax, long seed) {
+        Random random = new Random(seed);
+        Cells all = new Cells(nbCells);
+        int n = 0;
+        for (int attempt = 0; attempt < 50 * nbCells && n < nbCells; attempt++) {
+            double r = rMin + random.nextDouble() * (rMax - rMin);
+            double x = r + random.nextDouble() * (width - 2*r);
+            double y = r + random.nextDouble() * (height - 2*r);
+            boolean free = true;
+            for (int i = 0; i < n && free; i++)
+                free = Math.hypot(x - all.x[i], y - all.y[i]) > r + all.r[i] + 1;
+            if (free) {
+                all.x[n] = x;
+                all.y[n] = y;
+                all.r[n] = r;
+                n++;
+            }
+        }
+        Cells cells = new Cells(n);
+        System.arraycopy(all.x, 0, cells.x, 0, n);
+        System.arraycopy(all.y, 0, cells.y, 0, n);
+        System.arraycopy(all.r, 0, cells.r, 0, n);
+        return(cells);
+    }
+
+
+    /**
+     * Index of the cell containing pixel (x, y) for each pixel, -1 in background
+     */
+    public static int[] cellIndex(Cells cells, int width, int height) {
+        int[] index = new int[width * height];
+        Arrays.fill(index, -1);
+        for (int c = 0; c < cells.x.length; c++) {
+            int x0 = (int) Math.max(0, cells.x[c] - cells.r[c]), x1 = (int) Math.min(width-1, cells.x[c] + cells.r[c] + 1);
+            int y0 = (int) Math.max(0, cells.y[c] - cells.r[c]), y1 = (int) Math.min(height-1, cells.y[c] + cells.r[c] + 1);
+            for (int y = y0; y <= y1; y++)
+                for (int x = x0; x <= x1; x++)
+                    if (Math.hypot(x - cells.x[c], y - cells.y[c]) < cells.r[c])
+                        index[x + width*y] = c;
+        }
+        return(index);
+    }
+
+
+    /**
+     * StarDist probability map: normalized distance to the cell border, 0 in background
+     */
+    public static float[] prob(Cells cells, int width, int height) {
+        int[] index = cellIndex(cells, width, height);
+        float[] prob = new float[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int c = index[x + width*y];
+                if (c >= 0)
+                    prob[x + width*y] = (float) (1 - Math.hypot(x - cells.x[c], y - cells.y[c]) / cells.r[c]);
+            }
+        }
+        return(prob);
+    }
+
+
+    /**
+     * StarDist distances to the cell border along nRays rays, ordered as x + width*(y + height*ray), 0 in background
+     */
+    public static float[] dist(Cells cells, int width, int height, int nRays) {
+        int[] index = cellIndex(cells, width, height);
+        float[] dist = new float[width * height * nRays];
+        for (int k = 0; k < nRays; k++) {
+            double phi = 2 * Math.PI * k / nRays;
+            double ux = Math.cos(phi), uy = Math.sin(phi);
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int c = index[x + width*y];
+                    if (c < 0)
+                        continue;
+                    // distance t from (x, y) to the circle along u: |p - center + t u| = r
+                    double px = x - cells.x[c], py = y - cells.y[c];
+                    double b = px*ux + py*uy;
+                    double t = -b + Math.sqrt(Math.max(0, b*b - (px*px + py*py - cells.r[c]*cells.r[c])));
+                    dist[x + width*(y + height*k)] = (float) t;
+                }
+            }
+        }
+        return(dist);
+    }
+
+
+    /**
+     * 16-bit label stack of StarDist output before association: spheres cut in slices, labeled independently in each slice
+     */
+    public static ImagePlus sliceLabels(int width, int height, int depth, int nbCells, double rMin, double rMax, long seed) {
+        Random random = new Random(seed);
+        double[][] spheres = randomSpheres(width, height, depth, nbCells, rMin, rMax, random);
+        ImageStack stack = new ImageStack(width, height);
+        int label = 0;
+        for (int z = 0; z < depth; z++) {
+            ShortProcessor ip = new ShortProcessor(width, height);
+            for (double[] s: spheres) {
+                double r = discRadius(s, z);
+                if (r <= 0)
+                    continue;
+                label = label % 65535 + 1;
+                fillDisc(ip, s[0], s[1], r, label);
+            }
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("labels", stack));
+    }
+
+
+    /**
+     * 16-bit label stack of associated cells, one label per sphere
+     */
+    public static ImagePlus labels3D(int width, int height, int depth, int nbCells, double rMin, double rMax, long seed) {
+        Random random = new Random(seed);
+        double[][] spheres = randomSpheres(width, height, depth, nbCells, rMin, rMax, random);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ShortProcessor ip = new ShortProcessor(width, height);
+            for (int i = 0; i < spheres.length; i++) {
+                double r = discRadius(spheres[i], z);
+                if (r > 0)
+                    fillDisc(ip, spheres[i][0], spheres[i][1], r, i+1);
+            }
+            stack.addSlice(ip);
+        }
+        return(new ImagePlus("labels", stack));
+    }
+
+
+    /**
+     * 16-bit fluorescence stack: background noise plus bright spheres
+     */
+    public static ImagePlus channel(int width, int height, int depth, int nbCells, double rMin, double rMax, int background, int intensity, long seed) {
+        Random random = new Random(seed);
+        double[][] spheres = randomSpheres(width, height, depth, nbCells, rMin, rMax, random);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; i++)
+                pixels[i] = (short) Math.max(0, background + random.nextGaussian() * background * 0.1);
+            ShortProcessor ip = new ShortProcessor(width, height, pixels, null);
+            for (double[] s: spheres) {
+                double r = discRadius(s, z);
+                if (r > 0)
+                    fillDisc(ip, s[0], s[1], r, background + intensity);
+            }
+            stack.addSlice(ip);
+        }
+        ImagePlus img = new ImagePlus("channel", stack);
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = PIXEL_WIDTH;
+        cal.pixelDepth = PIXEL_DEPTH;
+        cal.setUnit("microns");
+        img.setCalibration(cal);
+        return(img);
+    }
+
+
+    /**
+     * 16-bit Sox9, CFos and PV hyperstack, calibrated as the real images, with nbCells Sox9 and nbCells PV cells that do not overlap
+     * Sox9 and PV cells have the radii accepted by the default volume filters, cfosRatio of them are CFos positive
+     */
+    public static ImagePlus hyperstack(int width, int height, int depth, int nbCells, double cfosRatio, long seed) {
+        Random random = new Random(seed);
+        double[][] sox9 = separateSpheres(width, height, depth, nbCells, 12, 22, new double[0][], random);
+        double[][] pv = separateSpheres(width, height, depth, nbCells, 18, 28, sox9, random);
+        ImageStack stack = new ImageStack(width, height);
+        for (int z = 0; z < depth; z++) {
+            ShortProcessor[] ips = new ShortProcessor[3];
+            for (int c = 0; c < 3; c++) {
+                short[] pixels = new short[width * height];
+                for (int i = 0; i < pixels.length; i++)
+                    pixels[i] = (short) Math.max(0, 300 + random.nextGaussian() * 30);
+                ips[c] = new ShortProcessor(width, height, pixels, null);
+            }
+            drawSpheres(ips[0], sox9, z, 2000, ips[1], cfosRatio);
+            drawSpheres(ips[2], pv, z, 2000, ips[1], cfosRatio);
+            for (ShortProcessor ip: ips)
+                stack.addSlice(ip);
+        }
+        ImagePlus img = new ImagePlus("synthetic", stack);
+        img.setDimensions(3, depth, 1);
+        img.setOpenAsHyperStack(true);
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = PIXEL_WIDTH;
+        cal.pixelDepth = PIXEL_DEPTH;
+        cal.setUnit("micron");
+        img.setCalibration(cal);
+        return(img);
+    }
+
+
+    /**
+     * Draw sections of spheres in slice z, the first cfosRatio of them also in CFos slice
+     */
+    private static void drawSpheres(ShortProcessor ip, double[][] spheres, int z, int intensity, ShortProcessor ipCfos, double cfosRatio) {
+        for (int i = 0; i < spheres.length; i++) {
+            double r = discRadius(spheres[i], z);
+            if (r <= 0)
+                continue;
+            fillDisc(ip, spheres[i][0], spheres[i][1], r, 300 + intensity);
+            if (i < cfosRatio * spheres.length)
+                fillDisc(ipCfos, spheres[i][0], spheres[i][1], r, 300 + intensity / 2);
+        }
+    }
+
+
+    /**
+     * Random spheres that neither overlap each other nor the other spheres, entirely inside the stack
+     * Placement stops early if the stack is full
+     */
+    private static double[][] separateSpheres(int width, int height, int depth, int nbCells, double rMin, double rMax, double[][] others, Random random) {
+        List<double[]> spheres = new ArrayList<>();
+        for (int attempt = 0; attempt < 50 * nbCells && spheres.size() < nbCells; attempt++) {
+            double r = rMin + random.nextDouble() * (rMax - rMin);
+            double rz = r * ANISOTROPY;
+            if (2*rz >= depth || 2*r >= Math.min(width, height))
+                continue;
+            double[] s = {r + random.nextDouble() * (width - 2*r), r + random.nextDouble() * (height - 2*r),
+                          rz + random.nextDouble() * (depth - 1 - 2*rz), r};
+            boolean free = true;
+            for (int i = 0; i < spheres.size() && free; i++)
+                free = !overlap(s, spheres.get(i));
+            for (int i = 0; i < others.length && free; i++)
+                free = !overlap(s, others[i]);
+            if (free)
+                spheres.add(s);
+        }
+        return(spheres.toArray(new double[0][]));
+    }
+
+
+    /**
+     * Distance of centers in pixels, z scaled to XY pixels, below sum of radii plus one pixel
+     */
+    private static boolean overlap(double[] s1, double[] s2) {
+        double dz = (s1[2] - s2[2]) / ANISOTROPY;
+        return(Math.sqrt(Math.pow(s1[0] - s2[0], 2) + Math.pow(s1[1] - s2[1], 2) + dz*dz) <= s1[3] + s2[3] + 1);
+    }
+
+
+    /**
+     * Spheres x, y, z, radius in pixels, in stacks with pixelDepth = pixelWidth / ANISOTROPY
+     */
+    private static double[][] randomSpheres(int width, int height, int depth, int nbCells, double rMin, double rMax, Random random) {
+        double[][] spheres = new double[nbCells][];
+        for (int i = 0; i < nbCells; i++) {
+            double r = rMin + random.nextDouble() * (rMax - rMin);
+            spheres[i] = new double[]{r + random.nextDouble() * (width - 2*r), r + random.nextDouble() * (height - 2*r),
+                                      random.nextDouble() * depth, r};
+        }
+        return(spheres);
+    }
+
+
+    /**
+     * Radius of the section of a sphere in slice z, 0 if slice does not cut the sphere
+     */
+    private static double discRadius(double[] sphere, int z) {
+        double dz = (z - sphere[2]) / (sphere[3] * ANISOTROPY);
+        return((Math.abs(dz) < 1) ? sphere[3] * Math.sqrt(1 - dz*dz) : 0);
+    }
+
+
+    private static void fillDisc(ShortProcessor ip, double cx, double cy, double r, int value) {
+        int x0 = (int) Math.max(0, cx - r), x1 = (int) Math.min(ip.getWidth()-1, cx + r + 1);
+        int y0 = (int) Math.max(0, cy - r), y1 = (int) Math.min(ip.getHeight()-1, cy + r + 1);
+        for (int y = y0; y <= y1; y++)
+            for (int x = x0; x <= x1; x++)
+                if ((x-cx)*(x-cx) + (y-cy)*(y-cy) < r*r)
+                    ip.set(x, y, value);
+    }
+}
@@ -0,0 +1,83 @@
+package Sox9_PV_CFos_Benchmarks;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+
+/**
+ * StarDist predictor without model: cells are the pixels above half of the frame range
+ * dist is the distance to the border of the thresholded region along each ray,
+ * prob the ratio of the shortest to the longest ray, 1 at the center of a disc and 0 on its border
+ * Matches the network output on SyntheticData images, bright discs on a dark background
+ * @author ORION-CIRB
+ */
+public class ThresholdPredictor implements StarDist2D.Predictor {
+
+    private final int nRays;
+    private final int maxDist;
+
+    /**
+     * @param nRays rays of the StarDist model
+     * @param maxDist longest ray in pixels, longer rays are cut
+     */
+    public ThresholdPredictor(int nRays, int maxDist) {
+        this.nRays = nRays;
+        this.maxDist = maxDist;
+    }
+
+
+    @Override
+    public RandomAccessibleInterval<FloatType> predict(RandomAccessibleInterval<? extends RealType<?>> frame) {
+        int width = (int) frame.dimension(0);
+        int height = (int) frame.dimension(1);
+        float[] values = new float[width * height];
+        float min = Float.MAX_VALUE, max = -Float.MAX_VALUE;
+        int i = 0;
+        for (RealType<?> value: Views.flatIterable(frame)) {
+            values[i] = value.getRealFloat();
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            i++;
+        }
+        float thresh = min + 0.5f * (max - min);
+        boolean[] mask = new boolean[width * height];
+        for (i = 0; i < mask.length; i++)
+            mask[i] = max > min && values[i] > thresh;
+
+        // channel 0 prob, channels 1 to nRays dist, as the network output
+        float[] output = new float[width * height * (1 + nRays)];
+        double[] ux = new double[nRays], uy = new double[nRays];
+        for (int k = 0; k < nRays; k++) {
+            ux[k] = Math.cos(2 * Math.PI * k / nRays);
+            uy[k] = Math.sin(2 * Math.PI * k / nRays);
+        }
+        int planeSize = width * height;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!mask[x + width*y])
+                    continue;
+                float minRay = Float.MAX_VALUE, maxRay = 0;
+                for (int k = 0; k < nRays; k++) {
+                    int t = 1;
+                    while (t < maxDist && inMask(mask, width, height, x + t*ux[k], y + t*uy[k]))
+                        t++;
+                    output[x + width*y + planeSize*(1+k)] = t;
+                    minRay = Math.min(minRay, t);
+                    maxRay = Math.max(maxRay, t);
+                }
+                output[x + width*y] = minRay / maxRay;
+            }
+        }
+        return(ArrayImgs.floats(output, width, height, 1 + nRays));
+    }
+
+
+    private static boolean inMask(boolean[] mask, int width, int height, double x, double y) {
+        int xi = (int) Math.round(x), yi = (int) Math.round(y);
+        return(xi >= 0 && yi >= 0 && xi < width && yi < height && mask[xi + width*yi]);
+    }
+}
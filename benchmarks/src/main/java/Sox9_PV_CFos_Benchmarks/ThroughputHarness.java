@@ -0,0 +1,182 @@
+package Sox9_PV_CFos_Benchmarks;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import Sox9_PV_CFos_Tools.BatchProcessor;
+import Sox9_PV_CFos_Tools.HeadlessRunner;
+import Sox9_PV_CFos_Tools.StageListener;
+import Sox9_PV_CFos_Tools.Tools;
+import ij.ImagePlus;
+import ij.io.FileSaver;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+
+/**
+ * End-to-end throughput of the headless pipeline on synthetic images, without StarDist model
+ * Images are generated by SyntheticData.hyperstack, StarDist network is replaced by ThresholdPredictor,
+ * everything else runs as in production, from image reading to CSV and TIFF outputs
+ * Usage: java -cp target/benchmarks.jar Sox9_PV_CFos_Benchmarks.ThroughputHarness --images=8 --size=1024 --depth=30 --cells=100 --workers=2 [--keep]
+ * @author ORION-CIRB
+ */
+public class ThroughputHarness {
+
+    private static final int N_RAYS = 32;
+    private static final long HEAP_SAMPLING_MS = 20;
+    private static final String[] STAGES = {BatchProcessor.STAGE_OPEN, BatchProcessor.STAGE_LOAD, BatchProcessor.STAGE_BACKGROUND,
+                                            BatchProcessor.STAGE_DETECTION, StarDist2D.STEP_NORMALIZATION, StarDist2D.STEP_CNN,
+                                            StarDist2D.STEP_CANDIDATES, StarDist2D.STEP_NMS, StarDist2D.STEP_AREA_FILTER, StarDist2D.STEP_RASTERIZATION,
+                                            StarDist2D.STEP_ASSOCIATION, Tools.STAGE_POPULATION, Tools.STAGE_FILTERING,
+                                            BatchProcessor.STAGE_MEASUREMENT, BatchProcessor.STAGE_DRAWING, BatchProcessor.STAGE_ZARR, BatchProcessor.STAGE_QC, BatchProcessor.STAGE_SAVING,
+                                            BatchProcessor.STAGE_WRITING};
+
+    /**
+     * Time, calls, cells and peak heap of a stage, over all work items
+     */
+    private static class StageStats {
+        long calls, nanos, cells, peakHeap;
+    }
+
+    /**
+     * Records stages of all workers, and samples heap while they run
+     * Heap is shared by workers: peak of a stage includes memory of the stages running in parallel
+     */
+    private static class Recorder implements StageListener {
+        private final Map<String, StageStats> stats = new ConcurrentHashMap<>();
+        private final Map<String, Integer> active = new ConcurrentHashMap<>();
+        private final ThreadLocal<Map<String, Long>> starts = ThreadLocal.withInitial(HashMap::new);
+        private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        private volatile long peakHeap = 0;
+        private volatile boolean sampling = true;
+        private final Thread sampler = new Thread(this::sample, "heap-sampler");
+
+        Recorder() {
+            sampler.setDaemon(true);
+            sampler.start();
+        }
+
+        @Override
+        public void stageStarted(String item, String channel, String stage) {
+            active.merge(stage, 1, Integer::sum);
+            starts.get().put(stage, System.nanoTime());
+        }
+
+        @Override
+        public void stageEnded(String item, String channel, String stage, int count) {
+            long nanos = System.nanoTime() - starts.get().remove(stage);
+            active.merge(stage, -1, Integer::sum);
+            StageStats stageStats = stats.computeIfAbsent(stage, s -> new StageStats());
+            synchronized (stageStats) {
+                stageStats.calls++;
+                stageStats.nanos += nanos;
+                stageStats.cells += count;
+            }
+        }
+
+        private void sample() {
+            while (sampling) {
+                long used = memory.getHeapMemoryUsage().getUsed();
+                peakHeap = Math.max(peakHeap, used);
+                for (Map.Entry<String, Integer> stage: active.entrySet()) {
+                    if (stage.getValue() > 0) {
+                        StageStats stageStats = stats.computeIfAbsent(stage.getKey(), s -> new StageStats());
+                        synchronized (stageStats) {
+                            stageStats.peakHeap = Math.max(stageStats.peakHeap, used);
+                        }
+                    }
+                }
+                try {
+                    Thread.sleep(HEAP_SAMPLING_MS);
+                } catch (InterruptedException ex) {
+                    return;
+                }
+            }
+        }
+
+        void stop() throws InterruptedException {
+            sampling = false;
+            sampler.join();
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        Properties params = new Properties();
+        for (String arg: args) {
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unknown argument " + arg);
+            String[] keyValue = arg.substring(2).split("=", 2);
+            params.setProperty(keyValue[0], (keyValue.length > 1) ? keyValue[1] : "true");
+        }
+        int nbImages = Integer.parseInt(params.getProperty("images", "8"));
+        int size = Integer.parseInt(params.getProperty("size", "1024"));
+        int depth = Integer.parseInt(params.getProperty("depth", "30"));
+        int nbCells = Integer.parseInt(params.getProperty("cells", "100"));
+        int workers = Integer.parseInt(params.getProperty("workers", "2"));
+        boolean keep = Boolean.parseBoolean(params.getProperty("keep", "false"));
+
+        Path dir = Files.createTempDirectory("sox9_pv_cfos_throughput");
+        System.out.println("Generating " + nbImages + " images " + size + "x" + size + "x" + depth + " in " + dir);
+        for (int i = 0; i < nbImages; i++) {
+            ImagePlus img = SyntheticData.hyperstack(size, size, depth, nbCells, 0.5, i);
+            new FileSaver(img).saveAsTiff(dir.resolve(String.format("synthetic_%03d.tif", i)).toString());
+            img.close();
+        }
+
+        Tools tools = new Tools();
+        tools.stardistPredictor = new ThresholdPredictor(N_RAYS, size);
+        Recorder recorder = new Recorder();
+        tools.stageListener = recorder;
+        String[] runArgs = {"--input=" + dir, "--output=" + dir.resolve("Results"), "--workers=" + workers,
+                            "--xyCal=" + SyntheticData.PIXEL_WIDTH, "--zCal=" + SyntheticData.PIXEL_DEPTH};
+        long start = System.nanoTime();
+        int exitCode = HeadlessRunner.run(tools, runArgs);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        recorder.stop();
+
+        report(recorder, nbImages, seconds);
+        if (keep)
+            System.out.println("Images and results kept in " + dir);
+        else
+            deleteDir(dir);
+        System.exit(exitCode);
+    }
+
+
+    /**
+     * Print throughput of the run and of each stage
+     * Cells/s of a stage are cells over time spent in the stage, summed over workers
+     */
+    private static void report(Recorder recorder, int nbImages, double seconds) {
+        StageStats detection = recorder.stats.get(BatchProcessor.STAGE_DETECTION);
+        long cells = (detection != null) ? detection.cells : 0;
+        System.out.println(String.format("%d images in %.1f s: %.0f images/hour, %d cells, %.1f cells/s, peak heap %d MB",
+                nbImages, seconds, nbImages * 3600 / seconds, cells, cells / seconds, recorder.peakHeap >> 20));
+        System.out.println(String.format("%-14s %8s %10s %10s %10s %14s", "stage", "calls", "total s", "mean ms", "cells/s", "peak heap MB"));
+        for (String name: STAGES) {
+            StageStats stage = recorder.stats.get(name);
+            if (stage == null)
+                continue;
+            double stageSeconds = stage.nanos / 1e9;
+            System.out.println(String.format("%-14s %8d %10.2f %10.1f %10s %14d", name, stage.calls, stageSeconds,
+                    (stage.calls > 0) ? stageSeconds * 1000 / stage.calls : 0,
+                    (stage.cells > 0) ? String.format("%.1f", stage.cells / stageSeconds) : "-", stage.peakHeap >> 20));
+        }
+    }
+
+
+    private static void deleteDir(Path dir) throws IOException {
+        try (Stream<Path> paths = Files.walk(dir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+}
@@ -34,7 +34,7 @@ public class Candidates {
     private final LogService log;
 
     // scale all coordinates by this value and divide later to get subpixel resolution
-    private static final long S = 100;
+    static final long S = 100;
     
     public Candidates(RandomAccessibleInterval<FloatType> prob, RandomAccessibleInterval<FloatType> dist) {
         this(prob, dist, 0.4);
@@ -150,7 +150,7 @@ public class Candidates {
             log.info(String.format("Candidates NMS took %d ms", System.currentTimeMillis() - start));
     }
 
-    private double poly_intersection_area(final Path a, final Path b) {
+    static double poly_intersection_area(final Path a, final Path b) {
         final Clipper c = new DefaultClipper();
         final Paths res = new Paths();
         c.clear();
@@ -163,6 +163,16 @@ public class Candidates {
         return area_inter;
     }
     
+    /**
+     * Remove winners whose area in pixels is out of [minArea, maxArea], run after nms
+     * @return number of winners removed
+     */
+    public int filterWinners(final double minArea, final double maxArea) {
+        final int before = winner.size();
+        winner.removeIf(i -> Math.abs(areas.get(i)) < minArea*S*S || Math.abs(areas.get(i)) > maxArea*S*S);
+        return before - winner.size();
+    }
+    
     public List<Integer> getWinner() {
         return winner;
     }
@@ -175,21 +185,21 @@ public class Candidates {
 //        return origins.get(i);
 //    }
     
-//    public Path getPolygon(int i) {
-//        return polygons.get(i);
-//    }
+    public Path getPolygon(int i) {
+        return polygons.get(i);
+    }
 
-//    public Box2D getBbox(int i) {
-//        return bboxes.get(i);
-//    }
+    public Box2D getBbox(int i) {
+        return bboxes.get(i);
+    }
 
 //    public float getScore(int i) {
 //        return scores.get(i);
 //    }
 
-//    public double getArea(int i) {
-//        return areas.get(i);
-//    }
+    public double getArea(int i) {
+        return areas.get(i);
+    }
     
     public PolygonRoi getPolygonRoi(int i) {
         return Utils.toPolygonRoi(polygons.get(i), S);
@@ -0,0 +1,166 @@
+package Sox9_PV_CFos.StardistOrion;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.FloatProcessor;
+import java.util.stream.IntStream;
+
+/**
+ * Percentile normalization of 8/16-bit stacks computed from intensity histograms
+ * Replaces the sort-based normalization done by CSBDeep before inference
+ */
+public class PercentileNormalizer {
+
+    private final double percentileBottom;
+    private final double percentileTop;
+    private final boolean joint;
+    private double[][] fixedBounds = null;
+
+    /**
+     * @param joint normalize the whole stack with the same percentiles (true) or each plane separately (false)
+     */
+    public PercentileNormalizer(double percentileBottom, double percentileTop, boolean joint) {
+        this.percentileBottom = percentileBottom;
+        this.percentileTop = percentileTop;
+        this.joint = joint;
+    }
+
+
+    /**
+     * Normalize with given bounds {low, high} of each plane instead of percentiles of the image,
+     * e.g. percentiles of a whole image for one of its tiles
+     */
+    public void setBounds(double[][] bounds) {
+        fixedBounds = bounds;
+    }
+
+
+    /**
+     * Bottom and top percentiles {low, high} of a histogram of count values
+     */
+    public double[] bounds(long[] histo, long count) {
+        return new double[]{percentile(histo, count, percentileBottom), percentile(histo, count, percentileTop)};
+    }
+
+
+    /**
+     * Check that image bit depth can be normalized with histograms
+     */
+    public static boolean isSupported(ImagePlus imp) {
+        return imp.getBitDepth() == 8 || imp.getBitDepth() == 16;
+    }
+
+
+    /**
+     * Return a 32-bit stack normalized as (v - pLow) / (pHigh - pLow)
+     */
+    public ImagePlus normalize(ImagePlus imp) {
+        final ImageStack stack = imp.getStack();
+        final int nPlanes = stack.getSize();
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+
+        final double[][] bounds = (fixedBounds != null) ? fixedBounds : percentileBounds(stack);
+        if (bounds.length != nPlanes)
+            throw new IllegalArgumentException(bounds.length + " normalization bounds for " + nPlanes + " planes");
+
+        final float[][] normPixels = new float[nPlanes][];
+        IntStream.range(0, nPlanes).parallel().forEach(n -> normPixels[n] = normalizePlane(stack.getPixels(n+1), bounds[n][0], bounds[n][1]));
+
+        final ImageStack normStack = new ImageStack(width, height);
+        for (int n = 0; n < nPlanes; n++)
+            normStack.addSlice(new FloatProcessor(width, height, normPixels[n]));
+        ImagePlus impNorm = new ImagePlus(imp.getTitle(), normStack);
+        impNorm.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+        return(impNorm);
+    }
+
+
+    /**
+     * Percentiles {low, high} of each plane, or of the whole stack if joint
+     */
+    private double[][] percentileBounds(ImageStack stack) {
+        final int nPlanes = stack.getSize();
+        final long planeCount = (long)stack.getWidth() * stack.getHeight();
+
+        // One histogram per plane, filled in parallel
+        final int[][] histos = new int[nPlanes][];
+        IntStream.range(0, nPlanes).parallel().forEach(n -> histos[n] = histogram(stack.getPixels(n+1)));
+
+        final double[][] bounds = new double[nPlanes][];
+        if (joint) {
+            // long counts, a bin can hold more than 2^31 pixels of the whole stack
+            final long[] histo = new long[histos[0].length];
+            for (int[] h: histos)
+                for (int i = 0; i < h.length; i++)
+                    histo[i] += h[i];
+            final double[] b = bounds(histo, planeCount * nPlanes);
+            for (int n = 0; n < nPlanes; n++)
+                bounds[n] = b;
+        } else {
+            for (int n = 0; n < nPlanes; n++) {
+                final long[] histo = new long[histos[n].length];
+                for (int i = 0; i < histo.length; i++)
+                    histo[i] = histos[n][i];
+                bounds[n] = bounds(histo, planeCount);
+            }
+        }
+        return bounds;
+    }
+
+
+    private static int[] histogram(Object pixels) {
+        if (pixels instanceof short[]) {
+            final short[] px = (short[]) pixels;
+            final int[] histo = new int[65536];
+            for (short v: px)
+                histo[v & 0xffff]++;
+            return(histo);
+        }
+        final byte[] px = (byte[]) pixels;
+        final int[] histo = new int[256];
+        for (byte v: px)
+            histo[v & 0xff]++;
+        return(histo);
+    }
+
+
+    /**
+     * Percentile with linear interpolation between closest ranks (same definition as numpy)
+     */
+    private static double percentile(long[] histo, long count, double perc) {
+        final double rank = perc / 100 * (count - 1);
+        final long lowRank = (long) Math.floor(rank);
+        final double frac = rank - lowRank;
+        int low = -1, high = -1;
+        long cumul = 0;
+        for (int v = 0; v < histo.length && high < 0; v++) {
+            cumul += histo[v];
+            if (low < 0 && cumul > lowRank)
+                low = v;
+            if (cumul > lowRank + 1 || (frac == 0 && low >= 0))
+                high = v;
+        }
+        if (high < 0)
+            high = low;
+        return(low + frac * (high - low));
+    }
+
+
+    private static float[] normalizePlane(Object pixels, double low, double high) {
+        final float scale = (float) (1 / Math.max(high - low, 1e-20));
+        final float offset = (float) low;
+        if (pixels instanceof short[]) {
+            final short[] px = (short[]) pixels;
+            final float[] norm = new float[px.length];
+            for (int i = 0; i < px.length; i++)
+                norm[i] = ((px[i] & 0xffff) - offset) * scale;
+            return(norm);
+        }
+        final byte[] px = (byte[]) pixels;
+        final float[] norm = new float[px.length];
+        for (int i = 0; i < px.length; i++)
+            norm[i] = ((px[i] & 0xff) - offset) * scale;
+        return(norm);
+    }
+}
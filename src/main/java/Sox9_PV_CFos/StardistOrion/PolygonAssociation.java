@@ -0,0 +1,143 @@
+package Sox9_PV_CFos.StardistOrion;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import de.lighti.clipper.Path;
+import de.lighti.clipper.Point.LongPoint;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+
+/**
+ * Link NMS winners of consecutive frames into 3D objects from their polygons, without label images
+ * A winner takes the label of the previous-frame polygon it overlaps most (intersection over smaller area above minColoc),
+ * each label being taken at most once per frame; previous polygons are found through a grid of their bounding boxes
+ * The 3D label stack is rasterized once, at the end
+ */
+public class PolygonAssociation {
+
+    private static final long CELL = 32 * Candidates.S; // grid cell size, in scaled coordinates
+
+    private static class Shape {
+        final Path polygon;
+        final Box2D bbox;
+        final double area;
+        int label = 0;
+
+        Shape(Path polygon, Box2D bbox, double area) {
+            this.polygon = polygon;
+            this.bbox = bbox;
+            this.area = area;
+        }
+    }
+
+    private final double minColoc;
+    private final List<List<Shape>> frames = new ArrayList<>();
+    private int maxLabel = 0;
+
+    public PolygonAssociation(double minColoc) {
+        this.minColoc = minColoc;
+    }
+
+    /** Associate winners of next frame with the previous frame */
+    public void add(Candidates polygons) {
+        final List<Shape> current = new ArrayList<>();
+        for (int i: polygons.getWinner())
+            current.add(new Shape(polygons.getPolygon(i), polygons.getBbox(i), Math.abs(polygons.getArea(i))));
+        final List<Shape> previous = frames.isEmpty() ? Collections.emptyList() : frames.get(frames.size()-1);
+
+        // overlapping pairs: current index, previous index, overlap
+        final HashMap<Long, List<Integer>> grid = index(previous);
+        final List<double[]> links = new ArrayList<>();
+        final int[] seen = new int[previous.size()];
+        for (int c = 0; c < current.size(); c++) {
+            final Shape shape = current.get(c);
+            for (long gx = Math.floorDiv(shape.bbox.xmin, CELL); gx <= Math.floorDiv(shape.bbox.xmax, CELL); gx++) {
+                for (long gy = Math.floorDiv(shape.bbox.ymin, CELL); gy <= Math.floorDiv(shape.bbox.ymax, CELL); gy++) {
+                    for (int p: grid.getOrDefault(key(gx, gy), Collections.emptyList())) {
+                        if (seen[p] == c+1)
+                            continue;
+                        seen[p] = c+1;
+                        final Shape other = previous.get(p);
+                        if (!shape.bbox.does_intersect(other.bbox))
+                            continue;
+                        final double overlap = Candidates.poly_intersection_area(shape.polygon, other.polygon)
+                                               / Math.min(shape.area+1e-10, other.area+1e-10);
+                        if (overlap > minColoc)
+                            links.add(new double[]{c, p, overlap});
+                    }
+                }
+            }
+        }
+
+        // best overlaps first, one to one
+        links.sort((a, b) -> Double.compare(b[2], a[2]));
+        final boolean[] taken = new boolean[previous.size()];
+        for (double[] link: links) {
+            final Shape shape = current.get((int) link[0]);
+            if (shape.label == 0 && !taken[(int) link[1]]) {
+                shape.label = previous.get((int) link[1]).label;
+                taken[(int) link[1]] = true;
+            }
+        }
+        for (Shape shape: current) {
+            if (shape.label == 0)
+                shape.label = ++maxLabel;
+        }
+        frames.add(current);
+    }
+
+    private static HashMap<Long, List<Integer>> index(List<Shape> shapes) {
+        final HashMap<Long, List<Integer>> grid = new HashMap<>();
+        for (int i = 0; i < shapes.size(); i++) {
+            final Box2D bbox = shapes.get(i).bbox;
+            for (long gx = Math.floorDiv(bbox.xmin, CELL); gx <= Math.floorDiv(bbox.xmax, CELL); gx++)
+                for (long gy = Math.floorDiv(bbox.ymin, CELL); gy <= Math.floorDiv(bbox.ymax, CELL); gy++)
+                    grid.computeIfAbsent(key(gx, gy), k -> new ArrayList<>()).add(i);
+        }
+        return grid;
+    }
+
+    private static long key(long gx, long gy) {
+        return (gx << 32) ^ (gy & 0xffffffffL);
+    }
+
+    public int getMaxLabel() {
+        return maxLabel;
+    }
+
+    /**
+     * Draw 3D labels of all frames, polygons scaled from StarDist input to width x height
+     * Higher-score winners are drawn last, as in the label image of StarDist2DBase; labels above 65535 wrap around
+     */
+    public ImagePlus rasterize(int width, int height, double scaleX, double scaleY) {
+        final ImageStack stack = new ImageStack(width, height);
+        for (List<Shape> frame: frames) {
+            final ShortProcessor ip = new ShortProcessor(width, height);
+            for (int i = frame.size()-1; i >= 0; i--) {
+                final Shape shape = frame.get(i);
+                ip.setValue(1 + (shape.label - 1) % StarDist2DBase.MAX_LABEL_ID);
+                ip.fill(toRoi(shape.polygon, scaleX, scaleY));
+            }
+            stack.addSlice(ip);
+        }
+        return new ImagePlus("Labelled", stack);
+    }
+
+    private static PolygonRoi toRoi(Path poly, double scaleX, double scaleY) {
+        final int n = poly.size();
+        final float[] x = new float[n];
+        final float[] y = new float[n];
+        for (int i = 0; i < n; i++) {
+            final LongPoint p = poly.get(i);
+            x[i] = (float) ((0.5 + (double) p.getX() / Candidates.S) * scaleX);
+            y[i] = (float) ((0.5 + (double) p.getY() / Candidates.S) * scaleY);
+        }
+        return new PolygonRoi(x, y, n, Roi.POLYGON);
+    }
+}
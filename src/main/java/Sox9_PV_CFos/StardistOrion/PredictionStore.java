@@ -0,0 +1,170 @@
+package Sox9_PV_CFos.StardistOrion;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compact storage of the CNN outputs (prob and dist) of a stack, frame by frame
+ * prob is quantized on 16 bits, dist is stored as half floats, file is gzip-compressed
+ * dist of a frame is ordered as x + width*(y + height*ray), like an ArrayImg of size width x height x rays
+ */
+public class PredictionStore {
+
+    private static final int MAGIC = 0x50524544; // "PRED"
+    private static final int VERSION = 2;
+    public static final String EXT = ".pred.gz";
+
+    /** Stack geometry and detection options written in file header */
+    public static class Header {
+        public int width, height, nFrames, nRays;
+        public int fullWidth, fullHeight; // size of the image before downscaling
+        public double pixelWidth, pixelDepth; // calibration of the full-size image
+        public double minArea = 0, maxArea = Double.POSITIVE_INFINITY; // area filter of NMS winners, in input pixels
+        public boolean polygonAssociation = false; // slices associated from polygons instead of label images
+    }
+
+    /** Write frames one after the other, as soon as they are predicted */
+    public static class Writer implements Closeable {
+        private final Header header;
+        private final DataOutputStream out;
+        private int written = 0;
+
+        public Writer(File file, Header header) throws IOException {
+            this.header = header;
+            out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file), 1 << 16)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(header.width);
+            out.writeInt(header.height);
+            out.writeInt(header.nFrames);
+            out.writeInt(header.nRays);
+            out.writeInt(header.fullWidth);
+            out.writeInt(header.fullHeight);
+            out.writeDouble(header.pixelWidth);
+            out.writeDouble(header.pixelDepth);
+            out.writeDouble(header.minArea);
+            out.writeDouble(header.maxArea);
+            out.writeBoolean(header.polygonAssociation);
+        }
+
+        public synchronized void writeFrame(float[] prob, float[] dist) throws IOException {
+            final int n = header.width * header.height;
+            if (prob.length != n || dist.length != n * header.nRays || written == header.nFrames)
+                throw new IllegalArgumentException("Frame does not match prediction store header");
+            final ByteBuffer bytes = ByteBuffer.allocate(2 * dist.length);
+            final ShortBuffer shorts = bytes.asShortBuffer();
+            for (float p: prob)
+                shorts.put((short) Math.round(Math.min(Math.max(p, 0), 1) * 65535));
+            out.write(bytes.array(), 0, 2 * n);
+            shorts.clear();
+            for (float d: dist)
+                shorts.put(toHalf(d));
+            out.write(bytes.array(), 0, 2 * dist.length);
+            written++;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /** Read frames in the order they were written */
+    public static class Reader implements Closeable {
+        public final Header header = new Header();
+        private final DataInputStream in;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 1 << 16)));
+            if (in.readInt() != MAGIC) {
+                in.close();
+                throw new IOException(file + " is not a prediction file");
+            }
+            if (in.readInt() != VERSION) {
+                in.close();
+                throw new IOException(file + " was saved without its detection options, save predictions again");
+            }
+            header.width = in.readInt();
+            header.height = in.readInt();
+            header.nFrames = in.readInt();
+            header.nRays = in.readInt();
+            header.fullWidth = in.readInt();
+            header.fullHeight = in.readInt();
+            header.pixelWidth = in.readDouble();
+            header.pixelDepth = in.readDouble();
+            header.minArea = in.readDouble();
+            header.maxArea = in.readDouble();
+            header.polygonAssociation = in.readBoolean();
+        }
+
+        /** Read next frame into prob (width*height) and dist (width*height*rays) */
+        public void readFrame(float[] prob, float[] dist) throws IOException {
+            final byte[] bytes = new byte[2 * dist.length];
+            in.readFully(bytes, 0, 2 * prob.length);
+            ShortBuffer shorts = ByteBuffer.wrap(bytes).asShortBuffer();
+            for (int i = 0; i < prob.length; i++)
+                prob[i] = (shorts.get(i) & 0xffff) / 65535f;
+            in.readFully(bytes, 0, 2 * dist.length);
+            for (int i = 0; i < dist.length; i++)
+                dist[i] = toFloat(shorts.get(i));
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /** IEEE 754 half precision conversion, rounded to nearest */
+    static short toHalf(float f) {
+        final int bits = Float.floatToIntBits(f);
+        final int sign = (bits >>> 16) & 0x8000;
+        int val = (bits & 0x7fffffff) + 0x1000;
+        if (val >= 0x47800000) {
+            if ((bits & 0x7fffffff) >= 0x47800000) {
+                if (val < 0x7f800000)
+                    return (short) (sign | 0x7c00);
+                return (short) (sign | 0x7c00 | ((bits & 0x007fffff) >>> 13));
+            }
+            return (short) (sign | 0x7bff);
+        }
+        if (val >= 0x38800000)
+            return (short) (sign | ((val - 0x38000000) >>> 13));
+        if (val < 0x33000000)
+            return (short) sign;
+        val = (bits & 0x7fffffff) >>> 23;
+        return (short) (sign | ((((bits & 0x7fffff) | 0x800000) + (0x800000 >>> (val - 102))) >>> (126 - val)));
+    }
+
+    static float toFloat(short half) {
+        final int hbits = half & 0xffff;
+        int mant = hbits & 0x03ff;
+        int exp = hbits & 0x7c00;
+        if (exp == 0x7c00) {
+            exp = 0x3fc00;
+        } else if (exp != 0) {
+            exp += 0x1c000;
+            if (mant == 0 && exp > 0x1c400)
+                return Float.intBitsToFloat((hbits & 0x8000) << 16 | exp << 13 | 0x3ff);
+        } else if (mant != 0) {
+            exp = 0x1c400;
+            do {
+                mant <<= 1;
+                exp -= 0x400;
+            } while ((mant & 0x400) == 0);
+            mant &= 0x3ff;
+        }
+        return Float.intBitsToFloat((hbits & 0x8000) << 16 | (exp | mant) << 13);
+    }
+}
@@ -0,0 +1,68 @@
+package Sox9_PV_CFos.StardistOrion;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.plugin.Concatenator;
+import java.util.ArrayList;
+import mcib3d.geom2.tracking.TrackingAssociation;
+import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageInt;
+
+/**
+ * Link 2D labels of consecutive slices into 3D labels
+ * Slices are given one by one, each one is associated with the previous associated slice
+ */
+public class SliceAssociation {
+
+    public static final double MAX_BB = 0;
+    public static final double MIN_COLOC = 0.1;
+
+    private final double maxBB;
+    private final double minColoc;
+    private float maxLabel = 0;
+    private final ArrayList<ImagePlus> associated = new ArrayList<>();
+
+    public SliceAssociation(double maxBB, double minColoc) {
+        this.maxBB = maxBB;
+        this.minColoc = minColoc;
+    }
+
+    /** Associate the labels of next slice with the previous slice */
+    public ImagePlus add(ImagePlus slice) {
+        ImagePlus res;
+        if (associated.isEmpty()) {
+            res = slice;
+        } else {
+            ImageHandler img1 = ImageInt.wrap(associated.get(associated.size()-1));
+            ImageHandler img2 = ImageInt.wrap(slice);
+            TrackingAssociation association = new TrackingAssociation(img1, img2, maxBB, minColoc);
+            association.setMaxLabel(maxLabel);
+            ImageHandler trackedImage = association.getTrackedImage();
+            maxLabel = association.getMaxLabel();
+            res = trackedImage.getImagePlus();
+        }
+        associated.add(res);
+        return res;
+    }
+
+    /** Stack of associated slices */
+    public ImagePlus getStack() {
+        ImagePlus hyperRes = new Concatenator().concatenate(associated.toArray(new ImagePlus[0]), false);
+        hyperRes.setDimensions(1, hyperRes.getNFrames(), 1);
+        return hyperRes;
+    }
+
+    /** Associate all slices of a label stack */
+    public static ImagePlus associate(ImagePlus labImg, double maxBB, double minColoc) {
+        SliceAssociation association = new SliceAssociation(maxBB, minColoc);
+        association.add(labImg.crop(1+"-"+1));
+        IJ.run(labImg, "Select None", "");
+        for (int i=1; i<labImg.getNSlices(); i++) {
+            ImagePlus inext = labImg.crop((i+1)+"-"+(i+1));
+            association.add(inext);
+            inext.flush();
+            inext.close();
+        }
+        return association.getStack();
+    }
+}
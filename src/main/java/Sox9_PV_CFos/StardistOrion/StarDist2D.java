@@ -1,6 +1,9 @@
 package Sox9_PV_CFos.StardistOrion;
 
+import java.awt.GraphicsEnvironment;
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -14,16 +17,13 @@ import org.scijava.command.CommandModule;
 
 import ij.IJ;
 import ij.ImagePlus;
-import ij.plugin.Concatenator;
 import java.io.PrintStream;
-import mcib3d.geom2.tracking.TrackingAssociation;
-import mcib3d.image3d.ImageHandler;
-import mcib3d.image3d.ImageInt;
 import net.imagej.Dataset;
 import net.imagej.ImageJ;
 import net.imagej.ImgPlus;
 import net.imagej.axis.Axes;
 import net.imagej.axis.AxisType;
+import net.imglib2.Cursor;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.display.imagej.ImageJFunctions;
@@ -38,6 +38,9 @@ public class StarDist2D extends StarDist2DBase implements Command {
      
     private Dataset input;
     private boolean normalizeInput = true;
+    private boolean normalizeJointly = false;
+    private boolean prenormalized = false;
+    private double[][] normalizationBounds = null;
     private double percentileBottom = 0.2;
     private double percentileTop = 99.8;
     private Dataset prob;
@@ -51,7 +54,8 @@ public class StarDist2D extends StarDist2DBase implements Command {
     private File modelFile;
    
     private int nTiles = 1;
-    private int excludeBoundary = 2;  // boundary_exclusion
+    public static final int EXCLUDE_BOUNDARY = 2; // boundary_exclusion, also used by offline threshold sweeps
+    private int excludeBoundary = EXCLUDE_BOUNDARY;
     private String roiPosition = "Automatic";
     private String roiPositionActive = null;
     private boolean verbose = false;
@@ -60,11 +64,61 @@ public class StarDist2D extends StarDist2DBase implements Command {
     private ImageJ ij;
     private Object obj_;
     private File tmpModelFile_ = null;
-    private double minColoc = 0.1;     
-    private double maxBB = 0;
+    private double minColoc = SliceAssociation.MIN_COLOC;     
+    private double maxBB = SliceAssociation.MAX_BB;
     private int costChoice = 0 ;
+    private Predictor predictor = null;
+    private StepListener stepListener = null;
+    private ProbabilitySink probabilitySink = null;
+    private File predictionFile = null;
+    private PredictionStore.Header predictionHeader = null;
+    private double minArea = 0, maxArea = Double.POSITIVE_INFINITY;
+    private int nbDroppedByArea = 0;
+    private int associationWidth = 0, associationHeight = 0;
+    private PolygonAssociation polygonAssociation = null;
     
-    private float maxLabel = 0; // for association labels
+    // System.out is silenced while at least one CSBDeep command runs, console is the stream it replaces
+    private static int nbSilenced = 0;
+    private static final PrintStream console = System.out;
+    
+    /**
+     * Replacement of the StarDist network, e.g. to test the pipeline without model
+     */
+    public interface Predictor {
+        /**
+         * @param frame input frame (X, Y)
+         * @return prob and dist stacked along a third dimension (X, Y, 1 + nRays), as the network output
+         */
+        RandomAccessibleInterval<FloatType> predict(RandomAccessibleInterval<? extends RealType<?>> frame);
+    }
+    
+    // Steps reported to the step listener, candidates and NMS run frame by frame in the calling thread
+    public static final String STEP_NORMALIZATION = "normalization";
+    public static final String STEP_CNN = "cnn";
+    public static final String STEP_CANDIDATES = "candidates";
+    public static final String STEP_NMS = "nms";
+    public static final String STEP_AREA_FILTER = "area filter";
+    public static final String STEP_RASTERIZATION = "rasterization";
+    public static final String STEP_ASSOCIATION = "association";
+    
+    /**
+     * Notified at the start and end of each step, e.g. to time them
+     */
+    public interface StepListener {
+        void stepStarted(String step);
+        
+        /**
+         * @param count planes, candidates, polygons or labels processed by the step
+         */
+        void stepEnded(String step, int count);
+    }
+    
+    /**
+     * Receives the probability map of each frame as soon as it is predicted, e.g. to store it
+     */
+    public interface ProbabilitySink {
+        void writeFrame(int frame, int nFrames, float[] prob, int width, int height) throws IOException;
+    }
     
     public StarDist2D(Object obj, File tmpModelFile) {
         ij = new ImageJ();
@@ -79,6 +133,8 @@ public class StarDist2D extends StarDist2DBase implements Command {
         try {
             Class.forName("de.csbdresden.csbdeep.commands.GenericNetwork");
         } catch (ClassNotFoundException e) {
+            if (GraphicsEnvironment.isHeadless())
+                throw new RuntimeException("CSBDeep not installed");
             JOptionPane.showMessageDialog(null,
                     "<html><p>"
                     + "StarDist relies on the CSBDeep plugin for neural network prediction.<br><br>"
@@ -103,20 +159,20 @@ public class StarDist2D extends StarDist2DBase implements Command {
 
     @Override
     public void run() {
-        checkForCSBDeep();
+        if (predictor == null)
+            checkForCSBDeep();
         if (!checkInputs()) return;
 
         if (roiPosition.equals("Automatic"))
             roiPositionActive = input.numDimensions() > 3 && !input.isRGBMerged() ? "Hyperstack" : "Stack";
         else
             roiPositionActive = roiPosition;
-        PrintStream console = System.out;
         System.out.println("Starting StarDist ...");
-        System.setOut(new NullPrintStream());
         try {
             final HashMap<String, Object> paramsCNN = new HashMap<>();
             paramsCNN.put("input", input);
-            paramsCNN.put("normalizeInput", normalizeInput);
+            // input already normalized in loadInput for 8/16-bit images
+            paramsCNN.put("normalizeInput", normalizeInput && !prenormalized);
             paramsCNN.put("percentileBottom", percentileBottom);
             paramsCNN.put("percentileTop", percentileTop);
             paramsCNN.put("clip", false);
@@ -129,7 +185,7 @@ public class StarDist2D extends StarDist2DBase implements Command {
             final HashMap<String, Object> paramsNMS = new HashMap<>();
             paramsNMS.put("probThresh", probThresh);
             paramsNMS.put("nmsThresh", nmsThresh);
-            paramsNMS.put("excludeBoundary", 2);
+            paramsNMS.put("excludeBoundary", excludeBoundary);
             paramsNMS.put("roiPosition", roiPositionActive);
             paramsNMS.put("verbose", verbose);
       
@@ -139,45 +195,74 @@ public class StarDist2D extends StarDist2DBase implements Command {
             // TODO: option to normalize image/timelapse channel by channel or all channels jointly
             
             if (true && isTimelapse) {
-                // TODO: option to normalize timelapse frame by frame (currently) or jointly
+                // frames normalized one by one or jointly in loadInput (see setNormalizeJointly)
                 final ImgPlus<? extends RealType<?>> inputImgPlus = input.getImgPlus();
                 final long numFrames = input.getFrames();
                 final int inputTimeDim = IntStream.range(0, inputAxes.size()).filter(d -> input.axis(d).type() == Axes.TIME).findFirst().getAsInt();
-                for (int t = 0; t < numFrames; t++) {
-                    final Dataset inputFrameDS = Utils.raiToDataset(dataset, "Input Frame",
-                            Views.hyperSlice(inputImgPlus, inputTimeDim, t),
-                            inputAxes.stream().filter(axis -> axis != Axes.TIME));
-                    paramsCNN.put("input", inputFrameDS);
-                    final Dataset prediction;
-                    synchronized(obj_){
-                    final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
-                    prediction = (Dataset) futureCNN.get().getOutput("output");
-                    }
+                PredictionStore.Writer predictions = null;
+                polygonAssociation = (associationWidth > 0) ? new PolygonAssociation(minColoc) : null;
+                try {
+                    for (int t = 0; t < numFrames; t++) {
+                        final Dataset inputFrameDS = Utils.raiToDataset(dataset, "Input Frame",
+                                Views.hyperSlice(inputImgPlus, inputTimeDim, t),
+                                inputAxes.stream().filter(axis -> axis != Axes.TIME));
+                        paramsCNN.put("input", inputFrameDS);
+                        stepStarted(STEP_CNN);
+                        final Dataset prediction = predict(paramsCNN);
                     
-                    final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
-                    final Dataset probDS = probAndDist.getA();
-                    final Dataset distDS = probAndDist.getB();
-                    paramsNMS.put("prob", probDS);
-                    paramsNMS.put("dist", distDS);
-                    paramsNMS.put("outputType", "Polygons");
-                    if (showProbAndDist) {
-                        if (t==0) log.error(String.format("\"%s\" not implemented/supported for timelapse data.", "Show CNN Output"));
+                        final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
+                        final Dataset probDS = probAndDist.getA();
+                        final Dataset distDS = probAndDist.getB();
+                        stepEnded(STEP_CNN, 1);
+                        if (predictionFile != null || probabilitySink != null) {
+                            final float[] probArray = toArray(probDS);
+                            if (predictionFile != null)
+                                predictions = savePrediction(predictions, probArray, distDS, numFrames);
+                            if (probabilitySink != null)
+                                probabilitySink.writeFrame(t, (int) numFrames, probArray, (int) probDS.dimension(0), (int) probDS.dimension(1));
+                        }
+                        if (showProbAndDist) {
+                            if (t==0) log.error(String.format("\"%s\" not implemented/supported for timelapse data.", "Show CNN Output"));
+                        }
+                        // same as StarDist2DNMS on one frame, without command dispatch
+                        stepStarted(STEP_CANDIDATES);
+                        final Candidates polygons = new Candidates((RandomAccessibleInterval<FloatType>) probDS.getImgPlus(),
+                                (RandomAccessibleInterval<FloatType>) distDS.getImgPlus(), probThresh, excludeBoundary, verbose ? log : null);
+                        stepEnded(STEP_CANDIDATES, polygons.getSorted().size());
+                        stepStarted(STEP_NMS);
+                        polygons.nms(nmsThresh);
+                        stepEnded(STEP_NMS, polygons.getWinner().size());
+                        if (minArea > 0 || maxArea < Double.POSITIVE_INFINITY) {
+                            stepStarted(STEP_AREA_FILTER);
+                            final int dropped = polygons.filterWinners(minArea, maxArea);
+                            nbDroppedByArea += dropped;
+                            stepEnded(STEP_AREA_FILTER, dropped);
+                        }
+                        if (polygonAssociation != null) {
+                            stepStarted(STEP_ASSOCIATION);
+                            polygonAssociation.add(polygons);
+                            stepEnded(STEP_ASSOCIATION, polygons.getWinner().size());
+                        } else {
+                            stepStarted(STEP_RASTERIZATION);
+                            export(outputType, polygons, 1+t, numFrames, roiPositionActive);
+                            stepEnded(STEP_RASTERIZATION, polygons.getWinner().size());
+                        }
+                        //IJ.showProgress(1+t, (int)numFrames);
                     }
-                    final Future<CommandModule> futureNMS = command.run(StarDist2DNMS.class, false, paramsNMS);  
-                    final Candidates polygons = (Candidates) futureNMS.get().getOutput("polygons");  
-                    export(outputType, polygons, 1+t, numFrames, roiPositionActive);
-                    //IJ.showProgress(1+t, (int)numFrames);
+                } finally {
+                    if (predictions != null)
+                        predictions.close();
                 }
                 
-                label = labelImageToDataset(outputType);                
+                // associated polygons are rasterized in associateLabels
+                label = (polygonAssociation == null) ? labelImageToDataset(outputType) : null;
             
             } else {
                 // note: the code below supports timelapse data too. differences to above:
                 //       - joint normalization of all frames
                 //       - requires more memory to store intermediate results (prob and dist) of all frames
                 //       - allows showing prob and dist easily
-                final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
-                final Dataset prediction = (Dataset) futureCNN.get().getOutput("output");
+                final Dataset prediction = predict(paramsCNN);
 
                 final Pair<Dataset, Dataset> probAndDist = splitPrediction(prediction);
                 final Dataset probDS = probAndDist.getA();
@@ -190,13 +275,99 @@ public class StarDist2D extends StarDist2DBase implements Command {
                     dist = distDS;
                 }
 
-                final Future<CommandModule> futureNMS = command.run(StarDist2DNMS.class, false, paramsNMS);
-                label = (Dataset) futureNMS.get().getOutput("label");
+                silenceConsole();
+                try {
+                    final Future<CommandModule> futureNMS = command.run(StarDist2DNMS.class, false, paramsNMS);
+                    label = (Dataset) futureNMS.get().getOutput("label");
+                } finally {
+                    restoreConsole();
+                }
             } 
-        } catch (InterruptedException | ExecutionException e) {
-            e.printStackTrace();
+        } catch (IOException e) {
+            // prediction file or probability sink could not be written, labels would be missing or truncated
+            throw new UncheckedIOException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("StarDist failed: " + e.getCause(), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("StarDist interrupted", e);
         }
-        System.setOut(console);
+    }
+    
+    private void stepStarted(String step) {
+        if (stepListener != null)
+            stepListener.stepStarted(step);
+    }
+    
+    private void stepEnded(String step, int count) {
+        if (stepListener != null)
+            stepListener.stepEnded(step, count);
+    }
+    
+    /**
+     * Run the network, or the predictor if one was set, on paramsCNN input
+     */
+    private Dataset predict(HashMap<String, Object> paramsCNN) throws InterruptedException, ExecutionException {
+        if (predictor != null) {
+            final Dataset frame = (Dataset) paramsCNN.get("input");
+            return Utils.raiToDataset(dataset, "Prediction", predictor.predict(frame.getImgPlus()), Axes.X, Axes.Y, Axes.CHANNEL);
+        }
+        synchronized(obj_){
+            silenceConsole();
+            try {
+                final Future<CommandModule> futureCNN = command.run(de.csbdresden.csbdeep.commands.GenericNetwork.class, false, paramsCNN);
+                return (Dataset) futureCNN.get().getOutput("output");
+            } finally {
+                restoreConsole();
+            }
+        }
+    }
+    
+    /**
+     * Append prob and dist of a frame to prediction file, opened with the first frame
+     */
+    private PredictionStore.Writer savePrediction(PredictionStore.Writer predictions, float[] probArray, Dataset distDS, long numFrames) throws IOException {
+        final int nRays = (int) distDS.dimension(2);
+        if (predictions == null) {
+            predictionHeader.width = (int) distDS.dimension(0);
+            predictionHeader.height = (int) distDS.dimension(1);
+            predictionHeader.nFrames = (int) numFrames;
+            predictionHeader.nRays = nRays;
+            predictionHeader.minArea = minArea;
+            predictionHeader.maxArea = maxArea;
+            predictionHeader.polygonAssociation = polygonAssociation != null;
+            predictions = new PredictionStore.Writer(predictionFile, predictionHeader);
+        }
+        predictions.writeFrame(probArray, toArray(distDS));
+        return predictions;
+    }
+    
+    /**
+     * Dataset values in flat iteration order, X fastest
+     */
+    private static float[] toArray(Dataset ds) {
+        final float[] array = new float[(int) ds.size()];
+        final Cursor<? extends RealType<?>> cursor = Views.flatIterable(ds.getImgPlus()).cursor();
+        for (int i = 0; cursor.hasNext(); i++)
+            array[i] = cursor.next().getRealFloat();
+        return array;
+    }
+    
+    /**
+     * Standard output as it was before CSBDeep commands silenced it, for logs that must not be lost while other threads run StarDist
+     */
+    public static PrintStream console() {
+        return console;
+    }
+    
+    private static synchronized void silenceConsole() {
+        if (nbSilenced++ == 0)
+            System.setOut(new NullPrintStream());
+    }
+    
+    private static synchronized void restoreConsole() {
+        if (--nbSilenced == 0)
+            System.setOut(console);
     }
 
     // this function is very cumbersome... is there a better way to do this?
@@ -259,11 +430,24 @@ public class StarDist2D extends StarDist2DBase implements Command {
         ij.command().run(StarDist2D.class, true, params);
     }
     
+    /**
+     * Load input image, setParams must be called before to get the right percentiles
+     * 8/16-bit images are normalized here from histograms instead of in CSBDeep
+     */
     public void loadInput(ImagePlus imp) {
         checkImageSize(imp);
         if ( imp.getNSlices()>1) imp.setDimensions(1, 1, imp.getNSlices());
         final AxisType[] axes = new AxisType[]{Axes.X, Axes.Y, Axes.TIME};
-        final Img inputImg = (Img) ImageJFunctions.wrap(imp);
+        prenormalized = normalizeInput && PercentileNormalizer.isSupported(imp);
+        stepStarted(STEP_NORMALIZATION);
+        ImagePlus impNorm = imp;
+        if (prenormalized) {
+            PercentileNormalizer normalizer = new PercentileNormalizer(percentileBottom, percentileTop, normalizeJointly);
+            normalizer.setBounds(normalizationBounds);
+            impNorm = normalizer.normalize(imp);
+        }
+        stepEnded(STEP_NORMALIZATION, imp.getNSlices());
+        final Img inputImg = (Img) ImageJFunctions.wrap(impNorm);
         input = Utils.raiToDataset(dataset, "input", inputImg, axes);
         if (imp.getNFrames()>1) 
             imp.setDimensions(1, imp.getNSlices(), 1); 
@@ -275,40 +459,31 @@ public class StarDist2D extends StarDist2DBase implements Command {
         return ImageJFunctions.wrap((RandomAccessibleInterval)img1, "Labelled");
     }
     
+    /**
+     * 3D labels of the frames, associated from polygons at association size if setPolygonAssociation was called,
+     * from the label image at input size otherwise
+     */
     public ImagePlus associateLabels() {
+        if (polygonAssociation != null) {
+            stepStarted(STEP_RASTERIZATION);
+            ImagePlus hyperRes = polygonAssociation.rasterize(associationWidth, associationHeight,
+                    (double) associationWidth / input.getWidth(), (double) associationHeight / input.getHeight());
+            stepEnded(STEP_RASTERIZATION, hyperRes.getNSlices());
+            return hyperRes;
+        }
         ImagePlus labImg = getLabelImagePlus();
         // put the image back in slices
         if (labImg.getNChannels()>1) labImg.setDimensions(1, labImg.getNChannels(), 1);
         if (labImg.getNFrames()>1) labImg.setDimensions(1, labImg.getNFrames(), 1);
         // do association
-        ImagePlus[] associated = new ImagePlus[labImg.getNSlices()];
-        associated[0] = labImg.crop(1+"-"+1);
-        maxLabel = 0;
-        IJ.run(labImg, "Select None", ""); 
-        for (int i=1; i<labImg.getNSlices(); i++) {
-            ImagePlus inext = labImg.crop((i+1)+"-"+(i+1));
-            associated[i] = associate(inext, associated[i-1]);
-            inext.flush();
-            inext.close();             
-        }
-        ImagePlus hyperRes = new Concatenator().concatenate(associated, false);
-        hyperRes.setDimensions(1, hyperRes.getNFrames(), 1);
+        stepStarted(STEP_ASSOCIATION);
+        ImagePlus hyperRes = SliceAssociation.associate(labImg, maxBB, minColoc);
+        stepEnded(STEP_ASSOCIATION, hyperRes.getNSlices());
         labImg.changes = false;
         labImg.close();
         return hyperRes;
     }
     
-    /** Associate the label of frame t-1 with slice z */
-    public ImagePlus associate(ImagePlus ip, ImagePlus ref) {
-        ImageHandler img1 = ImageInt.wrap(ref);
-        ImageHandler img2 = ImageInt.wrap(ip);
-        TrackingAssociation association = new TrackingAssociation(img1, img2, maxBB, minColoc);
-        association.setMaxLabel(maxLabel);
-        ImageHandler trackedImage = association.getTrackedImage();
-        maxLabel = association.getMaxLabel();
-        return trackedImage.getImagePlus();
-    }
-    
     public void setParams(double percentileBottomVar, double percentileTopVar, double probThreshVar, double overlapThreshVar, String outPutType){
 
         percentileBottom = percentileBottomVar;
@@ -318,5 +493,71 @@ public class StarDist2D extends StarDist2DBase implements Command {
         outputType = outPutType;
 
     }
+    
+    /**
+     * Save CNN outputs of each frame in file, to try other thresholds without running the network again
+     * @param fullWidth, fullHeight, pixelWidth, pixelDepth geometry of the image before downscaling
+     */
+    public void setPredictionFile(File file, int fullWidth, int fullHeight, double pixelWidth, double pixelDepth) {
+        predictionFile = file;
+        predictionHeader = new PredictionStore.Header();
+        predictionHeader.fullWidth = fullWidth;
+        predictionHeader.fullHeight = fullHeight;
+        predictionHeader.pixelWidth = pixelWidth;
+        predictionHeader.pixelDepth = pixelDepth;
+    }
+    
+    public void setPredictor(Predictor predictor) {
+        this.predictor = predictor;
+    }
+    
+    public void setProbabilitySink(ProbabilitySink sink) {
+        probabilitySink = sink;
+    }
+    
+    /**
+     * Listener of steps, set before loadInput to get normalization
+     */
+    public void setStepListener(StepListener listener) {
+        stepListener = listener;
+    }
+    
+    /**
+     * Associate NMS winners of consecutive frames from their polygons instead of label images,
+     * and rasterize 3D labels once at width x height, e.g. the size of the image before downscaling
+     * Applies to frame by frame prediction only
+     */
+    public void setPolygonAssociation(int width, int height) {
+        associationWidth = width;
+        associationHeight = height;
+    }
+    
+    /**
+     * Drop NMS winners whose area, in input pixels, is out of [min, max] before they are rasterized and associated
+     * Applies to frame by frame prediction only
+     */
+    public void setAreaFilter(double min, double max) {
+        minArea = min;
+        maxArea = max;
+    }
+    
+    public int getNbDroppedByArea() {
+        return nbDroppedByArea;
+    }
+    
+    /**
+     * Normalize all frames with the same percentiles instead of frame by frame
+     */
+    public void setNormalizeJointly(boolean joint) {
+        normalizeJointly = joint;
+    }
+    
+    /**
+     * Normalize frames with given bounds {low, high} instead of percentiles of the input, e.g. those of the whole image for a tile
+     * Applies to 8/16-bit input, set before loadInput
+     */
+    public void setNormalizationBounds(double[][] bounds) {
+        normalizationBounds = bounds;
+    }
 
 }
@@ -0,0 +1,81 @@
+import Sox9_PV_CFos_Tools.ThresholdSweep;
+import Sox9_PV_CFos_Tools.Tools;
+import Sox9_PV_CFos.StardistOrion.PredictionStore;
+import fiji.util.gui.GenericDialogPlus;
+import ij.IJ;
+import ij.plugin.PlugIn;
+import java.awt.Color;
+import java.awt.Font;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+/**
+* Detect Sox9 or PV cells with several StarDist thresholds from the predictions saved by Sox9_PV_CFos
+* and give the number of cells and their volume distribution for each setting
+* @author ORION-CIRB
+*/
+public class Sox9_PV_CFos_Sweep implements PlugIn {
+
+    private Sox9_PV_CFos_Tools.Tools tools = new Tools();
+    private final String[] cellTypes = {"Sox9", "PV"};
+
+    public void run(String arg) {
+        // Generate dialog box
+        GenericDialogPlus gd = new GenericDialogPlus("Threshold sweep");
+        gd.setInsets(0, 40, 0);
+        gd.addImage(tools.getIcon());
+        gd.addDirectoryField("Predictions folder: ", "");
+        gd.addChoice("Cells: ", cellTypes, cellTypes[0]);
+        gd.addMessage("Thresholds (comma-separated)", Font.getFont("Monospace"), Color.blue);
+        gd.addStringField("Probability: ", "0.5,0.6,0.7,0.75,0.8", 20);
+        gd.addStringField("Overlap: ", "0.1,0.2,0.3,0.4", 20);
+        gd.addMessage("Cells volume (µm3)", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Sox9 min: ", tools.minVolSox9, 0);
+        gd.addNumericField("Sox9 max: ", tools.maxVolSox9, 0);
+        gd.addNumericField("PV min: ", tools.minVolPv, 0);
+        gd.addNumericField("PV max: ", tools.maxVolPv, 0);
+        gd.showDialog();
+        if (gd.wasCanceled()) {
+            IJ.showStatus("Plugin canceled");
+            return;
+        }
+        String predictionsDir = gd.getNextString();
+        String cellType = gd.getNextChoice();
+        double[] probThresholds, overlapThresholds;
+        try {
+            probThresholds = ThresholdSweep.parseThresholds(gd.getNextString());
+            overlapThresholds = ThresholdSweep.parseThresholds(gd.getNextString());
+        } catch (NumberFormatException ex) {
+            IJ.showMessage("Error", "Thresholds must be comma-separated numbers");
+            return;
+        }
+        tools.minVolSox9 = gd.getNextNumber();
+        tools.maxVolSox9 = gd.getNextNumber();
+        tools.minVolPv = gd.getNextNumber();
+        tools.maxVolPv = gd.getNextNumber();
+
+        // Find predictions of chosen cells
+        String suffix = "_" + cellType + PredictionStore.EXT;
+        File[] files = new File(predictionsDir).listFiles((dir, name) -> name.endsWith(suffix));
+        if (files == null || files.length == 0) {
+            IJ.showMessage("Error", "No " + cellType + " predictions found in " + predictionsDir);
+            return;
+        }
+        Arrays.sort(files);
+
+        boolean sox9 = cellType.equals("Sox9");
+        ThresholdSweep sweep = new ThresholdSweep(tools, probThresholds, overlapThresholds,
+                                                  sox9 ? tools.minVolSox9 : tools.minVolPv, sox9 ? tools.maxVolSox9 : tools.maxVolPv);
+        try {
+            sweep.run(new ArrayList<>(Arrays.asList(files)), predictionsDir + File.separator + "sweep" + cellType + ".csv");
+        } catch (IOException ex) {
+            Logger.getLogger(Sox9_PV_CFos_Sweep.class.getName()).log(Level.SEVERE, null, ex);
+        }
+        tools.print("All done!");
+    }
+}
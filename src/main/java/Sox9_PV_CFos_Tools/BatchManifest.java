@@ -0,0 +1,143 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+
+/**
+ * Manifest of the images completed in a results folder, with their output files
+ * and the size of the results files once their rows were written
+ * One tab-separated line per image, appended when the image is done
+ * @author ORION-CIRB
+ */
+public class BatchManifest implements AutoCloseable {
+
+    public static final String FILE_NAME = "manifest.tsv";
+
+    /**
+     * Completed image
+     */
+    public static class Record {
+        public final String name;
+        public final long[] offsets;
+        public final String[] outputs;
+
+        Record(String name, long[] offsets, String[] outputs) {
+            this.name = name;
+            this.offsets = offsets;
+            this.outputs = outputs;
+        }
+    }
+
+    private final File file;
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<>();
+    private Record last = null;
+    private FileOutputStream out;
+    private Writer writer;
+
+
+    /**
+     * Load manifest of a results folder, if any
+     */
+    public BatchManifest(String outDir) throws IOException {
+        file = new File(outDir, FILE_NAME);
+        if (file.exists()) {
+            dropPartialLine();
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length != 4 || !fields[3].endsWith(";"))
+                        continue;
+                    String[] offsets = fields[1].split(",");
+                    long[] values = new long[offsets.length];
+                    for (int i = 0; i < offsets.length; i++)
+                        values[i] = Long.parseLong(offsets[i]);
+                    String outputs = fields[3].substring(0, fields[3].length()-1);
+                    last = new Record(fields[0], values, outputs.isEmpty() ? new String[0] : outputs.split(","));
+                    records.put(last.name, last);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Remove the end of the file after its last newline, left by a crash while appending
+     */
+    private void dropPartialLine() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            while (length > 0) {
+                raf.seek(length-1);
+                if (raf.read() == '\n')
+                    break;
+                length--;
+            }
+            raf.setLength(length);
+        }
+    }
+
+
+    /**
+     * Check if a manifest exists in folder
+     */
+    public static boolean exists(String outDir) {
+        return(new File(outDir, FILE_NAME).exists());
+    }
+
+
+    public synchronized boolean isDone(String name) {
+        return(records.containsKey(name));
+    }
+
+
+    public synchronized int size() {
+        return(records.size());
+    }
+
+
+    /**
+     * Results files sizes after the last completed image, null if no image completed
+     */
+    public synchronized long[] lastOffsets() {
+        return((last == null) ? null : last.offsets);
+    }
+
+
+    /**
+     * Append a completed image and force it to disk
+     */
+    public synchronized void record(String name, long[] offsets, List<String> outputs) throws IOException {
+        if (writer == null) {
+            out = new FileOutputStream(file, true);
+            writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        }
+        StringBuilder line = new StringBuilder(name).append("\t");
+        for (int i = 0; i < offsets.length; i++)
+            line.append(i == 0 ? "" : ",").append(offsets[i]);
+        line.append("\t").append(System.currentTimeMillis()).append("\t");
+        line.append(String.join(",", outputs)).append(";\n");
+        writer.write(line.toString());
+        writer.flush();
+        out.getFD().sync();
+        last = new Record(name, offsets, outputs.toArray(new String[0]));
+        records.put(name, last);
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null)
+            writer.close();
+    }
+}
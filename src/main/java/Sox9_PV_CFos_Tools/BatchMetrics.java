@@ -0,0 +1,294 @@
+package Sox9_PV_CFos_Tools;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+
+/**
+ * Counters and gauges of a running batch, fed by analysis stages and exposed as a JMX MXBean,
+ * and optionally as Prometheus text on http://localhost:port/metrics
+ * @author ORION-CIRB
+ */
+public class BatchMetrics implements StageListener, BatchMetricsMXBean, AutoCloseable {
+
+    public static final String OBJECT_NAME = "Sox9_PV_CFos:type=BatchMetrics";
+    private static final int LATENCIES = 1000; // images kept for latency percentiles
+    private static final long RATE_WINDOW_NS = 60_000_000_000L;
+
+    private final StageListener next;
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final Map<String, LongAdder> cells = new ConcurrentHashMap<>();
+    private final Map<String, Long> itemStarts = new ConcurrentHashMap<>();
+    private final Map<Thread, String[]> workers = new ConcurrentHashMap<>(); // item, channel, stage
+    private final ArrayDeque<long[]> planes = new ArrayDeque<>(); // end time and planes of predictions
+    private final long start = System.nanoTime();
+    private final double[] latencies = new double[LATENCIES];
+    private int nbLatencies = 0;
+    private ObjectName name = null;
+    private HttpServer server = null;
+
+
+    /**
+     * @param next listener also notified of each stage, or null
+     */
+    public BatchMetrics(StageListener next) {
+        this.next = next;
+    }
+
+
+    /**
+     * Register MXBean, replacing the one of a previous batch in same JVM, and serve Prometheus text if port > 0
+     */
+    public void start(int port) throws IOException {
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            name = new ObjectName(OBJECT_NAME);
+            if (mbeans.isRegistered(name))
+                mbeans.unregisterMBean(name);
+            mbeans.registerMBean(this, name);
+        } catch (JMException ex) {
+            StarDist2D.console().println("Cannot register batch metrics MBean: " + ex.getMessage());
+            name = null;
+        }
+        if (port > 0) {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+            server.createContext("/metrics", exchange -> {
+                byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+            StarDist2D.console().println("Batch metrics on http://localhost:" + port + "/metrics");
+        }
+    }
+
+
+    /**
+     * Work item given to a worker
+     */
+    public void itemQueued() {
+        queued.incrementAndGet();
+    }
+
+
+    /**
+     * Work item analyzed, or failed
+     */
+    public void itemFinished(String item, boolean ok) {
+        queued.decrementAndGet();
+        if (ok)
+            done.incrementAndGet();
+        else
+            failed.incrementAndGet();
+        // results of analyzed items are saved afterwards by overlay writers, latency ends with them
+        if (!ok)
+            itemStarts.remove(item);
+        workers.remove(Thread.currentThread());
+    }
+
+
+    @Override
+    public void stageStarted(String item, String channel, String stage) {
+        String[] current = workers.get(Thread.currentThread());
+        // nested stages report neither item nor channel
+        if (item == null && current != null) {
+            workers.put(Thread.currentThread(), new String[]{current[0], (channel != null) ? channel : current[1], stage});
+        } else {
+            workers.put(Thread.currentThread(), new String[]{item, channel, stage});
+            if (item != null)
+                itemStarts.putIfAbsent(item, System.nanoTime());
+        }
+        if (next != null)
+            next.stageStarted(item, channel, stage);
+    }
+
+
+    @Override
+    public void stageEnded(String item, String channel, String stage, int count) {
+        if (stage.equals(BatchProcessor.STAGE_DETECTION) && channel != null)
+            cells.computeIfAbsent(channel, c -> new LongAdder()).add(count);
+        else if (stage.equals(StarDist2D.STEP_CNN))
+            addPlanes(count);
+        else if (stage.equals(BatchProcessor.STAGE_WRITING) && item != null) {
+            Long itemStart = itemStarts.remove(item);
+            if (itemStart != null)
+                addLatency((System.nanoTime() - itemStart) / 1e9);
+        }
+        if (next != null)
+            next.stageEnded(item, channel, stage, count);
+    }
+
+
+    private void addPlanes(int count) {
+        long now = System.nanoTime();
+        synchronized (planes) {
+            planes.add(new long[]{now, count});
+            while (planes.peek()[0] < now - RATE_WINDOW_NS)
+                planes.poll();
+        }
+    }
+
+
+    private synchronized void addLatency(double seconds) {
+        latencies[nbLatencies % LATENCIES] = seconds;
+        nbLatencies++;
+    }
+
+
+    private synchronized double latencyPercentile(double p) {
+        int n = Math.min(nbLatencies, LATENCIES);
+        if (n == 0)
+            return(0);
+        double[] sorted = Arrays.copyOf(latencies, n);
+        Arrays.sort(sorted);
+        return(sorted[(int) Math.min(n-1, Math.ceil(p * n) - 1)]);
+    }
+
+
+    @Override
+    public long getImagesDone() {
+        return(done.get());
+    }
+
+
+    @Override
+    public long getImagesFailed() {
+        return(failed.get());
+    }
+
+
+    @Override
+    public long getImagesQueued() {
+        return(queued.get());
+    }
+
+
+    @Override
+    public Map<String, Long> getCellsDetected() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LongAdder> entry: cells.entrySet())
+            counts.put(entry.getKey(), entry.getValue().sum());
+        return(counts);
+    }
+
+
+    @Override
+    public double getInferencePlanesPerSecond() {
+        long now = System.nanoTime();
+        long count = 0;
+        synchronized (planes) {
+            for (long[] p: planes)
+                if (p[0] >= now - RATE_WINDOW_NS)
+                    count += p[1];
+        }
+        double seconds = Math.min(now - start, RATE_WINDOW_NS) / 1e9;
+        return((seconds > 0) ? count / seconds : 0);
+    }
+
+
+    @Override
+    public Map<String, String> getWorkerStages() {
+        Map<String, String> stages = new TreeMap<>();
+        for (Map.Entry<Thread, String[]> entry: workers.entrySet()) {
+            String[] current = entry.getValue();
+            stages.put(entry.getKey().getName(), current[0] + ((current[1] != null) ? " " + current[1] : "") + " " + current[2]);
+        }
+        return(stages);
+    }
+
+
+    @Override
+    public long getHeapHeadroomBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return(runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory()));
+    }
+
+
+    @Override
+    public double getImageLatencyP50Seconds() {
+        return(latencyPercentile(0.5));
+    }
+
+
+    @Override
+    public double getImageLatencyP95Seconds() {
+        return(latencyPercentile(0.95));
+    }
+
+
+    /**
+     * Metrics in Prometheus text exposition format
+     */
+    String prometheusText() {
+        StringBuilder text = new StringBuilder();
+        metric(text, "images_done_total", "counter", "Images analyzed", getImagesDone());
+        metric(text, "images_failed_total", "counter", "Images that could not be analyzed", getImagesFailed());
+        metric(text, "images_queued", "gauge", "Images queued or running", getImagesQueued());
+        text.append("# HELP sox9_pv_cfos_cells_detected_total Cells kept after filtering\n# TYPE sox9_pv_cfos_cells_detected_total counter\n");
+        for (Map.Entry<String, Long> entry: getCellsDetected().entrySet())
+            text.append("sox9_pv_cfos_cells_detected_total{channel=\"").append(label(entry.getKey())).append("\"} ").append(entry.getValue()).append("\n");
+        metric(text, "inference_planes_per_second", "gauge", "Planes through StarDist prediction per second over the last minute", getInferencePlanesPerSecond());
+        text.append("# HELP sox9_pv_cfos_worker_stage Stage running in each worker\n# TYPE sox9_pv_cfos_worker_stage gauge\n");
+        for (Map.Entry<Thread, String[]> entry: workers.entrySet()) {
+            String[] current = entry.getValue();
+            text.append("sox9_pv_cfos_worker_stage{worker=\"").append(label(entry.getKey().getName()))
+                .append("\",image=\"").append(label(current[0])).append("\",channel=\"").append(label(current[1]))
+                .append("\",stage=\"").append(label(current[2])).append("\"} 1\n");
+        }
+        metric(text, "heap_headroom_bytes", "gauge", "Heap that can still be allocated", getHeapHeadroomBytes());
+        text.append("# HELP sox9_pv_cfos_image_latency_seconds Analysis time of the last images\n# TYPE sox9_pv_cfos_image_latency_seconds summary\n");
+        text.append("sox9_pv_cfos_image_latency_seconds{quantile=\"0.5\"} ").append(getImageLatencyP50Seconds()).append("\n");
+        text.append("sox9_pv_cfos_image_latency_seconds{quantile=\"0.95\"} ").append(getImageLatencyP95Seconds()).append("\n");
+        return(text.toString());
+    }
+
+
+    private static void metric(StringBuilder text, String name, String type, String help, double value) {
+        text.append("# HELP sox9_pv_cfos_").append(name).append(" ").append(help).append("\n");
+        text.append("# TYPE sox9_pv_cfos_").append(name).append(" ").append(type).append("\n");
+        text.append("sox9_pv_cfos_").append(name).append(" ").append(value).append("\n");
+    }
+
+
+    private static String label(String value) {
+        return((value == null) ? "" : value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"));
+    }
+
+
+    /**
+     * Unregister MXBean and stop endpoint
+     */
+    @Override
+    public void close() {
+        if (server != null)
+            server.stop(0);
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException ex) {
+                StarDist2D.console().println("Cannot unregister batch metrics MBean: " + ex.getMessage());
+            }
+        }
+    }
+}
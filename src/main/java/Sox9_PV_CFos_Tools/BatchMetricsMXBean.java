@@ -0,0 +1,34 @@
+package Sox9_PV_CFos_Tools;
+
+import java.util.Map;
+
+
+/**
+ * Live progress and throughput of a batch, registered as Sox9_PV_CFos:type=BatchMetrics
+ * @author ORION-CIRB
+ */
+public interface BatchMetricsMXBean {
+
+    long getImagesDone();
+
+    long getImagesFailed();
+
+    /** queued or running */
+    long getImagesQueued();
+
+    /** cells kept after filtering, by channel */
+    Map<String, Long> getCellsDetected();
+
+    /** planes through StarDist prediction per second, over the last minute */
+    double getInferencePlanesPerSecond();
+
+    /** worker thread: image, channel and stage running */
+    Map<String, String> getWorkerStages();
+
+    long getHeapHeadroomBytes();
+
+    /** over the last images */
+    double getImageLatencyP50Seconds();
+
+    double getImageLatencyP95Seconds();
+}
@@ -0,0 +1,673 @@
+package Sox9_PV_CFos_Tools;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.lang.ArrayUtils;
+
+
+/**
+ * Analyze all series of a list of images in parallel and write results
+ * @author ORION-CIRB
+ */
+public class BatchProcessor {
+
+    /**
+     * One series of an image file, with its dimensions and pixel size from metadata
+     */
+    public static class WorkItem {
+        public final String file;
+        public final int series;
+        public final String name;
+        public final int width, height, depth, bytesPerPixel;
+        public final double pixelWidth;
+
+        public WorkItem(String file, int series, int nbSeries, int width, int height, int depth, int bytesPerPixel, double pixelWidth) {
+            this.file = file;
+            this.series = series;
+            String rootName = FilenameUtils.getBaseName(file);
+            this.name = (nbSeries > 1) ? rootName + "_series" + series : rootName;
+            this.width = width;
+            this.height = height;
+            this.depth = depth;
+            this.bytesPerPixel = bytesPerPixel;
+            this.pixelWidth = pixelWidth;
+        }
+    }
+
+    // Stages reported to tools.stageListener, detection is split in Tools and StarDist2D stages
+    public static final String STAGE_OPEN = "open";
+    public static final String STAGE_LOAD = "load";
+    public static final String STAGE_BACKGROUND = "background";
+    public static final String STAGE_DETECTION = "detection";
+    public static final String STAGE_MEASUREMENT = "measurement";
+    public static final String STAGE_DRAWING = "drawing";
+    public static final String STAGE_ZARR = "zarr";
+    public static final String STAGE_QC = "qc"; // projection in workers, drawing in overlay writers
+    public static final String STAGE_SAVING = "saving"; // in overlay writer threads
+    public static final String STAGE_WRITING = "writing";
+
+    private final Tools tools;
+    private final ReaderCache readers;
+    private final String[] channels;
+    private final String outDir;
+    private BufferedWriter resultsSox9;
+    private BufferedWriter resultsPv;
+    private BatchManifest manifest;
+    private StageRecorder stageRecorder = null;
+    private BatchMetrics metrics = null;
+    private OverlayWriter overlayWriter = null;
+    private QcThumbnails qc = null;
+    private CellStore cellStore = null;
+    private final SummaryStats summary = new SummaryStats();
+    private MemoryBudget memory = null;
+    private StageListener previousListener = null;
+
+
+    /**
+     * @param channels names of Sox9, CFos and PV channels chosen in dialog
+     */
+    public BatchProcessor(Tools tools, ReaderCache readers, String[] channels, String outDir) {
+        this.tools = tools;
+        this.readers = readers;
+        this.channels = channels;
+        this.outDir = outDir;
+    }
+
+
+    /**
+     * List all series of the images
+     */
+    public List<WorkItem> findWorkItems(List<String> imageFiles) throws ServiceException, FormatException, IOException {
+        ArrayList<WorkItem> items = new ArrayList<>();
+        for (String f: imageFiles) {
+            ReaderCache.Entry entry = readers.acquire(f);
+            ImageProcessorReader reader = entry.reader;
+            int[][] dims;
+            synchronized (reader) {
+                dims = new int[reader.getSeriesCount()][];
+                for (int s = 0; s < dims.length; s++) {
+                    reader.setSeries(s);
+                    dims[s] = new int[]{reader.getSizeX(), reader.getSizeY(), reader.getSizeZ(), FormatTools.getBytesPerPixel(reader.getPixelType())};
+                }
+            }
+            // calibration locks entry before reader, outside of reader lock
+            for (int s = 0; s < dims.length; s++) {
+                double pixelWidth;
+                try {
+                    pixelWidth = tools.getImageCalib(entry, s).pixelWidth;
+                } catch (RuntimeException ex) {
+                    pixelWidth = tools.cal.pixelWidth;
+                }
+                items.add(new WorkItem(f, s, dims.length, dims[s][0], dims[s][1], dims[s][2], dims[s][3], pixelWidth));
+            }
+            readers.release(entry);
+        }
+        return(items);
+    }
+
+
+    /**
+     * Write headers of results files, start recording stages if tools.recordStages and metrics if tools.exposeMetrics,
+     * and share tools.memoryFraction of the heap between workers
+     * In resume mode, keep rows of the images completed in a previous run and drop the partial ones
+     */
+    public void openResults(boolean resume) throws IOException {
+        manifest = new BatchManifest(outDir);
+        long[] offsets = resume ? manifest.lastOffsets() : null;
+        previousListener = tools.stageListener;
+        if (tools.recordStages) {
+            stageRecorder = new StageRecorder(outDir, offsets != null, tools.stageListener);
+            tools.stageListener = stageRecorder;
+        }
+        if (tools.exposeMetrics) {
+            metrics = new BatchMetrics(tools.stageListener);
+            metrics.start(tools.metricsPort);
+            tools.stageListener = metrics;
+        }
+        overlayWriter = new OverlayWriter(tools, tools.overlayWriters, tools.overlayQueueSize);
+        memory = MemoryBudget.ofHeap(tools.memoryFraction);
+        tools.print("Memory budget of series analyzed in parallel: " + MemoryBudget.format(memory.getBudget()));
+        if (tools.saveQc)
+            qc = new QcThumbnails(outDir, tools.qcScale);
+        if (tools.saveCellStore)
+            cellStore = new CellStore(new File(outDir), true);
+        if (offsets != null) {
+            tools.print("Resuming run: " + manifest.size() + " series already analyzed");
+            truncate(outDir + "resultsSox9.csv", offsets[0]);
+            truncate(outDir + "resultsPV.csv", offsets[1]);
+            if (new File(outDir, SummaryStats.FILE).exists())
+                summary.read(new File(outDir, SummaryStats.FILE));
+            resultsSox9 = new BufferedWriter(new FileWriter(outDir + "resultsSox9.csv", true));
+            resultsPv = new BufferedWriter(new FileWriter(outDir + "resultsPV.csv", true));
+            return;
+        }
+        resultsSox9 = new BufferedWriter(new FileWriter(outDir + "resultsSox9.csv", false));
+        resultsSox9.write("Image name\tSeries index\tImage vol (µm3)\tSox9 bg\tCFos bg\tSox9 cell label\tCell vol (µm3)"
+                     + "\tSox9 bg-corrected mean int\tSox9 bg-corrected integrated int"
+                     + "\tCFos bg-corrected mean int\tCFos bg-corrected integrated int\n");
+        resultsSox9.flush();
+        resultsPv = new BufferedWriter(new FileWriter(outDir + "resultsPV.csv", false));
+        resultsPv.write("Image name\tSeries index\tImage vol (µm3)\tPV bg\tCFos bg\tPV cell label\tCell vol (µm3)"
+                     + "\tPV bg-corrected mean int\tPV bg-corrected integrated int"
+                     + "\tCFos bg-corrected mean int\tCFos bg-corrected integrated int\n");
+        resultsPv.flush();
+    }
+
+
+    private void truncate(String file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.WRITE)) {
+            if (channel.size() > size)
+                channel.truncate(size);
+        }
+    }
+
+
+    /**
+     * Analyze work items with tools.nbWorkers threads
+     * @return number of work items that failed
+     */
+    public int run(List<WorkItem> items) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(tools.nbWorkers);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (WorkItem item: items) {
+            if (isDone(item)) {
+                tools.print("Skipping " + item.name + ", already analyzed");
+                continue;
+            }
+            queued(item);
+            futures.add(executor.submit(() -> {
+                if (!tryProcess(item))
+                    failed.incrementAndGet();
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future: futures) {
+            try {
+                future.get();
+            } catch (ExecutionException ex) {
+                ex.printStackTrace();
+                failed.incrementAndGet();
+            }
+        }
+        return(failed.get() + drain());
+    }
+
+
+    /**
+     * Wait for overlays and results of processed work items to be saved
+     * @return number of work items whose results could not be saved
+     */
+    public int drain() throws InterruptedException {
+        return(overlayWriter.drain());
+    }
+
+
+    /**
+     * Check if work item was completed, in this run or in a previous one
+     */
+    public boolean isDone(WorkItem item) {
+        return(manifest.isDone(item.name));
+    }
+
+
+    /**
+     * Count work item in metrics queue, before it is given to tryProcess
+     */
+    public void queued(WorkItem item) {
+        if (metrics != null)
+            metrics.itemQueued();
+    }
+
+
+    /**
+     * Process work item once its memory estimate fits in the budget, log errors instead of throwing them
+     * Work items larger than the budget, or running out of memory, are analyzed alone in tiles fitting the budget
+     * @return true if work item was analyzed
+     */
+    public boolean tryProcess(WorkItem item) {
+        boolean ok = false;
+        long estimate = MemoryBudget.estimate(tools, item);
+        boolean lowMemory = !memory.fits(estimate);
+        tools.print(item.name + ": " + MemoryBudget.format(estimate) + " estimated, "
+                    + (lowMemory ? "larger than budget, analyzed alone in tiles" : "analyzed in parallel"));
+        try {
+            try {
+                processInBudget(item, estimate, lowMemory);
+            } catch (OutOfMemoryError err) {
+                if (lowMemory)
+                    throw err;
+                tools.print("Out of memory analyzing " + item.name + ", analyzing it again alone in tiles");
+                processInBudget(item, estimate, true);
+            }
+            ok = true;
+        } catch (Exception | OutOfMemoryError ex) {
+            tools.print("ERROR analyzing " + item.name + ": " + ex);
+            ex.printStackTrace();
+        }
+        if (metrics != null)
+            metrics.itemFinished(item.name, ok);
+        return(ok);
+    }
+
+
+    private void processInBudget(WorkItem item, long estimate, boolean lowMemory) throws Exception {
+        MemoryBudget.Reservation reservation = memory.acquire(lowMemory ? memory.getBudget() : estimate);
+        try {
+            process(item, lowMemory, reservation);
+        } finally {
+            reservation.release();
+        }
+    }
+
+
+    /**
+     * Detect cells of one series and write their measurements
+     * @param lowMemory analyze series in tiles fitting the whole memory budget
+     * @param reservation heap reserved for the series, its overlay share is released by the overlay writer job
+     */
+    public void process(WorkItem item, boolean lowMemory, MemoryBudget.Reservation reservation) throws Exception {
+        tools.print("--- ANALYZING IMAGE " + item.name + " ------");
+        stageStarted(item, null, STAGE_OPEN);
+        ReaderCache.Entry entry = readers.acquire(item.file);
+        MappedTiff tiff = null;
+        try {
+            ImageProcessorReader reader = entry.reader;
+            Calibration imgCal = tools.getImageCalib(entry, item.series);
+            String[] channelNames = tools.findChannels(entry, item.series);
+            int[] indexCh = new int[channels.length];
+            for (int n = 0; n < channels.length; n++) {
+                indexCh[n] = ArrayUtils.indexOf(channelNames, channels[n]);
+                if (indexCh[n] == -1)
+                    throw new IllegalArgumentException("Channel " + channels[n] + " not found in series " + item.series);
+            }
+            tiff = tools.openMappedTiff(item.file, reader);
+            stageEnded(item, null, STAGE_OPEN, 0);
+
+            // Analyze Sox9 channel, channels of tiled series are only read by regions
+            tools.print("- Analyzing Sox9 channel of " + item.name + " -");
+            int tileSize = lowMemory ? memory.tileSize(tools, item, tools.tileMargin(imgCal.pixelWidth)) : tools.tileSize;
+            boolean tiled = tools.isTiled(item.width, item.height, tileSize);
+            ImagePlus imgSox9 = loadChannel(item, reader, tiff, indexCh[0], "Sox9", imgCal, !tiled);
+            double bgSox9 = findBackground(item, "Sox9", imgSox9, tiled);
+            if (tiled) {
+                processTiles(item, reader, tiff, indexCh, imgSox9, bgSox9, imgCal, tileSize);
+                return;
+            }
+            ZarrStore zarr = tools.saveZarr ? new ZarrStore(new File(outDir, item.name + ZarrStore.EXT), Arrays.asList("Sox9", "PV")) : null;
+            stageStarted(item, "Sox9", STAGE_DETECTION);
+            Objects3DIntPopulation popSox9 = tools.stardistDetection(imgSox9, tools.stardistProbThreshSox9, tools.minVolSox9, tools.maxVolSox9, zarr, "Sox9");
+            stageEnded(item, "Sox9", STAGE_DETECTION, popSox9.getNbObjects());
+
+            // Analyze CFos channel
+            tools.print("- Analyzing CFos channel of " + item.name + " -");
+            ImagePlus imgCfos = loadChannel(item, reader, tiff, indexCh[1], "CFos", imgCal, true);
+            double bgCfos = findBackground(item, "CFos", imgCfos, false);
+
+            // Analyze PV channel
+            tools.print("- Analyzing PV channel of " + item.name + " -");
+            ImagePlus imgPv = loadChannel(item, reader, tiff, indexCh[2], "PV", imgCal, true);
+            double bgPv = findBackground(item, "PV", imgPv, false);
+            stageStarted(item, "PV", STAGE_DETECTION);
+            Objects3DIntPopulation popPv = tools.stardistDetection(imgPv, tools.stardistProbThreshPv, tools.minVolPv, tools.maxVolPv, zarr, "PV");
+            stageEnded(item, "PV", STAGE_DETECTION, popPv.getNbObjects());
+
+            // Measure cells
+            tools.print("- Writing and drawing results of " + item.name + " -");
+            double pixVol = imgCal.pixelWidth * imgCal.pixelHeight * imgCal.pixelDepth;
+            double imgVol = imgSox9.getWidth() * imgSox9.getHeight() * imgSox9.getNSlices() * pixVol;
+            CellStore.Batch cellsSox9 = (cellStore != null) ? new CellStore.Batch(item.name, item.series, "Sox9", imgVol, bgSox9, bgCfos, popSox9.getNbObjects()) : null;
+            CellStore.Batch cellsPv = (cellStore != null) ? new CellStore.Batch(item.name, item.series, "PV", imgVol, bgPv, bgCfos, popPv.getNbObjects()) : null;
+            SummaryStats.Aggregate statsSox9 = new SummaryStats.Aggregate(imgVol);
+            SummaryStats.Aggregate statsPv = new SummaryStats.Aggregate(imgVol);
+            stageStarted(item, "Sox9", STAGE_MEASUREMENT);
+            String rowsSox9 = measureCells(item, imgVol, popSox9, imgSox9, bgSox9, imgCfos, bgCfos, cellsSox9, statsSox9);
+            stageEnded(item, "Sox9", STAGE_MEASUREMENT, popSox9.getNbObjects());
+            stageStarted(item, "PV", STAGE_MEASUREMENT);
+            String rowsPv = measureCells(item, imgVol, popPv, imgPv, bgPv, imgCfos, bgCfos, cellsPv, statsPv);
+            stageEnded(item, "PV", STAGE_MEASUREMENT, popPv.getNbObjects());
+
+            // Draw results, overlays keep copies of the channels they show
+            String ext = tools.overlayExtension();
+            ArrayList<String> outputs = new ArrayList<>();
+            ImagePlus labelsSox9 = null, labelsPv = null, overlaySox9 = null, overlayPv = null, overlayCfos = null;
+            if (ext != null || zarr != null) {
+                stageStarted(item, "Sox9", STAGE_DRAWING);
+                labelsSox9 = tools.drawLabels(popSox9, imgSox9);
+                stageEnded(item, "Sox9", STAGE_DRAWING, popSox9.getNbObjects());
+                stageStarted(item, "PV", STAGE_DRAWING);
+                labelsPv = tools.drawLabels(popPv, imgPv);
+                stageEnded(item, "PV", STAGE_DRAWING, popPv.getNbObjects());
+            }
+            if (zarr != null) {
+                outputs.add(item.name + ZarrStore.EXT);
+                saveZarrLabels(item, zarr, "Sox9", labelsSox9);
+                saveZarrLabels(item, zarr, "PV", labelsPv);
+            }
+            if (ext != null) {
+                outputs.add(item.name+"_Sox9"+ext);
+                outputs.add(item.name+"_PV"+ext);
+                stageStarted(item, null, STAGE_DRAWING);
+                overlaySox9 = tools.overlayChannel(imgSox9);
+                overlayPv = tools.overlayChannel(imgPv);
+                overlayCfos = tools.overlayChannel(imgCfos);
+                stageEnded(item, null, STAGE_DRAWING, 0);
+            } else if (zarr != null) {
+                tools.closeImage(labelsSox9);
+                tools.closeImage(labelsPv);
+            }
+            
+            QcThumbnails.Thumbnail thumb = (qc != null) ? projectQc(item, imgSox9, imgPv, imgCfos, popSox9, popPv) : null;
+            
+            // Save overlays in background, then write results once all outputs of the series are saved
+            int nbCells = popSox9.getNbObjects() + popPv.getNbObjects();
+            ImagePlus[] overlays = {labelsSox9, overlaySox9, labelsPv, overlayPv, overlayCfos};
+            MemoryBudget.Reservation overlaysReservation = reservation.split(MemoryBudget.overlayEstimate(tools, item));
+            submitOrRelease(item, overlaysReservation, () -> {
+                if (ext != null) {
+                    stageStarted(item, null, STAGE_SAVING);
+                    tools.saveOverlay(overlays[0], overlays[1], overlays[4], true, outDir+outputs.get(0));
+                    tools.saveOverlay(overlays[2], overlays[3], overlays[4], false, outDir+outputs.get(1));
+                    for (int i: new int[]{1, 3, 4}) {
+                        if (overlays[i] != null)
+                            tools.closeImage(overlays[i]);
+                    }
+                    stageEnded(item, null, STAGE_SAVING, 2);
+                }
+                if (thumb != null) {
+                    stageStarted(item, null, STAGE_QC);
+                    outputs.add(qc.save(thumb));
+                    stageEnded(item, null, STAGE_QC, 1);
+                }
+                stageStarted(item, null, STAGE_WRITING);
+                writeResults(item, rowsSox9, rowsPv, cellsSox9, cellsPv, statsSox9, statsPv, outputs);
+                stageEnded(item, null, STAGE_WRITING, nbCells);
+            });
+
+            tools.closeImage(imgSox9);
+            tools.closeImage(imgCfos);
+            tools.closeImage(imgPv);
+        } finally {
+            if (tiff != null)
+                tiff.close();
+            readers.release(entry);
+        }
+    }
+
+
+    /**
+     * Detect and measure cells of a large series tile by tile, reading only the region of each tile
+     * Cells are kept by the tile owning their centroid and labelled in order of tiles, backgrounds and StarDist normalization
+     * percentiles are those of whole channels
+     * Overlays, zarr labels and QC thumbnails are not drawn for tiled series
+     * @param tileSize size of tile cores, tools.tileSize or the one fitting the memory budget
+     */
+    private void processTiles(WorkItem item, ImageProcessorReader reader, MappedTiff tiff, int[] indexCh, ImagePlus imgSox9, double bgSox9,
+                              Calibration imgCal, int tileSize) throws Exception {
+        ImagePlus imgCfos = null, imgPv = null;
+        OverlayWriter.Job writeJob;
+        try {
+            imgCfos = loadChannel(item, reader, tiff, indexCh[1], "CFos", imgCal, false);
+            double bgCfos = findBackground(item, "CFos", imgCfos, true);
+            imgPv = loadChannel(item, reader, tiff, indexCh[2], "PV", imgCal, false);
+            double bgPv = findBackground(item, "PV", imgPv, true);
+            if (tools.overlayExtension() != null || tools.saveZarr || qc != null)
+                tools.print("Overlays, zarr labels and QC thumbnails are not saved for tiled image " + item.name);
+
+            double pixVol = imgCal.pixelWidth * imgCal.pixelHeight * imgCal.pixelDepth;
+            double imgVol = imgSox9.getWidth() * imgSox9.getHeight() * imgSox9.getNSlices() * pixVol;
+            CellStore.Batch cellsSox9 = (cellStore != null) ? new CellStore.Batch(item.name, item.series, "Sox9", imgVol, bgSox9, bgCfos, 0) : null;
+            CellStore.Batch cellsPv = (cellStore != null) ? new CellStore.Batch(item.name, item.series, "PV", imgVol, bgPv, bgCfos, 0) : null;
+            SummaryStats.Aggregate statsSox9 = new SummaryStats.Aggregate(imgVol);
+            SummaryStats.Aggregate statsPv = new SummaryStats.Aggregate(imgVol);
+            StringBuilder rowsSox9 = new StringBuilder(), rowsPv = new StringBuilder();
+            int nbSox9 = 0, nbPv = 0;
+
+            int margin = tools.tileMargin(imgCal.pixelWidth);
+            if (tools.tileMargin > 0 && tools.tileMargin < margin)
+                tools.print("Tile margin raised from " + tools.tileMargin + " to " + margin + " pixels, the diameter of the largest cell plus StarDist border");
+            // StarDist percentiles of whole channels, the same for all tiles
+            double[][] normSox9 = normalizationBounds(item, "Sox9", imgSox9);
+            double[][] normPv = normalizationBounds(item, "PV", imgPv);
+            List<Tile> tiles = Tile.grid(imgSox9.getWidth(), imgSox9.getHeight(), tileSize, margin);
+            for (Tile tile: tiles) {
+                tools.print("- Analyzing " + tile + " of " + tiles.size() + " tiles of " + item.name + " -");
+                stageStarted(item, null, STAGE_LOAD);
+                ImagePlus tileSox9 = null, tileCfos = null, tilePv = null;
+                try {
+                    tileSox9 = tools.openRegion(imgSox9, tile, item.name + "_Sox9_tile" + tile.index);
+                    tileCfos = tools.openRegion(imgCfos, tile, item.name + "_CFos_tile" + tile.index);
+                    tilePv = tools.openRegion(imgPv, tile, item.name + "_PV_tile" + tile.index);
+                    stageEnded(item, null, STAGE_LOAD, tileSox9.getNSlices());
+
+                    stageStarted(item, "Sox9", STAGE_DETECTION);
+                    Objects3DIntPopulation popSox9 = tools.stardistDetection(tileSox9, tools.stardistProbThreshSox9, tools.minVolSox9, tools.maxVolSox9, normSox9);
+                    tools.keepTileCells(popSox9, tile, nbSox9 + 1);
+                    stageEnded(item, "Sox9", STAGE_DETECTION, popSox9.getNbObjects());
+                    stageStarted(item, "PV", STAGE_DETECTION);
+                    Objects3DIntPopulation popPv = tools.stardistDetection(tilePv, tools.stardistProbThreshPv, tools.minVolPv, tools.maxVolPv, normPv);
+                    tools.keepTileCells(popPv, tile, nbPv + 1);
+                    stageEnded(item, "PV", STAGE_DETECTION, popPv.getNbObjects());
+
+                    stageStarted(item, "Sox9", STAGE_MEASUREMENT);
+                    rowsSox9.append(measureCells(item, imgVol, popSox9, tileSox9, bgSox9, tileCfos, bgCfos, cellsSox9, statsSox9));
+                    stageEnded(item, "Sox9", STAGE_MEASUREMENT, popSox9.getNbObjects());
+                    stageStarted(item, "PV", STAGE_MEASUREMENT);
+                    rowsPv.append(measureCells(item, imgVol, popPv, tilePv, bgPv, tileCfos, bgCfos, cellsPv, statsPv));
+                    stageEnded(item, "PV", STAGE_MEASUREMENT, popPv.getNbObjects());
+                    nbSox9 += popSox9.getNbObjects();
+                    nbPv += popPv.getNbObjects();
+                } finally {
+                    // free off-heap planes of tiles even if detection or measurement failed
+                    closeImages(tileSox9, tileCfos, tilePv);
+                }
+            }
+
+            int nbCells = nbSox9 + nbPv;
+            writeJob = () -> {
+                stageStarted(item, null, STAGE_WRITING);
+                writeResults(item, rowsSox9.toString(), rowsPv.toString(), cellsSox9, cellsPv, statsSox9, statsPv, new ArrayList<>());
+                stageEnded(item, null, STAGE_WRITING, nbCells);
+            };
+        } finally {
+            closeImages(imgSox9, imgCfos, imgPv);
+        }
+        overlayWriter.submit(item.name, writeJob);
+    }
+
+
+    /**
+     * Close images that were opened, null ones are skipped
+     */
+    private void closeImages(ImagePlus... imgs) {
+        for (ImagePlus img: imgs) {
+            if (img != null)
+                tools.closeImage(img);
+        }
+    }
+
+
+    /**
+     * Queue writer job of a work item, releasing the heap reserved for its overlays once the job ends
+     */
+    private void submitOrRelease(WorkItem item, MemoryBudget.Reservation overlaysReservation, OverlayWriter.Job job) throws InterruptedException {
+        try {
+            overlayWriter.submit(item.name, () -> {
+                try {
+                    job.run();
+                } finally {
+                    overlaysReservation.release();
+                }
+            });
+        } catch (InterruptedException | RuntimeException ex) {
+            overlaysReservation.release();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * @param offHeap copy planes out of the heap if tools.planesOffHeap
+     */
+    private ImagePlus loadChannel(WorkItem item, ImageProcessorReader reader, MappedTiff tiff, int index, String channel, Calibration imgCal,
+                                  boolean offHeap) throws IOException {
+        stageStarted(item, channel, STAGE_LOAD);
+        ImagePlus img = tools.openChannel(reader, tiff, item.series, index, item.name + "_" + channel, imgCal);
+        if (offHeap)
+            img = tools.storeOffHeap(img);
+        stageEnded(item, channel, STAGE_LOAD, img.getNSlices());
+        return(img);
+    }
+
+
+    private double findBackground(WorkItem item, String channel, ImagePlus img, boolean byBands) {
+        stageStarted(item, channel, STAGE_BACKGROUND);
+        double bg = tools.findBackground(img, byBands);
+        stageEnded(item, channel, STAGE_BACKGROUND, 0);
+        return(bg);
+    }
+
+
+    private double[][] normalizationBounds(WorkItem item, String channel, ImagePlus img) {
+        stageStarted(item, channel, StarDist2D.STEP_NORMALIZATION);
+        double[][] bounds = tools.normalizationBounds(img);
+        stageEnded(item, channel, StarDist2D.STEP_NORMALIZATION, bounds.length);
+        return(bounds);
+    }
+
+
+    /**
+     * Write labels in zarr store, planes in parallel
+     */
+    private void saveZarrLabels(WorkItem item, ZarrStore zarr, String channel, ImagePlus imgLabels) throws IOException {
+        stageStarted(item, channel, STAGE_ZARR);
+        Calibration labelsCal = imgLabels.getCalibration();
+        ZarrStore.Array labels = zarr.createLabels(channel, imgLabels.getNSlices(), imgLabels.getHeight(), imgLabels.getWidth(),
+                                                   new double[]{labelsCal.pixelDepth, labelsCal.pixelHeight, labelsCal.pixelWidth});
+        labels.writeStack(tools.planesOf(imgLabels));
+        stageEnded(item, channel, STAGE_ZARR, imgLabels.getNSlices());
+    }
+
+
+    /**
+     * Downscaled projections of channels and cells, for QC thumbnail
+     */
+    private QcThumbnails.Thumbnail projectQc(WorkItem item, ImagePlus imgSox9, ImagePlus imgPv, ImagePlus imgCfos,
+                                             Objects3DIntPopulation popSox9, Objects3DIntPopulation popPv) {
+        stageStarted(item, null, STAGE_QC);
+        ChannelPlanes[] planes = {tools.planesOf(imgSox9), tools.planesOf(imgPv), tools.planesOf(imgCfos)};
+        QcThumbnails.Thumbnail thumb = qc.project(item.name, planes, popSox9, popPv);
+        stageEnded(item, null, STAGE_QC, 0);
+        return(thumb);
+    }
+
+
+    private void stageStarted(WorkItem item, String channel, String stage) {
+        if (tools.stageListener != null)
+            tools.stageListener.stageStarted(item.name, channel, stage);
+    }
+
+
+    private void stageEnded(WorkItem item, String channel, String stage, int count) {
+        if (tools.stageListener != null)
+            tools.stageListener.stageEnded(item.name, channel, stage, count);
+    }
+
+
+    /**
+     * Measure volume and background-corrected intensities of cells in their channel and in CFos channel
+     * @param cells filled with the same values for cell store, or null
+     * @param stats updated with each cell
+     */
+    private String measureCells(WorkItem item, double imgVol, Objects3DIntPopulation pop, ImagePlus img, double bg, ImagePlus imgCfos, double bgCfos,
+                                CellStore.Batch cells, SummaryStats.Aggregate stats) {
+        double[] sums = tools.sumIntensities(pop, img);
+        double[] cfosSums = tools.sumIntensities(pop, imgCfos);
+        StringBuilder rows = new StringBuilder();
+        int index = 0;
+        for(Object3DInt cell: pop.getObjects3DInt()) {
+            double volUnit = new MeasureVolume(cell).getVolumeUnit();
+            double volPix = new MeasureVolume(cell).getVolumePix();
+            double corrMeanInt = sums[index]/volPix - bg;
+            double corrIntInt = sums[index] - bg*volPix;
+            double cfosCorrMeanInt = cfosSums[index]/volPix - bgCfos;
+            double cfosCorrIntInt = cfosSums[index] - bgCfos*volPix;
+            stats.add(cfosCorrMeanInt);
+            if (cells != null)
+                cells.add((int) cell.getLabel(), volUnit, corrMeanInt, corrIntInt, cfosCorrMeanInt, cfosCorrIntInt);
+            rows.append(item.name+"\t"+item.series+"\t"+imgVol+"\t"+bg+"\t"+bgCfos+"\t"+cell.getLabel()+"\t"+volUnit+"\t"+corrMeanInt+"\t"+corrIntInt+"\t"+cfosCorrMeanInt+"\t"+cfosCorrIntInt+"\n");
+            index++;
+        }
+        return(rows.toString());
+    }
+
+
+    /**
+     * Append rows of one series to results files, update summary and mark series as completed in manifest
+     * Rows of different series are not interleaved
+     */
+    private synchronized void writeResults(WorkItem item, String rowsSox9, String rowsPv, CellStore.Batch cellsSox9, CellStore.Batch cellsPv,
+                                           SummaryStats.Aggregate statsSox9, SummaryStats.Aggregate statsPv, List<String> outputs) throws IOException {
+        resultsSox9.write(rowsSox9);
+        resultsSox9.flush();
+        resultsPv.write(rowsPv);
+        resultsPv.flush();
+        if (cellStore != null) {
+            cellStore.append(cellsSox9);
+            cellStore.append(cellsPv);
+        }
+        summary.put(item.name, "Sox9", statsSox9);
+        summary.put(item.name, "PV", statsPv);
+        summary.write(new File(outDir, SummaryStats.FILE));
+        long[] offsets = {new File(outDir + "resultsSox9.csv").length(), new File(outDir + "resultsPV.csv").length()};
+        manifest.record(item.name, offsets, outputs);
+    }
+
+
+    /**
+     * Close results files
+     */
+    public void close() throws IOException {
+        if (overlayWriter != null)
+            overlayWriter.close();
+        tools.stageListener = previousListener;
+        if (qc != null)
+            qc.close();
+        if (metrics != null)
+            metrics.close();
+        if (stageRecorder != null)
+            stageRecorder.close();
+        if (cellStore != null)
+            cellStore.close();
+        if (manifest != null)
+            manifest.close();
+        if (resultsSox9 != null)
+            resultsSox9.close();
+        if (resultsPv != null)
+            resultsPv.close();
+    }
+}
@@ -0,0 +1,367 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Columnar binary store of the cells of a results folder, queried without parsing the results CSV files
+ * cells.store holds one block per image and channel: label column then measurement columns, rows sorted by label
+ * cells.index lists blocks with image, channel, series, image-level values and label range, one tab-separated line per block
+ * Blocks are appended by the batch as image results are written; a block written again for an image and channel replaces the previous one
+ * @author ORION-CIRB
+ */
+public class CellStore implements AutoCloseable {
+
+    public static final String DATA_FILE = "cells.store";
+    public static final String INDEX_FILE = "cells.index";
+    public static final String[] COLUMNS = {"vol", "meanInt", "intInt", "cfosMeanInt", "cfosIntInt"};
+    public static final String[] COLUMN_TITLES = {"Cell vol (µm3)", "bg-corrected mean int", "bg-corrected integrated int",
+                                                  "CFos bg-corrected mean int", "CFos bg-corrected integrated int"};
+    private static final int MAGIC = 0x43454c4c; // CELL
+    private static final int HEADER = 8; // magic and number of rows
+
+    /**
+     * Cells of one image and channel, filled by measurement and appended at once
+     */
+    public static class Batch {
+        final String image, channel;
+        final int series;
+        final double imgVol, bg, bgCfos;
+        int rows = 0;
+        int[] labels;
+        final double[][] values = new double[COLUMNS.length][];
+
+        public Batch(String image, int series, String channel, double imgVol, double bg, double bgCfos, int capacity) {
+            this.image = image;
+            this.series = series;
+            this.channel = channel;
+            this.imgVol = imgVol;
+            this.bg = bg;
+            this.bgCfos = bgCfos;
+            labels = new int[Math.max(1, capacity)];
+            for (int c = 0; c < COLUMNS.length; c++)
+                values[c] = new double[labels.length];
+        }
+
+        /**
+         * @param cellValues one value per column of COLUMNS
+         */
+        public void add(int label, double... cellValues) {
+            if (rows == labels.length) {
+                labels = Arrays.copyOf(labels, rows * 2);
+                for (int c = 0; c < COLUMNS.length; c++)
+                    values[c] = Arrays.copyOf(values[c], rows * 2);
+            }
+            labels[rows] = label;
+            for (int c = 0; c < COLUMNS.length; c++)
+                values[c][rows] = cellValues[c];
+            rows++;
+        }
+    }
+
+    /**
+     * Block of cells.store, as listed in cells.index
+     */
+    public static class Block {
+        public final String image, channel;
+        public final int series, rows, minLabel, maxLabel;
+        public final double imgVol, bg, bgCfos;
+        final long offset;
+
+        Block(String line) {
+            String[] f = line.split("\t");
+            offset = Long.parseLong(f[0]);
+            rows = Integer.parseInt(f[1]);
+            channel = f[2];
+            series = Integer.parseInt(f[3]);
+            imgVol = Double.parseDouble(f[4]);
+            bg = Double.parseDouble(f[5]);
+            bgCfos = Double.parseDouble(f[6]);
+            minLabel = Integer.parseInt(f[7]);
+            maxLabel = Integer.parseInt(f[8]);
+            image = f[9];
+        }
+
+        long end() {
+            return(offset + HEADER + (long) rows * (4 + 8 * COLUMNS.length));
+        }
+    }
+
+    private final File dir;
+    private final FileChannel data;
+    private BufferedWriter index = null;
+    // last block of each image and channel, and the same blocks by image and by channel
+    private final LinkedHashMap<String, Block> blocks = new LinkedHashMap<>();
+    private final HashMap<String, List<Block>> byImage = new HashMap<>();
+    private final HashMap<String, List<Block>> byChannel = new HashMap<>();
+
+
+    /**
+     * Open store of results folder, created if writable
+     * Blocks not completely written, e.g. when a run was killed, are dropped
+     */
+    public CellStore(File dir, boolean writable) throws IOException {
+        this.dir = dir;
+        File indexFile = new File(dir, INDEX_FILE);
+        File dataFile = new File(dir, DATA_FILE);
+        if (!writable && !indexFile.exists())
+            throw new IOException("No cells store in " + dir);
+        data = writable ? FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                        : FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        ArrayList<String> lines = new ArrayList<>();
+        long end = 0;
+        if (indexFile.exists()) {
+            try (BufferedReader in = new BufferedReader(new FileReader(indexFile))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    Block block;
+                    try {
+                        block = new Block(line);
+                    } catch (RuntimeException ex) {
+                        break;
+                    }
+                    if (block.offset != end || block.end() > data.size())
+                        break;
+                    end = block.end();
+                    lines.add(line);
+                    blocks.remove(block.image + "\t" + block.channel);
+                    blocks.put(block.image + "\t" + block.channel, block);
+                }
+            }
+        }
+        if (writable) {
+            data.truncate(end);
+            index = new BufferedWriter(new FileWriter(indexFile, false));
+            for (String line: lines)
+                index.write(line + "\n");
+            index.flush();
+        }
+        for (Block block: blocks.values())
+            addToIndexes(block);
+    }
+
+
+    private void addToIndexes(Block block) {
+        byImage.computeIfAbsent(block.image, k -> new ArrayList<>()).add(block);
+        byChannel.computeIfAbsent(block.channel, k -> new ArrayList<>()).add(block);
+    }
+
+
+    /**
+     * Append cells of one image and channel, sorted by label
+     */
+    public synchronized void append(Batch batch) throws IOException {
+        Integer[] order = new Integer[batch.rows];
+        for (int i = 0; i < order.length; i++)
+            order[i] = i;
+        Arrays.sort(order, (a, b) -> Integer.compare(batch.labels[a], batch.labels[b]));
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + batch.rows * (4 + 8 * COLUMNS.length));
+        buffer.putInt(MAGIC).putInt(batch.rows);
+        for (int i: order)
+            buffer.putInt(batch.labels[i]);
+        for (int c = 0; c < COLUMNS.length; c++) {
+            for (int i: order)
+                buffer.putDouble(batch.values[c][i]);
+        }
+        buffer.flip();
+        long offset = data.size();
+        while (buffer.hasRemaining())
+            data.write(buffer, offset + buffer.position());
+        int minLabel = (batch.rows > 0) ? batch.labels[order[0]] : 0;
+        int maxLabel = (batch.rows > 0) ? batch.labels[order[batch.rows-1]] : 0;
+        String line = offset + "\t" + batch.rows + "\t" + batch.channel + "\t" + batch.series + "\t" + batch.imgVol + "\t" + batch.bg
+                      + "\t" + batch.bgCfos + "\t" + minLabel + "\t" + maxLabel + "\t" + batch.image;
+        // index line after the block, so that a block is never listed before it is complete
+        index.write(line + "\n");
+        index.flush();
+        Block block = new Block(line);
+        Block previous = blocks.remove(block.image + "\t" + block.channel);
+        if (previous != null) {
+            byImage.get(previous.image).remove(previous);
+            byChannel.get(previous.channel).remove(previous);
+        }
+        blocks.put(block.image + "\t" + block.channel, block);
+        addToIndexes(block);
+    }
+
+
+    /**
+     * Blocks of an image and/or channel, all blocks if both are null
+     */
+    public synchronized List<Block> find(String image, String channel) {
+        List<Block> found;
+        if (image != null)
+            found = byImage.getOrDefault(image, Collections.emptyList());
+        else if (channel != null)
+            found = byChannel.getOrDefault(channel, Collections.emptyList());
+        else
+            return(new ArrayList<>(blocks.values()));
+        ArrayList<Block> selected = new ArrayList<>();
+        for (Block block: found) {
+            if (channel == null || block.channel.equals(channel))
+                selected.add(block);
+        }
+        return(selected);
+    }
+
+
+    /**
+     * Labels of block cells, in increasing order
+     */
+    public int[] labels(Block block) throws IOException {
+        ByteBuffer buffer = read(block.offset + HEADER, block.rows * 4);
+        int[] labels = new int[block.rows];
+        buffer.asIntBuffer().get(labels);
+        return(labels);
+    }
+
+
+    /**
+     * Values of one column of COLUMNS for block cells, in label order, read without the other columns
+     */
+    public double[] column(Block block, String column) throws IOException {
+        int c = Arrays.asList(COLUMNS).indexOf(column);
+        if (c == -1)
+            throw new IllegalArgumentException("Unknown column " + column + ", expected one of " + String.join(", ", COLUMNS));
+        ByteBuffer buffer = read(block.offset + HEADER + block.rows * (4 + 8L * c), block.rows * 8);
+        double[] values = new double[block.rows];
+        buffer.asDoubleBuffer().get(values);
+        return(values);
+    }
+
+
+    /**
+     * Values of all columns of a cell, null if block has no cell with this label
+     */
+    public double[] cell(Block block, int label) throws IOException {
+        if (label < block.minLabel || label > block.maxLabel)
+            return(null);
+        int row = Arrays.binarySearch(labels(block), label);
+        if (row < 0)
+            return(null);
+        double[] values = new double[COLUMNS.length];
+        for (int c = 0; c < COLUMNS.length; c++)
+            values[c] = read(block.offset + HEADER + block.rows * (4 + 8L * c) + 8L * row, 8).getDouble();
+        return(values);
+    }
+
+
+    private ByteBuffer read(long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.hasRemaining()) {
+            if (data.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Truncated " + new File(dir, DATA_FILE));
+        }
+        buffer.flip();
+        return(buffer);
+    }
+
+
+    /**
+     * Append cells of results CSV files written by previous versions or without store
+     * @return number of blocks appended
+     */
+    public int importResults(File resultsDir) throws IOException {
+        int nbBlocks = 0;
+        for (String name: ResultsMerger.RESULTS_FILES) {
+            File file = new File(resultsDir, name);
+            if (!file.exists())
+                continue;
+            String channel = name.substring("results".length(), name.lastIndexOf('.'));
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                in.readLine();
+                Batch batch = null;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] f = line.split("\t");
+                    if (f.length < 11)
+                        continue;
+                    if (batch == null || !batch.image.equals(f[0])) {
+                        if (batch != null)
+                            append(batch);
+                        nbBlocks++;
+                        batch = new Batch(f[0], Integer.parseInt(f[1]), channel, Double.parseDouble(f[2]),
+                                          Double.parseDouble(f[3]), Double.parseDouble(f[4]), 64);
+                    }
+                    batch.add((int) Double.parseDouble(f[5]), Double.parseDouble(f[6]), Double.parseDouble(f[7]), Double.parseDouble(f[8]),
+                              Double.parseDouble(f[9]), Double.parseDouble(f[10]));
+                }
+                if (batch != null)
+                    append(batch);
+            }
+        }
+        return(nbBlocks);
+    }
+
+
+    /**
+     * Print number of cells and mean of each column by channel, or by image and channel, for blocks of stores
+     * Print values of one cell if label is given
+     */
+    public static void summarize(List<CellStore> stores, String image, String channel, Integer label, boolean byImage, PrintStream out) throws IOException {
+        if (label != null) {
+            out.println("Image\tChannel\tLabel\t" + String.join("\t", COLUMN_TITLES));
+            for (CellStore store: stores) {
+                for (Block block: store.find(image, channel)) {
+                    double[] values = store.cell(block, label);
+                    if (values == null)
+                        continue;
+                    StringBuilder row = new StringBuilder(block.image + "\t" + block.channel + "\t" + label);
+                    for (double v: values)
+                        row.append("\t").append(v);
+                    out.println(row);
+                }
+            }
+            return;
+        }
+        // count and sums of each column by group
+        TreeMap<String, double[]> groups = new TreeMap<>();
+        for (CellStore store: stores) {
+            for (Block block: store.find(image, channel)) {
+                double[] sums = groups.computeIfAbsent(byImage ? block.image + "\t" + block.channel : block.channel,
+                                                       k -> new double[COLUMNS.length + 1]);
+                sums[0] += block.rows;
+                for (int c = 0; c < COLUMNS.length; c++) {
+                    for (double v: store.column(block, COLUMNS[c]))
+                        sums[c+1] += v;
+                }
+            }
+        }
+        StringBuilder header = new StringBuilder(byImage ? "Image\tChannel\tCells" : "Channel\tCells");
+        for (String title: COLUMN_TITLES)
+            header.append("\tMean ").append(title);
+        out.println(header);
+        for (Map.Entry<String, double[]> group: groups.entrySet()) {
+            double[] sums = group.getValue();
+            StringBuilder row = new StringBuilder(group.getKey() + "\t" + (long) sums[0]);
+            for (int c = 1; c < sums.length; c++)
+                row.append("\t").append((sums[0] > 0) ? sums[c] / sums[0] : Double.NaN);
+            out.println(row);
+        }
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        if (index != null)
+            index.close();
+        data.close();
+    }
+}
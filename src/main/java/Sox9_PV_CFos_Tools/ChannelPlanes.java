@@ -0,0 +1,35 @@
+package Sox9_PV_CFos_Tools;
+
+import java.nio.ShortBuffer;
+
+
+/**
+ * Read access to the 16-bit planes of one channel
+ * @author ORION-CIRB
+ */
+public interface ChannelPlanes {
+
+    int getWidth();
+
+    int getHeight();
+
+    int getDepth();
+
+    /**
+     * Return plane z (0-based) as a read-only buffer of width*height unsigned values, row by row
+     */
+    ShortBuffer getPlane(int z);
+
+    /**
+     * Return a region of plane z as a new array of width*height values, row by row
+     */
+    default short[] getRegion(int z, int x, int y, int width, int height) {
+        ShortBuffer plane = getPlane(z);
+        short[] region = new short[width * height];
+        for (int row = 0; row < height; row++) {
+            plane.position((y + row) * getWidth() + x);
+            plane.get(region, row * width, width);
+        }
+        return(region);
+    }
+}
@@ -0,0 +1,196 @@
+package Sox9_PV_CFos_Tools;
+
+import ij.IJ;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.FilenameUtils;
+
+
+/**
+ * Analyze images as they are written in a folder, e.g. by the microscope during an acquisition session
+ * An image is queued once its size and date did not change for tools.watchStableSeconds
+ * Images completed in the results manifest are skipped, so each one is only analyzed once across restarts
+ * Watching stops after tools.watchIdleMinutes without new image (0 to never stop), or when Esc is pressed
+ * @author ORION-CIRB
+ */
+public class FolderWatcher {
+
+    private static final int MAX_ATTEMPTS = 3; // images that cannot be opened are retried, in case they were still written
+
+    /**
+     * Image seen in folder but not queued yet
+     */
+    private static class Pending {
+        long size = -1;
+        long lastModified = -1;
+        long stableSince = 0;
+        int attempts = 0;
+    }
+
+    private final Tools tools;
+    private final BatchProcessor batch;
+    private final String imageDir;
+    private String imageExt;
+    private final LinkedHashMap<String, Pending> pending = new LinkedHashMap<>();
+    private final HashSet<String> queued = new HashSet<>();
+    private final AtomicInteger running = new AtomicInteger(); // work items queued or being analyzed
+    private final List<String> failed = Collections.synchronizedList(new ArrayList<>());
+
+
+    /**
+     * @param imageExt images extension, found with first image if empty
+     */
+    public FolderWatcher(Tools tools, BatchProcessor batch, String imageDir, String imageExt) {
+        this.tools = tools;
+        this.batch = batch;
+        this.imageDir = imageDir;
+        this.imageExt = imageExt;
+    }
+
+
+    /**
+     * Analyze images already in folder and new ones until watching stops
+     * @return number of work items that failed
+     */
+    public int run() throws IOException, InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(tools.nbWorkers);
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Path dir = Paths.get(imageDir);
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            String[] files = new File(imageDir).list();
+            if (files != null) {
+                for (String f: files)
+                    addPending(f);
+            }
+            tools.print("Watching " + imageDir + " for new images, press Esc to stop");
+            IJ.resetEscape();
+            long lastActivity = System.currentTimeMillis();
+            while (!IJ.escapePressed()) {
+                WatchKey key = watcher.poll(1, TimeUnit.SECONDS);
+                if (key != null) {
+                    for (WatchEvent<?> event: key.pollEvents()) {
+                        if (event.kind() != StandardWatchEventKinds.OVERFLOW)
+                            addPending(event.context().toString());
+                        else
+                            rescan();
+                    }
+                    key.reset();
+                }
+                if (queueStableImages(executor) || !pending.isEmpty() || running.get() > 0)
+                    lastActivity = System.currentTimeMillis();
+                if (tools.watchIdleMinutes > 0 && System.currentTimeMillis() - lastActivity > tools.watchIdleMinutes * 60000) {
+                    tools.print("No new image for " + tools.watchIdleMinutes + " min, watching stopped");
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+        return(failed.size() + batch.drain());
+    }
+
+
+    /**
+     * Add files of folder missed after a watch service overflow
+     */
+    private void rescan() {
+        String[] files = new File(imageDir).list();
+        if (files != null) {
+            for (String f: files)
+                addPending(f);
+        }
+    }
+
+
+    private void addPending(String name) {
+        if (name.startsWith("."))
+            return;
+        String ext = FilenameUtils.getExtension(name);
+        if (imageExt.isEmpty()) {
+            imageExt = tools.findImageType(imageDir);
+            if (!imageExt.isEmpty())
+                tools.print("Watching " + imageExt + " images");
+        }
+        String file = imageDir + name;
+        if (ext.equals(imageExt) && !queued.contains(file) && !pending.containsKey(file))
+            pending.put(file, new Pending());
+    }
+
+
+    /**
+     * Queue images whose size did not change for tools.watchStableSeconds
+     * @return true if at least one image was queued
+     */
+    private boolean queueStableImages(ExecutorService executor) {
+        boolean queuedImages = false;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Pending> entry = it.next();
+            File file = new File(entry.getKey());
+            Pending p = entry.getValue();
+            if (!file.exists()) {
+                it.remove();
+                continue;
+            }
+            if (file.length() != p.size || file.lastModified() != p.lastModified) {
+                p.size = file.length();
+                p.lastModified = file.lastModified();
+                p.stableSince = now;
+                continue;
+            }
+            if (p.size == 0 || now - p.stableSince < tools.watchStableSeconds * 1000)
+                continue;
+
+            List<BatchProcessor.WorkItem> items;
+            try {
+                items = batch.findWorkItems(Collections.singletonList(entry.getKey()));
+            } catch (Exception ex) {
+                if (++p.attempts < MAX_ATTEMPTS) {
+                    p.stableSince = now;
+                    continue;
+                }
+                tools.print("ERROR opening " + entry.getKey() + ": " + ex);
+                failed.add(entry.getKey());
+                queued.add(entry.getKey());
+                it.remove();
+                continue;
+            }
+            it.remove();
+            queued.add(entry.getKey());
+            for (BatchProcessor.WorkItem item: items) {
+                if (batch.isDone(item))
+                    continue;
+                tools.print("Queuing " + item.name);
+                running.incrementAndGet();
+                batch.queued(item);
+                executor.submit(() -> {
+                    if (!batch.tryProcess(item))
+                        failed.add(item.name);
+                    running.decrementAndGet();
+                });
+                queuedImages = true;
+            }
+        }
+        return(queuedImages);
+    }
+}
@@ -0,0 +1,413 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import org.apache.commons.lang.ArrayUtils;
+
+
+/**
+ * Command-line entry point running the same analysis as Sox9_PV_CFos without any dialog
+ * Parameters are read from a properties file (--config=file) and/or --key=value arguments, arguments win
+ * Usage: java -Djava.awt.headless=true -cp "Fiji.app/jars/*:Fiji.app/plugins/*" Sox9_PV_CFos_Tools.HeadlessRunner --input=dir [--key=value ...]
+ * @author ORION-CIRB
+ */
+public class HeadlessRunner {
+
+    public static final int EXIT_OK = 0;
+    public static final int EXIT_FAILED_IMAGES = 1; // some series could not be analyzed, others were
+    public static final int EXIT_USAGE = 2; // wrong arguments
+    public static final int EXIT_SETUP = 3; // missing dependency, model, images or channels
+    public static final int EXIT_ERROR = 4; // run aborted
+
+    private static final String USAGE = "Parameters (--key=value or key=value lines of --config file):\n"
+            + "  input              images folder (required)\n"
+            + "  output             results folder (default: new Results_<date> folder in input)\n"
+            + "  channels           Sox9,CFos,PV channel names (default: first three channels)\n"
+            + "  xyCal, zCal        calibration in µm, overrides images metadata\n"
+            + "  probSox9, probPv   StarDist probability thresholds\n"
+            + "  overlap            StarDist overlap threshold\n"
+            + "  minVolSox9, maxVolSox9, minVolPv, maxVolPv   cells volume bounds in µm3\n"
+            + "  workers            series analyzed in parallel\n"
+            + "  planeStorage       heap, direct or mapped: keep channels and drawn labels in the heap, in direct buffers or in memory-mapped temporary files\n"
+            + "  memoryFraction     fraction of max heap shared by series analyzed in parallel (0.75), larger series are analyzed alone in tiles\n"
+            + "  tileSize, tileMargin   analyze images larger than tileSize in XY tiles of this size, overlapping by tileMargin pixels (at least the largest cell diameter)\n"
+            + "  overlay            result overlays: composite (default), deflate or lzw compressed composite, labels or none\n"
+            + "  overlayWriters, overlayQueue   threads saving overlays, and overlays waiting for them before workers wait\n"
+            + "  modelsDir, model   StarDist models folder and model file\n"
+            + "  normalizeJointly   true to normalize whole stacks instead of slice by slice\n"
+            + "  resume             true to continue the last run of input folder, or of output\n"
+            + "  labelCache         true to reuse detections of previous runs\n"
+            + "  savePredictions    true to save StarDist predictions for threshold sweeps\n"
+            + "  zarr               true to save cells labels of each image in <image>.ome.zarr\n"
+            + "  zarrPredictions    true to also save StarDist probability maps in it\n"
+            + "  prefilterArea      true to drop 2D detections of impossible area before 3D association\n"
+            + "  prefilterAreaTolerance  kept areas: from this fraction of the smallest cell section to the largest one divided by it (default 0.25)\n"
+            + "  polygonAssociation true to link StarDist polygons across slices and rasterize labels once at image size\n"
+            + "  cellStore          true to also save cells in columnar cells.store, for --query\n"
+            + "  qc, qcScale        true to save a small PNG of each image with cells outlines in qc/, and its size relative to image (default 0.25)\n"
+            + "  recordStages       true to write time, CPU and allocations of each analysis stage in stages.csv\n"
+            + "  metrics            true to expose live progress as JMX MBean Sox9_PV_CFos:type=BatchMetrics\n"
+            + "  metricsPort        also serve metrics as Prometheus text on http://localhost:<port>/metrics\n"
+            + "  watch              true to keep analyzing images written in input folder until stopped\n"
+            + "  watchStableSeconds time without size change after which a new image is analyzed\n"
+            + "  watchIdleMinutes   stop watching after this time without new image (default 0: never)\n"
+            + "  shardIndex, shardCount   analyze only part shardIndex (0-based) of the images split in shardCount parts of similar size\n"
+            + "Merge mode: --merge=<results folders, comma-separated, or their parent folder> --output=<folder>\n"
+            + "Query mode: --query=<results folders, comma-separated, or their parent folder> [--image=name] [--channel=Sox9|PV] [--label=n]\n"
+            + "            [--byImage] prints cells and mean values by channel, or by image and channel, or values of one cell\n"
+            + "            [--import] first adds cells of results CSV files to the cells store of folders without one";
+
+    // keys of each mode, others are rejected
+    private static final String[] ANALYSIS_KEYS = {"input", "output", "channels", "xyCal", "zCal", "probSox9", "probPv", "overlap",
+            "minVolSox9", "maxVolSox9", "minVolPv", "maxVolPv", "workers", "planeStorage", "memoryFraction", "tileSize", "tileMargin",
+            "overlay", "overlayWriters", "overlayQueue", "modelsDir", "model", "normalizeJointly", "resume", "labelCache", "savePredictions",
+            "zarr", "zarrPredictions", "prefilterArea", "prefilterAreaTolerance", "polygonAssociation", "cellStore", "qc", "qcScale",
+            "recordStages", "metrics", "metricsPort", "watch", "watchStableSeconds", "watchIdleMinutes", "shardIndex", "shardCount", "help"};
+    private static final String[] MERGE_KEYS = {"merge", "output"};
+    private static final String[] QUERY_KEYS = {"query", "image", "channel", "label", "byImage", "import"};
+
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+
+    /**
+     * Run analysis and return exit code
+     */
+    public static int run(String[] args) {
+        return(run(new Tools(), args));
+    }
+
+
+    /**
+     * Run analysis with tools prepared by caller, e.g. with a stage listener or a StarDist predictor, and return exit code
+     */
+    public static int run(Tools tools, String[] args) {
+        Properties params;
+        try {
+            params = parseArgs(args);
+            if (params.getProperty("merge") != null) {
+                checkKeys(params, MERGE_KEYS);
+                return(merge(params));
+            }
+            if (params.getProperty("query") != null) {
+                checkKeys(params, QUERY_KEYS);
+                return(query(params));
+            }
+            checkKeys(params, ANALYSIS_KEYS);
+            if (params.getProperty("input") == null || params.getProperty("help") != null) {
+                System.err.println(USAGE);
+                return(EXIT_USAGE);
+            }
+            applyParams(tools, params);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            System.err.println(USAGE);
+            return(EXIT_USAGE);
+        }
+
+        ReaderCache readers = null;
+        try {
+            if (!tools.checkInstalledModules() || (tools.stardistPredictor == null && !tools.checkStardistModels(tools.stardistModel)))
+                return(EXIT_SETUP);
+
+            String imageDir = new File(params.getProperty("input")).getAbsolutePath() + File.separator;
+            String fileExt = tools.findImageType(imageDir);
+            ArrayList<String> imageFiles = tools.findImages(imageDir, fileExt);
+            if (imageFiles == null || imageFiles.isEmpty()) {
+                System.err.println("ERROR: no images found in " + imageDir);
+                return(EXIT_SETUP);
+            }
+
+            // Calibration and channels of the first image, as in the plugin dialog defaults
+            readers = new ReaderCache(tools.maxOpenReaders);
+            ReaderCache.Entry firstEntry = readers.acquire(imageFiles.get(0));
+            tools.findImageCalib(firstEntry);
+            String[] channelNames = tools.findChannels(firstEntry);
+            readers.release(firstEntry);
+            applyCalibration(tools, params);
+            String[] channels = findChannels(params, channelNames);
+            if (channels == null)
+                return(EXIT_SETUP);
+
+            // Each shard writes in its own folder, merged afterwards with --merge
+            String shardSuffix = (tools.shardCount > 1) ? "_shard" + tools.shardIndex + "of" + tools.shardCount : "";
+            String outDirResults = params.getProperty("output");
+            if (outDirResults != null)
+                outDirResults = new File(outDirResults).getAbsolutePath() + File.separator;
+            else if (tools.resume)
+                outDirResults = tools.findLastResults(imageDir, shardSuffix);
+            if (outDirResults == null)
+                outDirResults = imageDir + "Results_" + new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date()) + shardSuffix + File.separator;
+            new File(outDirResults).mkdirs();
+
+            if (tools.useLabelCache)
+                tools.labelCache = new LabelCache(new File(imageDir, "LabelCache"), (long) (tools.labelCacheMaxGB * 1e9));
+            if (tools.savePredictions) {
+                tools.predictionsDir = outDirResults + "Predictions" + File.separator;
+                new File(tools.predictionsDir).mkdirs();
+            }
+
+            BatchProcessor batch = new BatchProcessor(tools, readers, channels, outDirResults);
+            int failed;
+            try {
+                batch.openResults(tools.resume && BatchManifest.exists(outDirResults));
+                if (tools.watch) {
+                    tools.print("Results in " + outDirResults);
+                    failed = new FolderWatcher(tools, batch, imageDir, fileExt).run();
+                } else {
+                    List<String> shardFiles = Sharding.select(imageFiles, tools.shardIndex, tools.shardCount);
+                    List<BatchProcessor.WorkItem> items = batch.findWorkItems(shardFiles);
+                    tools.print(items.size() + " series to analyze in " + shardFiles.size() + " images, results in " + outDirResults);
+                    failed = batch.run(items);
+                }
+            } finally {
+                batch.close();
+            }
+            tools.print((failed == 0) ? "All done!" : "Done, " + failed + " series failed");
+            return((failed == 0) ? EXIT_OK : EXIT_FAILED_IMAGES);
+        } catch (Exception ex) {
+            System.err.println("ERROR: " + ex);
+            ex.printStackTrace();
+            return(EXIT_ERROR);
+        } finally {
+            try {
+                if (readers != null)
+                    readers.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+
+    /**
+     * Merge results files of shards in output folder
+     */
+    private static int merge(Properties params) {
+        ArrayList<File> dirs = new ArrayList<>();
+        for (String dir: params.getProperty("merge").split("\\s*,\\s*"))
+            dirs.add(new File(dir));
+        List<File> resultsDirs = ResultsMerger.findResultsDirs(dirs);
+        String output = params.getProperty("output");
+        if (output == null) {
+            System.err.println("ERROR: output folder required to merge results");
+            return(EXIT_USAGE);
+        }
+        ResultsMerger merger = new ResultsMerger(resultsDirs);
+        try {
+            merger.merge(new File(output));
+        } catch (IOException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            return(EXIT_SETUP);
+        }
+        System.out.println(resultsDirs.size() + " results folders merged in " + output
+                           + ((merger.getDuplicates() > 0) ? ", " + merger.getDuplicates() + " duplicated series skipped" : ""));
+        return(EXIT_OK);
+    }
+
+
+    /**
+     * Print cells counts and means, or one cell, from cells stores of results folders
+     */
+    private static int query(Properties params) {
+        boolean importResults = getBoolean(params, "import", false);
+        boolean byImage = getBoolean(params, "byImage", false);
+        Integer label = (params.getProperty("label") != null) ? (int) getDouble(params, "label", 0) : null;
+        ArrayList<File> dirs = new ArrayList<>();
+        for (String dir: params.getProperty("query").split("\\s*,\\s*"))
+            dirs.add(new File(dir));
+        ArrayList<CellStore> stores = new ArrayList<>();
+        try {
+            for (File dir: ResultsMerger.findResultsDirs(dirs)) {
+                if (importResults && !new File(dir, CellStore.INDEX_FILE).exists()) {
+                    CellStore store = new CellStore(dir, true);
+                    stores.add(store);
+                    System.err.println(store.importResults(dir) + " images and channels imported in " + dir);
+                } else if (new File(dir, CellStore.INDEX_FILE).exists()) {
+                    stores.add(new CellStore(dir, false));
+                } else {
+                    System.err.println("No cells store in " + dir + ", skipped (use --import)");
+                }
+            }
+            CellStore.summarize(stores, params.getProperty("image"), params.getProperty("channel"), label, byImage, System.out);
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("ERROR: " + ex.getMessage());
+            return(EXIT_SETUP);
+        } finally {
+            for (CellStore store: stores) {
+                try {
+                    store.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+        return(EXIT_OK);
+    }
+
+
+    /**
+     * Read --config file then --key=value arguments
+     */
+    static Properties parseArgs(String[] args) throws IOException {
+        Properties params = new Properties();
+        ArrayList<String> overrides = new ArrayList<>();
+        for (String arg: args) {
+            if (!arg.startsWith("--"))
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            String keyValue = arg.substring(2);
+            if (keyValue.startsWith("config=")) {
+                try (Reader reader = new FileReader(keyValue.substring(7))) {
+                    params.load(reader);
+                }
+            } else {
+                overrides.add(keyValue);
+            }
+        }
+        for (String keyValue: overrides) {
+            int eq = keyValue.indexOf('=');
+            if (eq == -1)
+                params.setProperty(keyValue, "true");
+            else
+                params.setProperty(keyValue.substring(0, eq), keyValue.substring(eq+1));
+        }
+        return(params);
+    }
+
+
+    /**
+     * Set tools parameters given in properties
+     */
+    private static void applyParams(Tools tools, Properties params) {
+        tools.stardistProbThreshSox9 = getDouble(params, "probSox9", tools.stardistProbThreshSox9);
+        tools.stardistProbThreshPv = getDouble(params, "probPv", tools.stardistProbThreshPv);
+        tools.stardistOverlapThresh = getDouble(params, "overlap", tools.stardistOverlapThresh);
+        tools.minVolSox9 = getDouble(params, "minVolSox9", tools.minVolSox9);
+        tools.maxVolSox9 = getDouble(params, "maxVolSox9", tools.maxVolSox9);
+        tools.minVolPv = getDouble(params, "minVolPv", tools.minVolPv);
+        tools.maxVolPv = getDouble(params, "maxVolPv", tools.maxVolPv);
+        tools.nbWorkers = Math.max(1, (int) getDouble(params, "workers", tools.nbWorkers));
+        tools.planeStorage = params.getProperty("planeStorage", tools.planeStorage);
+        if (!ArrayUtils.contains(Tools.PLANE_STORAGES, tools.planeStorage))
+            throw new IllegalArgumentException("planeStorage must be one of " + String.join(", ", Tools.PLANE_STORAGES));
+        tools.memoryFraction = getDouble(params, "memoryFraction", tools.memoryFraction);
+        if (tools.memoryFraction <= 0 || tools.memoryFraction > 1)
+            throw new IllegalArgumentException("memoryFraction must be in ]0, 1]");
+        tools.tileSize = Math.max(0, (int) getDouble(params, "tileSize", tools.tileSize));
+        tools.tileMargin = Math.max(0, (int) getDouble(params, "tileMargin", tools.tileMargin));
+        tools.overlayFormat = params.getProperty("overlay", tools.overlayFormat);
+        if (!ArrayUtils.contains(Tools.OVERLAY_FORMATS, tools.overlayFormat))
+            throw new IllegalArgumentException("overlay must be one of " + String.join(", ", Tools.OVERLAY_FORMATS));
+        tools.overlayWriters = Math.max(1, (int) getDouble(params, "overlayWriters", tools.overlayWriters));
+        tools.overlayQueueSize = Math.max(0, (int) getDouble(params, "overlayQueue", tools.overlayQueueSize));
+        tools.stardistNormalizeJointly = getBoolean(params, "normalizeJointly", tools.stardistNormalizeJointly);
+        tools.resume = getBoolean(params, "resume", tools.resume);
+        tools.useLabelCache = getBoolean(params, "labelCache", tools.useLabelCache);
+        tools.savePredictions = getBoolean(params, "savePredictions", tools.savePredictions);
+        tools.zarrPredictions = getBoolean(params, "zarrPredictions", tools.zarrPredictions);
+        tools.saveZarr = getBoolean(params, "zarr", tools.saveZarr) || tools.zarrPredictions;
+        tools.saveQc = getBoolean(params, "qc", tools.saveQc);
+        tools.prefilterArea = getBoolean(params, "prefilterArea", tools.prefilterArea);
+        tools.prefilterAreaTolerance = getDouble(params, "prefilterAreaTolerance", tools.prefilterAreaTolerance);
+        if (tools.prefilterAreaTolerance <= 0 || tools.prefilterAreaTolerance > 1)
+            throw new IllegalArgumentException("prefilterAreaTolerance must be in ]0, 1]");
+        tools.polygonAssociation = getBoolean(params, "polygonAssociation", tools.polygonAssociation);
+        tools.saveCellStore = getBoolean(params, "cellStore", tools.saveCellStore);
+        tools.qcScale = getDouble(params, "qcScale", tools.qcScale);
+        if (tools.qcScale <= 0 || tools.qcScale > 1)
+            throw new IllegalArgumentException("qcScale must be in ]0, 1]");
+        tools.recordStages = getBoolean(params, "recordStages", tools.recordStages);
+        tools.metricsPort = (int) getDouble(params, "metricsPort", tools.metricsPort);
+        tools.exposeMetrics = getBoolean(params, "metrics", tools.exposeMetrics) || tools.metricsPort > 0;
+        tools.shardIndex = (int) getDouble(params, "shardIndex", tools.shardIndex);
+        tools.shardCount = (int) getDouble(params, "shardCount", tools.shardCount);
+        if (tools.shardCount < 1 || tools.shardIndex < 0 || tools.shardIndex >= tools.shardCount)
+            throw new IllegalArgumentException("shardIndex must be between 0 and shardCount-1");
+        tools.watch = getBoolean(params, "watch", tools.watch);
+        tools.watchStableSeconds = getDouble(params, "watchStableSeconds", tools.watchStableSeconds);
+        tools.watchIdleMinutes = getDouble(params, "watchIdleMinutes", tools.watchIdleMinutes);
+        if (tools.watch && tools.shardCount > 1)
+            throw new IllegalArgumentException("watch cannot be used with shards");
+        // images already analyzed when watching was stopped are skipped at restart
+        if (tools.watch)
+            tools.resume = true;
+        if (params.getProperty("modelsDir") != null)
+            tools.stardistModelsPath = new File(params.getProperty("modelsDir"));
+        tools.stardistModel = params.getProperty("model", tools.stardistModel);
+    }
+
+
+    /**
+     * Calibration given in properties applies to all series, as a calibration changed in the dialog
+     */
+    private static void applyCalibration(Tools tools, Properties params) {
+        double pixelWidth = getDouble(params, "xyCal", tools.cal.pixelWidth);
+        double pixelDepth = getDouble(params, "zCal", tools.cal.pixelDepth);
+        tools.calibOverride = params.getProperty("xyCal") != null || params.getProperty("zCal") != null;
+        tools.cal.pixelHeight = tools.cal.pixelWidth = pixelWidth;
+        tools.cal.pixelDepth = pixelDepth;
+        tools.pixVol = tools.cal.pixelHeight*tools.cal.pixelWidth*tools.cal.pixelDepth;
+    }
+
+
+    /**
+     * Sox9, CFos and PV channels given in properties, first three channels by default
+     */
+    private static String[] findChannels(Properties params, String[] channelNames) {
+        String[] channels = (params.getProperty("channels") != null) ? params.getProperty("channels").split("\\s*,\\s*")
+                                                                      : (String[]) ArrayUtils.subarray(channelNames, 0, 3);
+        if (channels.length != 3) {
+            System.err.println("ERROR: 3 channels expected (Sox9,CFos,PV), images have " + String.join(",", channelNames));
+            return(null);
+        }
+        for (String ch: channels) {
+            if (!ArrayUtils.contains(channelNames, ch)) {
+                System.err.println("ERROR: channel " + ch + " not found in " + String.join(",", channelNames));
+                return(null);
+            }
+        }
+        return(channels);
+    }
+
+
+    /**
+     * Reject keys of another mode or misspelled ones, which would otherwise leave defaults silently
+     */
+    private static void checkKeys(Properties params, String[] keys) {
+        for (String key: params.stringPropertyNames()) {
+            if (!ArrayUtils.contains(keys, key))
+                throw new IllegalArgumentException("Unknown parameter " + key);
+        }
+    }
+
+
+    private static double getDouble(Properties params, String key, double def) {
+        String value = params.getProperty(key);
+        if (value == null)
+            return(def);
+        try {
+            return(Double.parseDouble(value.trim()));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException(key + " must be a number, got " + value);
+        }
+    }
+
+
+    private static boolean getBoolean(Properties params, String key, boolean def) {
+        String value = params.getProperty(key);
+        if (value == null)
+            return(def);
+        if (!value.trim().equalsIgnoreCase("true") && !value.trim().equalsIgnoreCase("false"))
+            throw new IllegalArgumentException(key + " must be true or false, got " + value);
+        return(Boolean.parseBoolean(value.trim()));
+    }
+}
@@ -0,0 +1,147 @@
+package Sox9_PV_CFos_Tools;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * On-disk cache of 16-bit label stacks, keyed by a hash of the input channel and the detection parameters
+ * Entries are gzip-compressed files, least recently used ones are deleted above maxBytes
+ * @author ORION-CIRB
+ */
+public class LabelCache {
+
+    private static final int MAGIC = 0x4c424c53; // "LBLS"
+    private static final String EXT = ".labels.gz";
+
+    private final File dir;
+    private final long maxBytes;
+
+
+    public LabelCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        dir.mkdirs();
+    }
+
+
+    /**
+     * SHA-256 of channel pixels and detection parameters
+     */
+    public String key(ChannelPlanes planes, String params) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        digest.update((planes.getWidth() + "x" + planes.getHeight() + "x" + planes.getDepth() + "|" + params).getBytes(StandardCharsets.UTF_8));
+        byte[] bytes = new byte[2 * 65536];
+        for (int z = 0; z < planes.getDepth(); z++) {
+            ShortBuffer plane = planes.getPlane(z);
+            plane.rewind();
+            while (plane.hasRemaining()) {
+                int n = Math.min(plane.remaining(), bytes.length / 2);
+                for (int i = 0; i < n; i++) {
+                    short v = plane.get();
+                    bytes[2*i] = (byte) (v >> 8);
+                    bytes[2*i+1] = (byte) v;
+                }
+                digest.update(bytes, 0, 2*n);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b: digest.digest())
+            hex.append(String.format("%02x", b));
+        return(hex.toString());
+    }
+
+
+    /**
+     * Return cached label planes, null if not in cache
+     */
+    public short[][] load(String key, int width, int height, int depth) {
+        File file = new File(dir, key + EXT);
+        if (!file.exists())
+            return(null);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || in.readInt() != width || in.readInt() != height || in.readInt() != depth)
+                return(null);
+            short[][] planes = new short[depth][width * height];
+            byte[] bytes = new byte[2 * width * height];
+            for (short[] plane: planes) {
+                in.readFully(bytes);
+                ByteBuffer.wrap(bytes).asShortBuffer().get(plane);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return(planes);
+        } catch (IOException ex) {
+            StarDist2D.console().println("Cannot read cached labels " + file + ": " + ex.getMessage());
+            return(null);
+        }
+    }
+
+
+    /**
+     * Store label planes, written to a temporary file first so that readers never see a partial entry
+     */
+    public void store(String key, short[][] planes, int width, int height) throws IOException {
+        File tmp = File.createTempFile("labels", ".tmp", dir);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(tmp), 1 << 16)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(planes.length);
+            ByteBuffer bytes = ByteBuffer.allocate(2 * width * height);
+            for (short[] plane: planes) {
+                bytes.clear();
+                bytes.asShortBuffer().put(plane);
+                out.write(bytes.array());
+            }
+        } catch (IOException ex) {
+            tmp.delete();
+            throw ex;
+        }
+        Files.move(tmp.toPath(), new File(dir, key + EXT).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        evict();
+    }
+
+
+    /**
+     * Delete least recently used entries until cache size is below maxBytes
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(EXT));
+        if (files == null)
+            return;
+        long total = 0;
+        long[][] entries = new long[files.length][];
+        for (int i = 0; i < files.length; i++) {
+            entries[i] = new long[]{files[i].lastModified(), files[i].length(), i};
+            total += entries[i][1];
+        }
+        Arrays.sort(entries, Comparator.comparingLong(e -> e[0]));
+        for (int i = 0; i < entries.length && total > maxBytes; i++) {
+            if (files[(int) entries[i][2]].delete())
+                total -= entries[i][1];
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package Sox9_PV_CFos_Tools;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.nio.ShortBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Virtual stack of one channel, planes are decoded on demand by the reader
+ * and kept in a small LRU cache
+ * @author ORION-CIRB
+ */
+public class LazyChannelStack extends VirtualStack implements ChannelPlanes {
+
+    private final ImageProcessorReader reader;
+    private final int series;
+    private final int channel;
+    private final int nSlices;
+    private final int bitDepth;
+    private final Map<Integer, ImageProcessor> cache;
+
+
+    /**
+     * Reader must be set to the series when the stack is created, planes are read as unsigned 16-bit values (see Tools.openChannel)
+     */
+    public LazyChannelStack(ImageProcessorReader reader, int series, int channel, int cacheSize) {
+        super(reader.getSizeX(), reader.getSizeY(), null, null);
+        this.reader = reader;
+        this.series = series;
+        this.channel = channel;
+        this.nSlices = reader.getSizeZ();
+        this.bitDepth = FormatTools.getBytesPerPixel(reader.getPixelType()) * 8;
+        this.cache = new LinkedHashMap<Integer, ImageProcessor>(cacheSize + 1, 1f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, ImageProcessor> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+
+    /**
+     * Return plane n (1-based), processor is shared with the cache and must not be modified
+     */
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        synchronized (cache) {
+            ImageProcessor ip = cache.get(n);
+            if (ip == null) {
+                ip = openPlane(n-1);
+                cache.put(n, ip);
+            }
+            return(ip);
+        }
+    }
+
+
+    private ImageProcessor openPlane(int z) {
+        try {
+            synchronized (reader) {
+                reader.setSeries(series);
+                return(reader.openProcessors(reader.getIndex(z, channel, 0))[0]);
+            }
+        } catch (FormatException | IOException ex) {
+            throw new RuntimeException("Cannot read plane " + z + " of channel " + channel, ex);
+        }
+    }
+
+
+    @Override
+    public ShortBuffer getPlane(int z) {
+        ImageProcessor ip = getProcessor(z+1);
+        if (!(ip.getPixels() instanceof short[]))
+            ip = ip.convertToShortProcessor(false);
+        return(ShortBuffer.wrap((short[]) ip.getPixels()).asReadOnlyBuffer());
+    }
+
+
+    /**
+     * Decode only the region, without caching it, so that planes of large images are never decoded whole
+     */
+    @Override
+    public short[] getRegion(int z, int x, int y, int width, int height) {
+        ImageProcessor ip;
+        try {
+            synchronized (reader) {
+                reader.setSeries(series);
+                ip = reader.openProcessors(reader.getIndex(z, channel, 0), x, y, width, height)[0];
+            }
+        } catch (FormatException | IOException ex) {
+            throw new RuntimeException("Cannot read region of plane " + z + " of channel " + channel, ex);
+        }
+        if (!(ip.getPixels() instanceof short[]))
+            ip = ip.convertToShortProcessor(false);
+        return((short[]) ip.getPixels());
+    }
+
+
+    @Override
+    public int getDepth() {
+        return(nSlices);
+    }
+
+
+    @Override
+    public int getSize() {
+        return(nSlices);
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(bitDepth);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Slices cannot be removed from a channel stack");
+    }
+
+
+    /**
+     * Drop all cached planes
+     */
+    public void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
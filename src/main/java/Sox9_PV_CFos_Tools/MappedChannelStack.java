@@ -0,0 +1,94 @@
+package Sox9_PV_CFos_Tools;
+
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ShortBuffer;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Virtual stack of one channel of a memory-mapped TIFF
+ * Planes are zero-copy views of the file, ImageJ processors are copies
+ * @author ORION-CIRB
+ */
+public class MappedChannelStack extends VirtualStack implements ChannelPlanes {
+
+    private final MappedTiff tiff;
+    private final int[] planeIndexes;
+
+
+    /**
+     * Reader gives the plane order of the TIFF file (already set on the same file)
+     */
+    public MappedChannelStack(MappedTiff tiff, ImageProcessorReader reader, int channel) {
+        super(tiff.getWidth(), tiff.getHeight(), null, null);
+        this.tiff = tiff;
+        this.planeIndexes = new int[reader.getSizeZ()];
+        for (int z = 0; z < planeIndexes.length; z++)
+            planeIndexes[z] = reader.getIndex(z, channel, 0);
+    }
+
+
+    @Override
+    public ShortBuffer getPlane(int z) {
+        try {
+            return(tiff.getPlane(planeIndexes[z]));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    /**
+     * Read only the strips or tiles crossing the region, instead of the whole plane
+     */
+    @Override
+    public short[] getRegion(int z, int x, int y, int width, int height) {
+        try {
+            return(tiff.getRegion(planeIndexes[z], x, y, width, height));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        short[] pixels = new short[getWidth() * getHeight()];
+        getPlane(n-1).get(pixels);
+        return(new ShortProcessor(getWidth(), getHeight(), pixels, null));
+    }
+
+
+    @Override
+    public int getDepth() {
+        return(planeIndexes.length);
+    }
+
+
+    @Override
+    public int getSize() {
+        return(planeIndexes.length);
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(16);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Slices cannot be removed from a channel stack");
+    }
+}
@@ -0,0 +1,386 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+
+/**
+ * Memory-mapped access to uncompressed 16-bit BlackIsZero grayscale TIFF files (classic and BigTIFF)
+ * Planes stored in contiguous strips are returned as zero-copy views of the file,
+ * other strip or tile layouts are assembled from the mapped file
+ * @author ORION-CIRB
+ */
+public class MappedTiff implements AutoCloseable {
+
+    private static final int IMAGE_WIDTH = 256;
+    private static final int IMAGE_LENGTH = 257;
+    private static final int BITS_PER_SAMPLE = 258;
+    private static final int COMPRESSION = 259;
+    private static final int PHOTOMETRIC = 262;
+    private static final int BLACK_IS_ZERO = 1;
+    private static final int STRIP_OFFSETS = 273;
+    private static final int SAMPLES_PER_PIXEL = 277;
+    private static final int ROWS_PER_STRIP = 278;
+    private static final int STRIP_BYTE_COUNTS = 279;
+    private static final int TILE_WIDTH = 322;
+    private static final int TILE_LENGTH = 323;
+    private static final int TILE_OFFSETS = 324;
+    private static final int TILE_BYTE_COUNTS = 325;
+    private static final int SAMPLE_FORMAT = 339;
+
+    private final FileChannel channel;
+    private final ByteOrder order;
+    private final boolean bigTiff;
+    private final int width;
+    private final int height;
+    private final ArrayList<Plane> planes = new ArrayList<>();
+
+
+    /**
+     * Layout of one IFD
+     */
+    private static class Plane {
+        long[] offsets;
+        long[] byteCounts;
+        int rowsPerStrip;
+        int tileWidth;
+        int tileHeight;
+        ShortBuffer view;
+    }
+
+
+    private MappedTiff(FileChannel channel, ByteOrder order, boolean bigTiff, int width, int height) {
+        this.channel = channel;
+        this.order = order;
+        this.bigTiff = bigTiff;
+        this.width = width;
+        this.height = height;
+    }
+
+
+    /**
+     * Open file if it is an uncompressed 16-bit BlackIsZero grayscale TIFF, return null otherwise
+     */
+    public static MappedTiff open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            MappedTiff tiff = parse(channel);
+            if (tiff == null)
+                channel.close();
+            return(tiff);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+
+    private static MappedTiff parse(FileChannel channel) throws IOException {
+        if (channel.size() < 16)
+            return(null);
+        ByteBuffer header = read(channel, 0, 16, ByteOrder.LITTLE_ENDIAN);
+        ByteOrder order;
+        if (header.get(0) == 'I' && header.get(1) == 'I')
+            order = ByteOrder.LITTLE_ENDIAN;
+        else if (header.get(0) == 'M' && header.get(1) == 'M')
+            order = ByteOrder.BIG_ENDIAN;
+        else
+            return(null);
+        header.order(order);
+        int magic = header.getShort(2) & 0xffff;
+        boolean bigTiff = (magic == 43);
+        if (magic != 42 && !bigTiff)
+            return(null);
+        long ifdOffset = bigTiff ? header.getLong(8) : header.getInt(4) & 0xffffffffL;
+
+        MappedTiff tiff = null;
+        HashSet<Long> visited = new HashSet<>();
+        while (ifdOffset != 0) {
+            if (ifdOffset >= channel.size() || !visited.add(ifdOffset))
+                return(null);
+            // Read IFD entries
+            int countSize = bigTiff ? 8 : 2;
+            int entrySize = bigTiff ? 20 : 12;
+            ByteBuffer countBuf = read(channel, ifdOffset, countSize, order);
+            long nEntries = bigTiff ? countBuf.getLong(0) : countBuf.getShort(0) & 0xffff;
+            ByteBuffer entries = read(channel, ifdOffset + countSize, (int) (nEntries * entrySize + (bigTiff ? 8 : 4)), order);
+
+            int w = 0, h = 0, bits = 1, compression = 1, photometric = BLACK_IS_ZERO, samples = 1, sampleFormat = 1;
+            Plane plane = new Plane();
+            plane.rowsPerStrip = Integer.MAX_VALUE;
+            for (int e = 0; e < nEntries; e++) {
+                int pos = e * entrySize;
+                int tag = entries.getShort(pos) & 0xffff;
+                long[] values;
+                switch (tag) {
+                    case IMAGE_WIDTH: case IMAGE_LENGTH: case BITS_PER_SAMPLE: case COMPRESSION: case PHOTOMETRIC:
+                    case STRIP_OFFSETS: case SAMPLES_PER_PIXEL: case ROWS_PER_STRIP: case STRIP_BYTE_COUNTS:
+                    case TILE_WIDTH: case TILE_LENGTH: case TILE_OFFSETS: case TILE_BYTE_COUNTS: case SAMPLE_FORMAT:
+                        values = readValues(channel, entries, pos, order, bigTiff);
+                        break;
+                    default:
+                        continue;
+                }
+                if (values == null)
+                    return(null);
+                switch (tag) {
+                    case IMAGE_WIDTH: w = (int) values[0]; break;
+                    case IMAGE_LENGTH: h = (int) values[0]; break;
+                    case BITS_PER_SAMPLE: bits = (int) values[0]; break;
+                    case COMPRESSION: compression = (int) values[0]; break;
+                    case PHOTOMETRIC: photometric = (int) values[0]; break;
+                    case SAMPLES_PER_PIXEL: samples = (int) values[0]; break;
+                    case SAMPLE_FORMAT: sampleFormat = (int) values[0]; break;
+                    case ROWS_PER_STRIP: plane.rowsPerStrip = (int) Math.min(values[0], Integer.MAX_VALUE); break;
+                    case TILE_WIDTH: plane.tileWidth = (int) values[0]; break;
+                    case TILE_LENGTH: plane.tileHeight = (int) values[0]; break;
+                    case STRIP_OFFSETS: case TILE_OFFSETS: plane.offsets = values; break;
+                    case STRIP_BYTE_COUNTS: case TILE_BYTE_COUNTS: plane.byteCounts = values; break;
+                }
+            }
+            // WhiteIsZero and other interpretations are left to Bio-Formats, mapped values would be inverted
+            if (bits != 16 || compression != 1 || photometric != BLACK_IS_ZERO || samples != 1 || sampleFormat != 1 || plane.offsets == null)
+                return(null);
+            if (tiff == null)
+                tiff = new MappedTiff(channel, order, bigTiff, w, h);
+            else if (w != tiff.width || h != tiff.height)
+                return(null);
+            if (!tiff.checkLayout(plane))
+                return(null);
+            tiff.planes.add(plane);
+
+            int next = (int) (nEntries * entrySize);
+            ifdOffset = bigTiff ? entries.getLong(next) : entries.getInt(next) & 0xffffffffL;
+        }
+        return(tiff);
+    }
+
+
+    /**
+     * Read numeric values of an IFD entry (BYTE, SHORT, LONG or LONG8)
+     */
+    private static long[] readValues(FileChannel channel, ByteBuffer entries, int pos, ByteOrder order, boolean bigTiff) throws IOException {
+        int type = entries.getShort(pos + 2) & 0xffff;
+        long count = bigTiff ? entries.getLong(pos + 4) : entries.getInt(pos + 4) & 0xffffffffL;
+        int typeSize;
+        switch (type) {
+            case 1: typeSize = 1; break;
+            case 3: typeSize = 2; break;
+            case 4: typeSize = 4; break;
+            case 16: typeSize = 8; break;
+            default: return(null);
+        }
+        if (count > Integer.MAX_VALUE / 8)
+            return(null);
+        int valuePos = pos + (bigTiff ? 12 : 8);
+        int inlineSize = bigTiff ? 8 : 4;
+        ByteBuffer data;
+        if (count * typeSize <= inlineSize) {
+            data = entries.duplicate().order(order);
+            data.position(valuePos);
+            data = data.slice().order(order);
+        } else {
+            long offset = bigTiff ? entries.getLong(valuePos) : entries.getInt(valuePos) & 0xffffffffL;
+            data = read(channel, offset, (int) (count * typeSize), order);
+        }
+        long[] values = new long[(int) count];
+        for (int i = 0; i < count; i++) {
+            switch (typeSize) {
+                case 1: values[i] = data.get(i) & 0xff; break;
+                case 2: values[i] = data.getShort(2*i) & 0xffff; break;
+                case 4: values[i] = data.getInt(4*i) & 0xffffffffL; break;
+                default: values[i] = data.getLong(8*i);
+            }
+        }
+        return(values);
+    }
+
+
+    private static ByteBuffer read(FileChannel channel, long pos, int length, ByteOrder order) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(order);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new IOException("Unexpected end of TIFF file");
+        }
+        buf.flip();
+        return(buf);
+    }
+
+
+    /**
+     * Check that strips or tiles cover the plane and lie in the file
+     */
+    private boolean checkLayout(Plane plane) throws IOException {
+        if (plane.byteCounts == null || plane.byteCounts.length != plane.offsets.length)
+            return(false);
+        long expected;
+        if (plane.tileWidth > 0) {
+            if (plane.tileHeight <= 0)
+                return(false);
+            long tilesX = (width + plane.tileWidth - 1) / plane.tileWidth;
+            long tilesY = (height + plane.tileHeight - 1) / plane.tileHeight;
+            if (plane.offsets.length != tilesX * tilesY)
+                return(false);
+            expected = 2L * plane.tileWidth * plane.tileHeight;
+            for (int i = 0; i < plane.offsets.length; i++)
+                if (plane.byteCounts[i] < expected || plane.offsets[i] + expected > channel.size())
+                    return(false);
+        } else {
+            int rows = Math.min(plane.rowsPerStrip, height);
+            if (plane.offsets.length != (height + rows - 1) / rows)
+                return(false);
+            for (int i = 0; i < plane.offsets.length; i++) {
+                expected = 2L * width * Math.min(rows, height - (long) i * rows);
+                if (plane.byteCounts[i] < expected || plane.offsets[i] + expected > channel.size())
+                    return(false);
+            }
+        }
+        return(true);
+    }
+
+
+    /**
+     * Check if strips of a plane follow each other in the file
+     */
+    private boolean isContiguous(Plane plane) {
+        if (plane.tileWidth > 0)
+            return(plane.offsets.length == 1 && plane.tileWidth == width && plane.tileHeight == height);
+        int rows = Math.min(plane.rowsPerStrip, height);
+        for (int i = 1; i < plane.offsets.length; i++)
+            if (plane.offsets[i] != plane.offsets[i-1] + 2L * width * rows)
+                return(false);
+        return(2L * width * height <= Integer.MAX_VALUE);
+    }
+
+
+    public int getWidth() {
+        return(width);
+    }
+
+
+    public int getHeight() {
+        return(height);
+    }
+
+
+    public int getPlaneCount() {
+        return(planes.size());
+    }
+
+
+    public ByteOrder getByteOrder() {
+        return(order);
+    }
+
+
+    public boolean isBigTiff() {
+        return(bigTiff);
+    }
+
+
+    /**
+     * Return plane n (IFD index) as a read-only buffer
+     * Zero-copy view of the mapped file when strips are contiguous, assembled copy otherwise
+     */
+    public ShortBuffer getPlane(int n) throws IOException {
+        Plane plane = planes.get(n);
+        synchronized (plane) {
+            if (plane.view == null) {
+                if (isContiguous(plane)) {
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, plane.offsets[0], 2L * width * height);
+                    plane.view = map.order(order).asShortBuffer().asReadOnlyBuffer();
+                } else {
+                    return(assemble(plane));
+                }
+            }
+            return(plane.view.duplicate());
+        }
+    }
+
+
+    /**
+     * Return a region of plane n (IFD index) as a new array of w*h values, row by row
+     * Only strips or tiles crossing the region are mapped, so that a band or tile never costs a whole plane
+     */
+    public short[] getRegion(int n, int x, int y, int w, int h) throws IOException {
+        if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height)
+            throw new IndexOutOfBoundsException("Region " + x + "," + y + " " + w + "x" + h + " out of " + width + "x" + height + " plane");
+        Plane plane = planes.get(n);
+        short[] region = new short[w * h];
+        if (w == 0 || h == 0)
+            return(region);
+        if (plane.tileWidth > 0) {
+            int tilesX = (width + plane.tileWidth - 1) / plane.tileWidth;
+            for (int ty = y / plane.tileHeight; ty <= (y + h - 1) / plane.tileHeight; ty++) {
+                for (int tx = x / plane.tileWidth; tx <= (x + w - 1) / plane.tileWidth; tx++) {
+                    int x0 = tx * plane.tileWidth, y0 = ty * plane.tileHeight;
+                    int xStart = Math.max(x, x0), xEnd = Math.min(x + w, x0 + plane.tileWidth);
+                    int yStart = Math.max(y, y0), yEnd = Math.min(y + h, y0 + plane.tileHeight);
+                    ShortBuffer tile = channel.map(FileChannel.MapMode.READ_ONLY, plane.offsets[ty * tilesX + tx],
+                            2L * plane.tileWidth * plane.tileHeight).order(order).asShortBuffer();
+                    for (int row = yStart; row < yEnd; row++) {
+                        tile.position((row - y0) * plane.tileWidth + xStart - x0);
+                        tile.get(region, (row - y) * w + xStart - x, xEnd - xStart);
+                    }
+                }
+            }
+        } else {
+            int rows = Math.min(plane.rowsPerStrip, height);
+            for (int s = y / rows; s <= (y + h - 1) / rows; s++) {
+                int rowStart = Math.max(y, s * rows), rowEnd = Math.min(y + h, s * rows + rows);
+                // rows of the strip from the first pixel of the region to the last one
+                long start = plane.offsets[s] + 2L * ((long) (rowStart - s * rows) * width + x);
+                long length = 2L * ((long) (rowEnd - rowStart - 1) * width + w);
+                ShortBuffer strip = channel.map(FileChannel.MapMode.READ_ONLY, start, length).order(order).asShortBuffer();
+                for (int row = rowStart; row < rowEnd; row++) {
+                    strip.position((row - rowStart) * width);
+                    strip.get(region, (row - y) * w, w);
+                }
+            }
+        }
+        return(region);
+    }
+
+
+    private ShortBuffer assemble(Plane plane) throws IOException {
+        short[] pixels = new short[width * height];
+        if (plane.tileWidth > 0) {
+            int tilesX = (width + plane.tileWidth - 1) / plane.tileWidth;
+            for (int t = 0; t < plane.offsets.length; t++) {
+                ShortBuffer tile = channel.map(FileChannel.MapMode.READ_ONLY, plane.offsets[t], 2L * plane.tileWidth * plane.tileHeight)
+                        .order(order).asShortBuffer();
+                int x0 = (t % tilesX) * plane.tileWidth;
+                int y0 = (t / tilesX) * plane.tileHeight;
+                int w = Math.min(plane.tileWidth, width - x0);
+                int h = Math.min(plane.tileHeight, height - y0);
+                for (int y = 0; y < h; y++) {
+                    tile.position(y * plane.tileWidth);
+                    tile.get(pixels, (y0 + y) * width + x0, w);
+                }
+            }
+        } else {
+            int rows = Math.min(plane.rowsPerStrip, height);
+            for (int s = 0; s < plane.offsets.length; s++) {
+                int h = Math.min(rows, height - s * rows);
+                ShortBuffer strip = channel.map(FileChannel.MapMode.READ_ONLY, plane.offsets[s], 2L * width * h)
+                        .order(order).asShortBuffer();
+                strip.get(pixels, s * rows * width, width * h);
+            }
+        }
+        return(ShortBuffer.wrap(pixels).asReadOnlyBuffer());
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,186 @@
+package Sox9_PV_CFos_Tools;
+
+import java.util.ArrayDeque;
+
+
+/**
+ * Heap needed to analyze a series, estimated from its dimensions, and admission of series in a heap budget
+ * A series only starts when its estimate fits next to the series already running; a series larger than the whole budget
+ * takes it all and is analyzed alone, in tiles small enough to fit
+ * Series are admitted in order of request, so that a large one is not overtaken forever by smaller ones
+ * @author ORION-CIRB
+ */
+public class MemoryBudget {
+
+    public static final int RAYS = 32; // rays of StarDist 2D models (StandardFluo)
+    private static final double CELL_FRACTION = 0.2; // fraction of voxels in cells, for populations of both channels
+    private static final int VOXEL_BYTES = 32; // VoxelInt of a population, reference included
+    private static final int MIN_TILE_SIZE = 256;
+
+    /**
+     * Bytes reserved in the budget, part of which can be handed to another thread with split
+     */
+    public class Reservation {
+        private long bytes;
+
+        private Reservation(long bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * Move up to bytes of this reservation to a new one, released on its own
+         */
+        public synchronized Reservation split(long part) {
+            long moved = Math.min(part, this.bytes);
+            this.bytes -= moved;
+            return(new Reservation(moved));
+        }
+
+        /**
+         * Give bytes back to the budget, once
+         */
+        public void release() {
+            long freed;
+            synchronized (this) {
+                freed = bytes;
+                bytes = 0;
+            }
+            MemoryBudget.this.release(freed);
+        }
+    }
+
+    private final long budget;
+    private long reserved = 0;
+    private final ArrayDeque<Object> waiting = new ArrayDeque<>(); // turns of acquire calls, first one admitted first
+
+
+    /**
+     * @param budget bytes of heap shared by the series analyzed in parallel
+     */
+    public MemoryBudget(long budget) {
+        this.budget = budget;
+    }
+
+
+    /**
+     * Budget as a fraction of the maximal heap
+     */
+    public static MemoryBudget ofHeap(double fraction) {
+        return(new MemoryBudget((long) (Runtime.getRuntime().maxMemory() * fraction)));
+    }
+
+
+    public long getBudget() {
+        return(budget);
+    }
+
+
+    /**
+     * Heap needed for each XY pixel of a series of depth planes:
+     * cached planes of 3 channels, downscaled and normalized StarDist input, CNN outputs of one frame,
+     * labels at StarDist and image size, cells of both populations, and labels and channel copies of overlays
+     * Channels, drawn labels and overlay copies do not count if they are kept out of the heap
+     */
+    public static long bytesPerXYPixel(Tools tools, int depth, int bytesPerPixel) {
+        double scale2 = Tools.STARDIST_DOWNSCALE * Tools.STARDIST_DOWNSCALE;
+        boolean offHeap = tools.planesOffHeap();
+        double bytes = (offHeap ? 0 : 3 * Math.min(depth, tools.planeCacheSize) * (bytesPerPixel + 2))
+                     + depth * scale2 * (2 + 4)
+                     + scale2 * (1 + RAYS) * 4 * 2
+                     + depth * (scale2 * 2 + 2)
+                     + 2 * depth * CELL_FRACTION * VOXEL_BYTES;
+        if (!offHeap && tools.overlayExtension() == null && tools.saveZarr)
+            bytes += 2 * depth * 2;
+        return((long) Math.ceil(bytes) + overlayBytesPerXYPixel(tools, depth));
+    }
+
+
+    /**
+     * Part of bytesPerXYPixel held by overlay writers after the series is analyzed:
+     * labels and channel copies given to the writer job, and the composite it merges
+     */
+    public static long overlayBytesPerXYPixel(Tools tools, int depth) {
+        if (tools.overlayExtension() == null)
+            return(0);
+        long bytes = 0;
+        if (!tools.planesOffHeap()) {
+            bytes += 2 * depth * 2;
+            if (tools.overlayChannelsSaved())
+                bytes += 3 * depth * 2;
+        }
+        if (tools.overlayFormat.equals(Tools.OVERLAY_COMPOSITE))
+            bytes += 3 * depth * 2;
+        return(bytes);
+    }
+
+
+    /**
+     * Heap held by the overlay writer job of a series analyzed whole
+     */
+    public static long overlayEstimate(Tools tools, BatchProcessor.WorkItem item) {
+        return((long) item.width * item.height * overlayBytesPerXYPixel(tools, item.depth));
+    }
+
+
+    /**
+     * Heap needed to analyze a series, or one of its tiles with margins if it is analyzed in tiles
+     */
+    public static long estimate(Tools tools, BatchProcessor.WorkItem item) {
+        long width = item.width, height = item.height;
+        if (tools.isTiled(item.width, item.height, tools.tileSize)) {
+            int margin = tools.tileMargin(item.pixelWidth);
+            width = Math.min(width, tools.tileSize + 2L * margin);
+            height = Math.min(height, tools.tileSize + 2L * margin);
+        }
+        return(width * height * bytesPerXYPixel(tools, item.depth, item.bytesPerPixel));
+    }
+
+
+    /**
+     * Size of tiles whose estimate, margins included, fits in the whole budget
+     */
+    public int tileSize(Tools tools, BatchProcessor.WorkItem item, int margin) {
+        double side = Math.sqrt((double) budget / bytesPerXYPixel(tools, item.depth, item.bytesPerPixel)) - 2 * margin;
+        return(Math.max(MIN_TILE_SIZE, (int) side));
+    }
+
+
+    /**
+     * Check if bytes can ever be admitted next to other series
+     */
+    public boolean fits(long bytes) {
+        return(bytes <= budget);
+    }
+
+
+    /**
+     * Wait until previous requests are admitted and bytes fit in the budget next to the series already admitted,
+     * the whole budget being taken by larger requests
+     * @return reservation, to be released once its heap is freed
+     */
+    public synchronized Reservation acquire(long bytes) throws InterruptedException {
+        long request = Math.min(bytes, budget);
+        Object turn = new Object();
+        waiting.add(turn);
+        try {
+            while (waiting.peek() != turn || (reserved > 0 && reserved + request > budget))
+                wait();
+        } finally {
+            waiting.remove(turn);
+            notifyAll();
+        }
+        reserved += request;
+        return(new Reservation(request));
+    }
+
+
+    private synchronized void release(long bytes) {
+        reserved -= bytes;
+        notifyAll();
+    }
+
+
+    public static String format(long bytes) {
+        return(String.format("%.1f MB", bytes / 1048576.0));
+    }
+}
@@ -0,0 +1,174 @@
+package Sox9_PV_CFos_Tools;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Virtual stack of 16-bit planes kept out of the heap, in direct buffers or in a memory-mapped temporary file,
+ * so that channels and labels of large images do not weigh on garbage collection
+ * Planes are freed by close, not by the garbage collector: buffers given by getPlane must not be used after it
+ * @author ORION-CIRB
+ */
+public class OffHeapStack extends VirtualStack implements ChannelPlanes, AutoCloseable {
+
+    private final ByteBuffer[] planes;
+    private final File file; // backing file of mapped planes, null for direct buffers
+    private boolean closed = false;
+
+
+    private OffHeapStack(int width, int height, ByteBuffer[] planes, File file) {
+        super(width, height, null, null);
+        this.planes = planes;
+        this.file = file;
+    }
+
+
+    /**
+     * Stack of planes filled with 0
+     * @param mapped map planes from a temporary file instead of allocating direct buffers
+     */
+    public static OffHeapStack allocate(int width, int height, int depth, boolean mapped) throws IOException {
+        long planeBytes = 2L * width * height;
+        ByteBuffer[] planes = new ByteBuffer[depth];
+        if (!mapped) {
+            for (int z = 0; z < depth; z++)
+                planes[z] = ByteBuffer.allocateDirect((int) planeBytes).order(ByteOrder.nativeOrder());
+            return(new OffHeapStack(width, height, planes, null));
+        }
+        File file = File.createTempFile("planes", ".raw");
+        file.deleteOnExit();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"); FileChannel channel = raf.getChannel()) {
+            raf.setLength(planeBytes * depth);
+            for (int z = 0; z < depth; z++)
+                planes[z] = channel.map(FileChannel.MapMode.READ_WRITE, z * planeBytes, planeBytes).order(ByteOrder.nativeOrder());
+        } catch (IOException ex) {
+            for (ByteBuffer plane: planes)
+                free(plane);
+            file.delete();
+            throw ex;
+        }
+        return(new OffHeapStack(width, height, planes, file));
+    }
+
+
+    /**
+     * Copy all planes of a channel
+     */
+    public static OffHeapStack copyOf(ChannelPlanes source, boolean mapped) throws IOException {
+        OffHeapStack stack = allocate(source.getWidth(), source.getHeight(), source.getDepth(), mapped);
+        for (int z = 0; z < source.getDepth(); z++)
+            stack.getWritablePlane(z).put(source.getPlane(z));
+        return(stack);
+    }
+
+
+    @Override
+    public synchronized ShortBuffer getPlane(int z) {
+        return(getWritablePlane(z).asReadOnlyBuffer());
+    }
+
+
+    /**
+     * Return plane z (0-based) as a buffer of the stack, to fill it
+     */
+    public synchronized ShortBuffer getWritablePlane(int z) {
+        if (closed)
+            throw new IllegalStateException("Planes of stack are already freed");
+        return(planes[z].duplicate().order(ByteOrder.nativeOrder()).asShortBuffer());
+    }
+
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        short[] pixels = new short[getWidth() * getHeight()];
+        getPlane(n-1).get(pixels);
+        return(new ShortProcessor(getWidth(), getHeight(), pixels, null));
+    }
+
+
+    @Override
+    public int getDepth() {
+        return(planes.length);
+    }
+
+
+    @Override
+    public int getSize() {
+        return(planes.length);
+    }
+
+
+    @Override
+    public int getBitDepth() {
+        return(16);
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return(null);
+    }
+
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new UnsupportedOperationException("Slices cannot be removed from an off-heap stack");
+    }
+
+
+    /**
+     * Free all planes now and delete backing file
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        for (int z = 0; z < planes.length; z++) {
+            free(planes[z]);
+            planes[z] = null;
+        }
+        if (file != null)
+            file.delete();
+    }
+
+
+    /**
+     * Release memory of a direct or mapped buffer, with its cleaner (Java 9+ Unsafe.invokeCleaner, Java 8 DirectBuffer.cleaner)
+     * If neither is accessible, memory is left to the garbage collector
+     */
+    private static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect())
+            return;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+        } catch (NoSuchMethodException ex) {
+            try {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null)
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+            } catch (ReflectiveOperationException | RuntimeException ex8) {
+                StarDist2D.console().println("Cannot free off-heap planes, left to garbage collector: " + ex8);
+            }
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            StarDist2D.console().println("Cannot free off-heap planes, left to garbage collector: " + ex);
+        }
+    }
+}
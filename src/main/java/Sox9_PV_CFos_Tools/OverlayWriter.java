@@ -0,0 +1,97 @@
+package Sox9_PV_CFos_Tools;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Pool saving result overlays in background, so workers go on with the next image
+ * At most queueSize jobs wait for a writer: submit blocks when queue is full, so that drawn images do not pile up in memory
+ * @author ORION-CIRB
+ */
+public class OverlayWriter implements AutoCloseable {
+
+    /**
+     * Saving job, may throw
+     */
+    public interface Job {
+        void run() throws Exception;
+    }
+
+    private final Tools tools;
+    private final ExecutorService executor;
+    private final int permits;
+    private final Semaphore slots;
+    private final AtomicInteger failed = new AtomicInteger();
+
+
+    public OverlayWriter(Tools tools, int nbWriters, int queueSize) {
+        this.tools = tools;
+        AtomicInteger index = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(nbWriters, r -> new Thread(r, "overlay-writer-" + index.incrementAndGet()));
+        permits = nbWriters + queueSize;
+        slots = new Semaphore(permits);
+    }
+
+
+    /**
+     * Queue job of a work item, wait while queue is full
+     */
+    public void submit(String item, Job job) throws InterruptedException {
+        slots.acquire();
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } catch (Exception ex) {
+                    tools.print("ERROR saving results of " + item + ": " + ex);
+                    ex.printStackTrace();
+                    failed.incrementAndGet();
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            slots.release();
+            throw ex;
+        }
+    }
+
+
+    /**
+     * Wait for queued jobs
+     * @return number of jobs that failed since last call
+     */
+    public int drain() throws InterruptedException {
+        slots.acquire(permits);
+        slots.release(permits);
+        return(failed.getAndSet(0));
+    }
+
+
+    /**
+     * Wait for queued jobs and stop writers, interrupts are kept for after them so that results files are not closed under a job
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+                    return;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+}
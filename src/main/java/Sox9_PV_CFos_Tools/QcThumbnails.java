@@ -0,0 +1,213 @@
+package Sox9_PV_CFos_Tools;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.imageio.ImageIO;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.VoxelInt;
+
+
+/**
+ * Small PNG per image for quick review of detections: downscaled max projections of Sox9, PV and CFos channels side by side,
+ * with outlines of Sox9 cells (yellow) and PV cells (cyan), and qc/index.html showing all thumbnails of the results folder
+ * Projections are computed by the workers, PNG are drawn and saved by overlay writers
+ * @author ORION-CIRB
+ */
+public class QcThumbnails implements AutoCloseable {
+
+    public static final String DIR = "qc";
+    private static final int SOX9_OUTLINE = 0xffff00;
+    private static final int PV_OUTLINE = 0x00ffff;
+
+    /**
+     * Downscaled projections of one image
+     */
+    public static class Thumbnail {
+        final String name;
+        final int width, height;
+        final float[][] channels; // Sox9, PV, CFos
+        final int[][] labels; // Sox9, PV
+        final int[] counts;
+
+        Thumbnail(String name, int width, int height, float[][] channels, int[][] labels, int[] counts) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.labels = labels;
+            this.counts = counts;
+        }
+    }
+
+    private final File dir;
+    private final double scale;
+    private final BufferedWriter index;
+
+
+    /**
+     * @param scale size of thumbnails relative to images
+     */
+    public QcThumbnails(String outDir, double scale) throws IOException {
+        this.scale = scale;
+        dir = new File(outDir, DIR);
+        dir.mkdirs();
+        // appended, so that resumed and watched runs keep thumbnails of previous images in index
+        index = Files.newBufferedWriter(new File(dir, "index.tsv").toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+
+    /**
+     * Max project and downscale channels, project cells at thumbnail resolution
+     * @param channels Sox9, PV and CFos channels
+     */
+    public Thumbnail project(String name, ChannelPlanes[] channels, Objects3DIntPopulation popSox9, Objects3DIntPopulation popPv) {
+        int width = channels[0].getWidth(), height = channels[0].getHeight();
+        int w = Math.max(1, (int) Math.round(width * scale)), h = Math.max(1, (int) Math.round(height * scale));
+        int[] xs = new int[width], ys = new int[height];
+        for (int x = 0; x < width; x++)
+            xs[x] = (int) ((long) x * w / width);
+        for (int y = 0; y < height; y++)
+            ys[y] = (int) ((long) y * h / height);
+
+        float[][] projections = new float[channels.length][];
+        for (int c = 0; c < channels.length; c++) {
+            int[] max = new int[width * height];
+            for (int z = 0; z < channels[c].getDepth(); z++) {
+                ShortBuffer plane = channels[c].getPlane(z);
+                for (int i = 0; i < max.length; i++)
+                    max[i] = Math.max(max[i], plane.get(i) & 0xffff);
+            }
+            // box average of the pixels falling in each thumbnail pixel
+            float[] sums = new float[w * h];
+            int[] n = new int[w * h];
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    int j = ys[y] * w + xs[x];
+                    sums[j] += max[y * width + x];
+                    n[j]++;
+                }
+            }
+            for (int j = 0; j < sums.length; j++)
+                sums[j] /= Math.max(1, n[j]);
+            projections[c] = sums;
+        }
+        int[][] labels = {projectCells(popSox9, xs, ys, w, h), projectCells(popPv, xs, ys, w, h)};
+        return(new Thumbnail(name, w, h, projections, labels, new int[]{popSox9.getNbObjects(), popPv.getNbObjects()}));
+    }
+
+
+    private int[] projectCells(Objects3DIntPopulation pop, int[] xs, int[] ys, int w, int h) {
+        int[] labels = new int[w * h];
+        int label = 0;
+        for (Object3DInt cell: pop.getObjects3DInt()) {
+            label++;
+            for (Object3DPlane plane: cell.getObject3DPlanes()) {
+                for (VoxelInt v: plane.getVoxels()) {
+                    if (v.getX() >= 0 && v.getX() < xs.length && v.getY() >= 0 && v.getY() < ys.length)
+                        labels[ys[v.getY()] * w + xs[v.getX()]] = label;
+                }
+            }
+        }
+        return(labels);
+    }
+
+
+    /**
+     * Draw thumbnail in qc/<name>.png and add it to index
+     * @return file name relative to results folder
+     */
+    public String save(Thumbnail thumb) throws IOException {
+        int w = thumb.width, h = thumb.height;
+        BufferedImage png = new BufferedImage(w * 3, h, BufferedImage.TYPE_INT_RGB);
+        int[][][] outlines = {{thumb.labels[0]}, {thumb.labels[1]}, {thumb.labels[0], thumb.labels[1]}};
+        int[][] colors = {{SOX9_OUTLINE}, {PV_OUTLINE}, {SOX9_OUTLINE, PV_OUTLINE}};
+        for (int c = 0; c < 3; c++) {
+            float[] proj = thumb.channels[c];
+            float[] sorted = Arrays.copyOf(proj, proj.length);
+            Arrays.sort(sorted);
+            float min = sorted[(int) (0.01 * (sorted.length - 1))], max = sorted[(int) (0.999 * (sorted.length - 1))];
+            float range = Math.max(1, max - min);
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    int i = y * w + x;
+                    int grey = (int) Math.max(0, Math.min(255, (proj[i] - min) * 255 / range));
+                    int rgb = (grey << 16) | (grey << 8) | grey;
+                    for (int o = 0; o < outlines[c].length; o++) {
+                        if (isOutline(outlines[c][o], x, y, w, h))
+                            rgb = colors[c][o];
+                    }
+                    png.setRGB(c * w + x, y, rgb);
+                }
+            }
+        }
+        String file = thumb.name + ".png";
+        ImageIO.write(png, "png", new File(dir, file));
+        synchronized (index) {
+            index.write(thumb.name + "\t" + thumb.counts[0] + "\t" + thumb.counts[1] + "\n");
+            index.flush();
+        }
+        return(DIR + "/" + file);
+    }
+
+
+    /**
+     * Cell pixel with a 4-neighbour out of the cell
+     */
+    private static boolean isOutline(int[] labels, int x, int y, int w, int h) {
+        int label = labels[y * w + x];
+        if (label == 0)
+            return(false);
+        return(x == 0 || labels[y * w + x - 1] != label || x == w - 1 || labels[y * w + x + 1] != label
+            || y == 0 || labels[(y - 1) * w + x] != label || y == h - 1 || labels[(y + 1) * w + x] != label);
+    }
+
+
+    /**
+     * Write qc/index.html with all thumbnails of the results folder, last ones first
+     */
+    @Override
+    public void close() throws IOException {
+        index.close();
+        Map<String, String> images = new LinkedHashMap<>();
+        for (String line: Files.readAllLines(new File(dir, "index.tsv").toPath(), StandardCharsets.UTF_8)) {
+            String[] cols = line.split("\t");
+            if (cols.length == 3) {
+                images.remove(cols[0]);
+                images.put(cols[0], "Sox9 " + cols[1] + ", PV " + cols[2]);
+            }
+        }
+        StringBuilder html = new StringBuilder();
+        html.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Sox9 PV CFos QC</title>\n<style>\n")
+            .append("body { font-family: sans-serif; background: #222; color: #ddd; }\n")
+            .append("figure { display: inline-block; margin: 6px; } img { width: 480px; image-rendering: pixelated; }\n")
+            .append("figcaption { font-size: 12px; }\n</style></head><body>\n")
+            .append("<p>").append(images.size()).append(" images: Sox9, PV and CFos max projections, Sox9 cells in yellow, PV cells in cyan</p>\n");
+        List<String> names = Arrays.asList(images.keySet().toArray(new String[0]));
+        for (int i = names.size() - 1; i >= 0; i--) {
+            String name = names.get(i);
+            String src = URLEncoder.encode(name + ".png", "UTF-8").replace("+", "%20");
+            html.append("<figure><a href=\"").append(src).append("\"><img src=\"").append(src).append("\" loading=\"lazy\"></a>")
+                .append("<figcaption>").append(escape(name)).append(": ").append(images.get(name)).append("</figcaption></figure>\n");
+        }
+        html.append("</body></html>\n");
+        Files.write(new File(dir, "index.html").toPath(), html.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static String escape(String text) {
+        return(text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;"));
+    }
+}
@@ -0,0 +1,131 @@
+package Sox9_PV_CFos_Tools;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Mergeable quantile sketch with relative error (DDSketch): values are counted in logarithmic buckets,
+ * so that sketches of images and shards are merged by adding bucket counts, and quantiles are within ACCURACY of exact ones
+ * @author ORION-CIRB
+ */
+public class QuantileSketch {
+
+    public static final double ACCURACY = 0.01;
+    private static final double GAMMA = (1 + ACCURACY) / (1 - ACCURACY);
+    private static final double LOG_GAMMA = Math.log(GAMMA);
+    private static final double MIN_VALUE = 1e-9; // smaller magnitudes are counted as 0
+
+    private final TreeMap<Integer, Long> positives = new TreeMap<>();
+    private final TreeMap<Integer, Long> negatives = new TreeMap<>();
+    private long zeros = 0;
+    private long count = 0;
+
+
+    public void add(double value) {
+        if (Double.isNaN(value))
+            return;
+        count++;
+        if (Math.abs(value) < MIN_VALUE)
+            zeros++;
+        else
+            (value > 0 ? positives : negatives).merge(bucket(Math.abs(value)), 1L, Long::sum);
+    }
+
+
+    public void merge(QuantileSketch other) {
+        for (Map.Entry<Integer, Long> b: other.positives.entrySet())
+            positives.merge(b.getKey(), b.getValue(), Long::sum);
+        for (Map.Entry<Integer, Long> b: other.negatives.entrySet())
+            negatives.merge(b.getKey(), b.getValue(), Long::sum);
+        zeros += other.zeros;
+        count += other.count;
+    }
+
+
+    public long getCount() {
+        return(count);
+    }
+
+
+    /**
+     * Value of quantile q in [0, 1], NaN if sketch is empty
+     */
+    public double quantile(double q) {
+        if (count == 0)
+            return(Double.NaN);
+        long rank = (long) Math.floor(q * (count - 1));
+        long seen = 0;
+        // negatives from the largest magnitude, then zeros, then positives from the smallest one
+        for (Map.Entry<Integer, Long> b: negatives.descendingMap().entrySet()) {
+            seen += b.getValue();
+            if (seen > rank)
+                return(-value(b.getKey()));
+        }
+        seen += zeros;
+        if (seen > rank)
+            return(0);
+        for (Map.Entry<Integer, Long> b: positives.entrySet()) {
+            seen += b.getValue();
+            if (seen > rank)
+                return(value(b.getKey()));
+        }
+        return(value(positives.lastKey()));
+    }
+
+
+    private static int bucket(double magnitude) {
+        return((int) Math.ceil(Math.log(magnitude) / LOG_GAMMA));
+    }
+
+
+    private static double value(int bucket) {
+        return(2 * Math.pow(GAMMA, bucket) / (GAMMA + 1));
+    }
+
+
+    /**
+     * Buckets as text, e.g. "z2 p101:3,102:1 n-5:1", read back by parse
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("z" + zeros);
+        appendBuckets(text, " p", positives);
+        appendBuckets(text, " n", negatives);
+        return(text.toString());
+    }
+
+
+    private static void appendBuckets(StringBuilder text, String prefix, TreeMap<Integer, Long> buckets) {
+        text.append(prefix);
+        boolean first = true;
+        for (Map.Entry<Integer, Long> b: buckets.entrySet()) {
+            text.append(first ? "" : ",").append(b.getKey()).append(":").append(b.getValue());
+            first = false;
+        }
+    }
+
+
+    public static QuantileSketch parse(String text) {
+        QuantileSketch sketch = new QuantileSketch();
+        for (String part: text.trim().split(" ")) {
+            if (part.isEmpty())
+                continue;
+            if (part.charAt(0) == 'z') {
+                sketch.zeros = Long.parseLong(part.substring(1));
+                sketch.count += sketch.zeros;
+                continue;
+            }
+            TreeMap<Integer, Long> buckets = (part.charAt(0) == 'p') ? sketch.positives : sketch.negatives;
+            if (part.length() == 1)
+                continue;
+            for (String b: part.substring(1).split(",")) {
+                int colon = b.lastIndexOf(':');
+                long n = Long.parseLong(b.substring(colon+1));
+                buckets.merge(Integer.parseInt(b.substring(0, colon)), n, Long::sum);
+                sketch.count += n;
+            }
+        }
+        return(sketch);
+    }
+}
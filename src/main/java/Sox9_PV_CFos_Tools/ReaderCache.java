@@ -0,0 +1,211 @@
+package Sox9_PV_CFos_Tools;
+
+import ij.measure.Calibration;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+import loci.formats.services.OMEXMLService;
+import loci.plugins.util.ImageProcessorReader;
+
+
+/**
+ * Opened readers and parsed metadata of the images of a run,
+ * keyed by file path and modification time so that each file header is parsed once
+ * @author ORION-CIRB
+ */
+public class ReaderCache implements AutoCloseable {
+
+    /**
+     * Opened reader of a file with its metadata, channel names and calibration of each series found once
+     * Reader is shared by all series of the file, synchronize on it around setSeries and reads
+     */
+    public static class Entry {
+        public final String file;
+        public final long lastModified;
+        public final ImageProcessorReader reader;
+        public final IMetadata meta;
+        final HashMap<Integer, String[]> channels = new HashMap<>();
+        final HashMap<Integer, Calibration> cals = new HashMap<>();
+        private int users = 0;
+
+        private Entry(String file, long lastModified, ImageProcessorReader reader, IMetadata meta) {
+            this.file = file;
+            this.lastModified = lastModified;
+            this.reader = reader;
+            this.meta = meta;
+        }
+    }
+
+    /**
+     * Header of a file being parsed by one thread, other threads asking for the file wait for it
+     */
+    private static class Opening {
+        final FutureTask<Entry> task;
+        int users = 1;
+
+        Opening(Callable<Entry> open) {
+            task = new FutureTask<>(open);
+        }
+    }
+
+    private final OMEXMLService service;
+    private final int maxOpenReaders;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<String, Opening> openings = new HashMap<>();
+
+
+    /**
+     * @param maxOpenReaders readers not in use are closed above this number
+     */
+    public ReaderCache(int maxOpenReaders) throws DependencyException {
+        this.service = new ServiceFactory().getInstance(OMEXMLService.class);
+        this.maxOpenReaders = maxOpenReaders;
+    }
+
+
+    /**
+     * Return entry of file, parsing its header only if not already opened or if file changed since
+     * Headers are parsed out of the cache lock, so that other threads get opened readers or parse other files meanwhile;
+     * threads asking for a file being parsed wait for the same entry
+     * Entry must be given back with release when done
+     */
+    public Entry acquire(String file) throws ServiceException, FormatException, IOException {
+        long lastModified = new File(file).lastModified();
+        Opening opening;
+        boolean opener = false;
+        synchronized (this) {
+            Entry entry = entries.get(file);
+            if (entry != null && entry.lastModified != lastModified) {
+                entries.remove(file);
+                if (entry.users == 0)
+                    entry.reader.close();
+                entry = null;
+            }
+            if (entry != null) {
+                entry.users++;
+                evict();
+                return(entry);
+            }
+            opening = openings.get(file);
+            if (opening != null) {
+                opening.users++;
+            } else {
+                opening = new Opening(() -> open(file, lastModified));
+                openings.put(file, opening);
+                opener = true;
+            }
+        }
+        if (opener)
+            opening.task.run();
+        return(await(opening.task));
+    }
+
+
+    /**
+     * Parse file header, then register entry with the users waiting for it
+     */
+    private Entry open(String file, long lastModified) throws ServiceException, FormatException, IOException {
+        Entry entry = null;
+        try {
+            IMetadata meta = service.createOMEXMLMetadata();
+            ImageProcessorReader reader = new ImageProcessorReader();
+            reader.setMetadataStore(meta);
+            try {
+                reader.setId(file);
+            } catch (FormatException | IOException | RuntimeException ex) {
+                reader.close();
+                throw ex;
+            }
+            entry = new Entry(file, lastModified, reader, meta);
+            return(entry);
+        } finally {
+            synchronized (this) {
+                Opening opening = openings.remove(file);
+                if (entry != null) {
+                    entry.users = opening.users;
+                    entries.put(file, entry);
+                    evict();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Wait for an entry being opened, interrupts are kept for after it so that the entry is not left counted as used
+     */
+    private static Entry await(FutureTask<Entry> task) throws ServiceException, FormatException, IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return(task.get());
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof ServiceException)
+                throw (ServiceException) cause;
+            if (cause instanceof FormatException)
+                throw (FormatException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw new IOException(cause);
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Give back an entry obtained with acquire
+     */
+    public synchronized void release(Entry entry) throws IOException {
+        entry.users--;
+        if (entry.users == 0 && entries.get(entry.file) != entry)
+            entry.reader.close();
+        else
+            evict();
+    }
+
+
+    /**
+     * Close least recently used readers that are not in use
+     */
+    private void evict() throws IOException {
+        Iterator<Entry> it = entries.values().iterator();
+        while (entries.size() > maxOpenReaders && it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.users == 0) {
+                it.remove();
+                entry.reader.close();
+            }
+        }
+    }
+
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Entry entry: new ArrayList<>(entries.values()))
+            entry.reader.close();
+        entries.clear();
+    }
+}
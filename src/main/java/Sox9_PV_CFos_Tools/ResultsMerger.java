@@ -0,0 +1,147 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+
+/**
+ * Merge results files and summaries of several results folders, e.g. written by the shards of an array job
+ * Headers must be identical; rows of a series found in several folders are only kept from the first one
+ * @author ORION-CIRB
+ */
+public class ResultsMerger {
+
+    public static final String[] RESULTS_FILES = {"resultsSox9.csv", "resultsPV.csv"};
+
+    private final List<File> dirs;
+    private final HashSet<String> duplicates = new HashSet<>();
+
+
+    public ResultsMerger(List<File> dirs) {
+        this.dirs = dirs;
+    }
+
+
+    /**
+     * Results folders to merge: the given folders, or the subfolders with results of a single given folder
+     */
+    public static List<File> findResultsDirs(List<File> dirs) {
+        if (dirs.size() == 1 && !new File(dirs.get(0), RESULTS_FILES[0]).exists()) {
+            File[] subDirs = dirs.get(0).listFiles(f -> f.isDirectory() && new File(f, RESULTS_FILES[0]).exists());
+            if (subDirs != null) {
+                Arrays.sort(subDirs);
+                return(Arrays.asList(subDirs));
+            }
+        }
+        return(dirs);
+    }
+
+
+    /**
+     * Write merged results files in outDir
+     * @throws IOException if a results file is missing or headers differ, nothing is written then
+     */
+    public void merge(File outDir) throws IOException {
+        for (String name: RESULTS_FILES)
+            checkHeaders(name);
+        outDir.mkdirs();
+        for (String name: RESULTS_FILES)
+            mergeFile(name, new File(outDir, name));
+        mergeSummaries(new File(outDir, SummaryStats.FILE));
+    }
+
+
+    /**
+     * Check that all folders have a results file with the same columns
+     */
+    private void checkHeaders(String name) throws IOException {
+        String header = null;
+        for (File dir: dirs) {
+            File file = new File(dir, name);
+            if (!file.exists())
+                throw new IOException("Missing " + file);
+            String fileHeader;
+            try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                fileHeader = in.readLine();
+            }
+            if (header == null)
+                header = fileHeader;
+            else if (fileHeader != null && !header.equals(fileHeader))
+                throw new IOException("Columns of " + file + " differ from the other results:\n" + fileHeader + "\n" + header);
+        }
+    }
+
+
+    /**
+     * Series found in more than one folder, their rows are only written once
+     */
+    public int getDuplicates() {
+        return(duplicates.size());
+    }
+
+
+    /**
+     * Merge summaries of folders that have one, with their run rows recomputed from image rows
+     */
+    private void mergeSummaries(File outFile) throws IOException {
+        SummaryStats summary = new SummaryStats();
+        boolean found = false;
+        for (File dir: dirs) {
+            File file = new File(dir, SummaryStats.FILE);
+            if (file.exists()) {
+                summary.read(file);
+                found = true;
+            }
+        }
+        if (found)
+            summary.write(outFile);
+    }
+
+
+    private void mergeFile(String name, File outFile) throws IOException {
+        String header = null;
+        // first folder where each series (image name + series index) was found
+        HashMap<String, File> owners = new HashMap<>();
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(outFile, false))) {
+            for (File dir: dirs) {
+                File file = new File(dir, name);
+                try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+                    String fileHeader = in.readLine();
+                    if (fileHeader == null)
+                        continue;
+                    if (header == null) {
+                        header = fileHeader;
+                        out.write(header + "\n");
+                    }
+                    ArrayList<String> skipped = new ArrayList<>();
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        String[] fields = line.split("\t", 3);
+                        if (fields.length < 2)
+                            continue;
+                        String series = fields[0] + "\t" + fields[1];
+                        File owner = owners.putIfAbsent(series, dir);
+                        if (owner != null && !owner.equals(dir)) {
+                            if (!skipped.contains(series)) {
+                                skipped.add(series);
+                                duplicates.add(series);
+                                System.out.println("Duplicate " + fields[0] + " series " + fields[1] + " in " + dir + ", kept rows of " + owner);
+                            }
+                            continue;
+                        }
+                        out.write(line + "\n");
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+
+
+/**
+ * Split a list of images between shards of an array job
+ * Biggest files are given first to the least loaded shard, so that all shards get about the same number of bytes
+ * All shards compute the same split as long as they see the same files, whatever their listing order
+ * @author ORION-CIRB
+ */
+public class Sharding {
+
+    /**
+     * Images of shard shardIndex (0-based) among shardCount shards, in the order of the given list
+     */
+    public static List<String> select(List<String> images, int shardIndex, int shardCount) {
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount)
+            throw new IllegalArgumentException("Shard index must be between 0 and " + (shardCount-1) + ", got " + shardIndex);
+        if (shardCount == 1)
+            return(images);
+        String[] sorted = images.toArray(new String[0]);
+        long[] sizes = new long[sorted.length];
+        Arrays.sort(sorted, Comparator.comparingLong((String f) -> -new File(f).length()).thenComparing(f -> new File(f).getName()));
+        for (int i = 0; i < sorted.length; i++)
+            sizes[i] = new File(sorted[i]).length();
+
+        long[] loads = new long[shardCount];
+        HashSet<String> selected = new HashSet<>();
+        for (int i = 0; i < sorted.length; i++) {
+            int shard = 0;
+            for (int s = 1; s < shardCount; s++)
+                if (loads[s] < loads[shard])
+                    shard = s;
+            loads[shard] += Math.max(1, sizes[i]);
+            if (shard == shardIndex)
+                selected.add(sorted[i]);
+        }
+        ArrayList<String> result = new ArrayList<>();
+        for (String f: images)
+            if (selected.contains(f))
+                result.add(f);
+        return(result);
+    }
+}
@@ -0,0 +1,23 @@
+package Sox9_PV_CFos_Tools;
+
+
+/**
+ * Notified at the start and end of each analysis stage of a work item, e.g. to measure throughput
+ * Called from the worker threads, implementations must be thread-safe
+ * Stages can be nested: detection stages of Tools and StarDist2D run inside the BatchProcessor detection stage
+ * @author ORION-CIRB
+ */
+public interface StageListener {
+
+    /**
+     * @param item work item name, null for the item of the enclosing stage of the calling thread
+     * @param channel channel name, null for stages of the whole item or for the channel of the enclosing stage
+     * @param stage stage name, see BatchProcessor, Tools and StarDist2D
+     */
+    void stageStarted(String item, String channel, String stage);
+
+    /**
+     * @param count number of planes, cells or polygons processed by the stage, 0 if not relevant
+     */
+    void stageEnded(String item, String channel, String stage, int count);
+}
@@ -0,0 +1,132 @@
+package Sox9_PV_CFos_Tools;
+
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+
+/**
+ * Write wall time, CPU time, allocated bytes and count of each stage in a tab-separated file, one row per stage call
+ * CPU time and allocations are those of the calling thread: work done in other threads,
+ * e.g. the CSBDeep network or multithreaded ImageJ filters, only counts in wall time
+ * Nested stages are included in the time of their enclosing stage
+ * @author ORION-CIRB
+ */
+public class StageRecorder implements StageListener, AutoCloseable {
+
+    public static final String FILE_NAME = "stages.csv";
+
+    /**
+     * Started stage, with the counters of its thread at start
+     */
+    private static class Frame {
+        final String item, channel, stage;
+        final long wall, cpu, alloc;
+
+        Frame(String item, String channel, String stage, long wall, long cpu, long alloc) {
+            this.item = item;
+            this.channel = channel;
+            this.stage = stage;
+            this.wall = wall;
+            this.cpu = cpu;
+            this.alloc = alloc;
+        }
+    }
+
+    private final StageListener next;
+    private final BufferedWriter writer;
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.ThreadMXBean allocations;
+    private final long start = System.nanoTime();
+    private final ThreadLocal<Deque<Frame>> frames = ThreadLocal.withInitial(ArrayDeque::new);
+
+
+    /**
+     * @param outDir results folder
+     * @param append keep rows of a previous run
+     * @param next listener also notified of each stage, or null
+     */
+    public StageRecorder(String outDir, boolean append, StageListener next) throws IOException {
+        this.next = next;
+        File file = new File(outDir, FILE_NAME);
+        boolean header = !append || !file.exists();
+        writer = new BufferedWriter(new FileWriter(file, append));
+        if (header) {
+            writer.write("Image name\tChannel\tStage\tThread\tStart (ms)\tWall time (ms)\tCPU time (ms)\tAllocated (bytes)\tCount\n");
+            writer.flush();
+        }
+        allocations = (threads instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported())
+                      ? (com.sun.management.ThreadMXBean) threads : null;
+        if (allocations != null)
+            allocations.setThreadAllocatedMemoryEnabled(true);
+        if (threads.isCurrentThreadCpuTimeSupported())
+            threads.setThreadCpuTimeEnabled(true);
+    }
+
+
+    @Override
+    public void stageStarted(String item, String channel, String stage) {
+        Deque<Frame> stack = frames.get();
+        // nested stages report neither item nor channel
+        Frame parent = stack.peek();
+        if (item == null && parent != null) {
+            item = parent.item;
+            channel = (channel != null) ? channel : parent.channel;
+        }
+        stack.push(new Frame(item, channel, stage, System.nanoTime(), cpuTime(), allocatedBytes()));
+        if (next != null)
+            next.stageStarted(item, channel, stage);
+    }
+
+
+    @Override
+    public void stageEnded(String item, String channel, String stage, int count) {
+        long wall = System.nanoTime(), cpu = cpuTime(), alloc = allocatedBytes();
+        Deque<Frame> stack = frames.get();
+        // stages left open by an exception are dropped
+        while (!stack.isEmpty() && !stack.peek().stage.equals(stage))
+            stack.pop();
+        if (stack.isEmpty())
+            return;
+        Frame frame = stack.pop();
+        String row = frame.item + "\t" + ((frame.channel != null) ? frame.channel : "") + "\t" + stage + "\t" + Thread.currentThread().getName()
+                + "\t" + (frame.wall - start) / 1000000 + "\t" + (wall - frame.wall) / 1e6
+                + "\t" + ((cpu >= 0) ? (cpu - frame.cpu) / 1e6 : "") + "\t" + ((alloc >= 0) ? alloc - frame.alloc : "") + "\t" + count + "\n";
+        synchronized (writer) {
+            try {
+                writer.write(row);
+                // rows of an item are on disk when its outermost stage ends
+                if (stack.isEmpty())
+                    writer.flush();
+            } catch (IOException ex) {
+                StarDist2D.console().println("Cannot write stage timings: " + ex.getMessage());
+            }
+        }
+        if (next != null)
+            next.stageEnded(frame.item, frame.channel, stage, count);
+    }
+
+
+    private long cpuTime() {
+        return(threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1);
+    }
+
+
+    private long allocatedBytes() {
+        return((allocations != null) ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1);
+    }
+
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writer) {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Cells counts, density and CFos intensity distribution of each population, by image and for the whole run,
+ * updated while cells are measured and written in summary.csv with the results
+ * Each row keeps its quantile sketch, so that summaries of resumed runs and of shards are merged without reading cells again
+ * @author ORION-CIRB
+ */
+public class SummaryStats {
+
+    public static final String FILE = "summary.csv";
+    public static final String ALL_IMAGES = "All images";
+    private static final double[] QUANTILES = {0.05, 0.25, 0.5, 0.75, 0.95};
+    private static final String HEADER = "Image name\tPopulation\tCells\tImage vol (µm3)\tDensity (cells/µm3)\tCFos bg-corrected mean int: mean"
+            + "\tp5\tp25\tmedian\tp75\tp95\tSketch";
+
+    /**
+     * Cells of one population in one or several images
+     */
+    public static class Aggregate {
+        long cells = 0;
+        double imgVol = 0;
+        double sumCfos = 0;
+        final QuantileSketch cfos;
+
+        public Aggregate(double imgVol) {
+            this.imgVol = imgVol;
+            cfos = new QuantileSketch();
+        }
+
+        private Aggregate(long cells, double imgVol, double sumCfos, QuantileSketch cfos) {
+            this.cells = cells;
+            this.imgVol = imgVol;
+            this.sumCfos = sumCfos;
+            this.cfos = cfos;
+        }
+
+        /**
+         * @param cfosMeanInt background-corrected mean CFos intensity of a cell
+         */
+        public void add(double cfosMeanInt) {
+            cells++;
+            if (!Double.isNaN(cfosMeanInt)) {
+                sumCfos += cfosMeanInt;
+                cfos.add(cfosMeanInt);
+            }
+        }
+
+        void merge(Aggregate other) {
+            cells += other.cells;
+            imgVol += other.imgVol;
+            sumCfos += other.sumCfos;
+            cfos.merge(other.cfos);
+        }
+    }
+
+    // image and population, in order of completion
+    private final LinkedHashMap<String, Aggregate> images = new LinkedHashMap<>();
+
+
+    /**
+     * Add or replace aggregate of a population of an image
+     */
+    public synchronized void put(String image, String population, Aggregate agg) {
+        images.remove(image + "\t" + population);
+        images.put(image + "\t" + population, agg);
+    }
+
+
+    /**
+     * Add rows of a summary file, keeping rows already present for the same image and population
+     * @return number of rows already present
+     */
+    public synchronized int read(File file) throws IOException {
+        int duplicates = 0;
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            in.readLine();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] f = line.split("\t");
+                if (f.length < 12 || f[0].equals(ALL_IMAGES))
+                    continue;
+                QuantileSketch cfos = QuantileSketch.parse(f[11]);
+                double sumCfos = (cfos.getCount() > 0) ? Double.parseDouble(f[5]) * cfos.getCount() : 0;
+                Aggregate agg = new Aggregate(Long.parseLong(f[2]), Double.parseDouble(f[3]), sumCfos, cfos);
+                if (images.putIfAbsent(f[0] + "\t" + f[1], agg) != null)
+                    duplicates++;
+            }
+        }
+        return(duplicates);
+    }
+
+
+    /**
+     * Write rows of each image then whole run rows of each population, replacing file atomically
+     */
+    public synchronized void write(File file) throws IOException {
+        TreeMap<String, Aggregate> run = new TreeMap<>();
+        File tmp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter out = new BufferedWriter(new FileWriter(tmp, false))) {
+            out.write(HEADER + "\n");
+            for (Map.Entry<String, Aggregate> entry: images.entrySet()) {
+                Aggregate agg = entry.getValue();
+                writeRow(out, entry.getKey(), agg);
+                String population = entry.getKey().substring(entry.getKey().lastIndexOf('\t') + 1);
+                run.computeIfAbsent(population, p -> new Aggregate(0)).merge(agg);
+            }
+            for (Map.Entry<String, Aggregate> entry: run.entrySet())
+                writeRow(out, ALL_IMAGES + "\t" + entry.getKey(), entry.getValue());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    private static void writeRow(BufferedWriter out, String imageAndPopulation, Aggregate agg) throws IOException {
+        long measured = agg.cfos.getCount();
+        StringBuilder row = new StringBuilder(imageAndPopulation + "\t" + agg.cells + "\t" + agg.imgVol + "\t"
+                                              + ((agg.imgVol > 0) ? agg.cells / agg.imgVol : Double.NaN) + "\t"
+                                              + ((measured > 0) ? agg.sumCfos / measured : Double.NaN));
+        for (double q: QUANTILES)
+            row.append("\t").append(agg.cfos.quantile(q));
+        row.append("\t").append(agg.cfos).append("\n");
+        out.write(row.toString());
+    }
+}
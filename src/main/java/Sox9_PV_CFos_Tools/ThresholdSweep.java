@@ -0,0 +1,204 @@
+package Sox9_PV_CFos_Tools;
+
+import Sox9_PV_CFos.StardistOrion.Candidates;
+import Sox9_PV_CFos.StardistOrion.PolygonAssociation;
+import Sox9_PV_CFos.StardistOrion.PredictionStore;
+import Sox9_PV_CFos.StardistOrion.SliceAssociation;
+import Sox9_PV_CFos.StardistOrion.StarDist2D;
+import ij.ImagePlus;
+import ij.gui.PolygonRoi;
+import ij.measure.Calibration;
+import ij.process.ShortProcessor;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Objects3DIntPopulation;
+import mcib3d.geom2.measurements.MeasureVolume;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+
+/**
+ * Detect cells from saved StarDist predictions with a grid of probability and overlap thresholds
+ * The network is not run again: each frame is read once, candidates are built once per probability threshold
+ * and non-maximum suppression is done for each overlap threshold
+ * @author ORION-CIRB
+ */
+public class ThresholdSweep {
+
+    private static final int MAX_LABEL_ID = 65535;
+
+    private final Tools tools;
+    private final double[] probThresholds;
+    private final double[] overlapThresholds;
+    private final double minCellVol;
+    private final double maxCellVol;
+
+
+    public ThresholdSweep(Tools tools, double[] probThresholds, double[] overlapThresholds, double minCellVol, double maxCellVol) {
+        this.tools = tools;
+        this.probThresholds = probThresholds;
+        this.overlapThresholds = overlapThresholds;
+        this.minCellVol = minCellVol;
+        this.maxCellVol = maxCellVol;
+    }
+
+
+    /**
+     * Parse a comma-separated list of thresholds
+     */
+    public static double[] parseThresholds(String list) {
+        String[] values = list.trim().split("\\s*,\\s*");
+        double[] thresholds = new double[values.length];
+        for (int i = 0; i < values.length; i++)
+            thresholds[i] = Double.parseDouble(values[i]);
+        return(thresholds);
+    }
+
+
+    /**
+     * Volumes of the cells detected in a prediction file, for each setting (prob threshold index * nb overlaps + overlap index)
+     * Area filter and association are those recorded in the file, as they were when the image was analyzed
+     */
+    public double[][] sweep(File file) throws IOException {
+        int nbOverlaps = overlapThresholds.length;
+        int nbSettings = probThresholds.length * nbOverlaps;
+        SliceAssociation[] associations = new SliceAssociation[nbSettings];
+        PolygonAssociation[] polygonAssociations = new PolygonAssociation[nbSettings];
+        int[] labelIds = new int[nbSettings];
+
+        PredictionStore.Header header;
+        try (PredictionStore.Reader reader = new PredictionStore.Reader(file)) {
+            header = reader.header;
+            boolean areaFilter = header.minArea > 0 || header.maxArea < Double.POSITIVE_INFINITY;
+            for (int s = 0; s < nbSettings; s++) {
+                if (header.polygonAssociation)
+                    polygonAssociations[s] = new PolygonAssociation(SliceAssociation.MIN_COLOC);
+                else
+                    associations[s] = new SliceAssociation(SliceAssociation.MAX_BB, SliceAssociation.MIN_COLOC);
+            }
+            int width = header.width, height = header.height;
+            float[] prob = new float[width * height];
+            float[] dist = new float[prob.length * header.nRays];
+            ArrayImg<FloatType, FloatArray> probImg = ArrayImgs.floats(prob, width, height);
+            ArrayImg<FloatType, FloatArray> distImg = ArrayImgs.floats(dist, width, height, header.nRays);
+            for (int t = 0; t < header.nFrames; t++) {
+                reader.readFrame(prob, dist);
+                // Settings sharing the same prob threshold share their candidates
+                IntStream.range(0, probThresholds.length).parallel().forEach(p -> {
+                    Candidates polygons = new Candidates(probImg, distImg, probThresholds[p], StarDist2D.EXCLUDE_BOUNDARY, null);
+                    for (int o = 0; o < nbOverlaps; o++) {
+                        int s = p * nbOverlaps + o;
+                        polygons.nms(overlapThresholds[o]);
+                        if (areaFilter)
+                            polygons.filterWinners(header.minArea, header.maxArea);
+                        if (header.polygonAssociation) {
+                            polygonAssociations[s].add(polygons);
+                        } else {
+                            associations[s].add(new ImagePlus("labels", labelSlice(polygons, width, height, labelIds[s])));
+                            labelIds[s] = (labelIds[s] + polygons.getWinner().size()) % MAX_LABEL_ID;
+                        }
+                    }
+                });
+            }
+        }
+
+        // Labels are brought back to full resolution one setting at a time to bound memory
+        Calibration cal = new Calibration();
+        cal.pixelWidth = cal.pixelHeight = header.pixelWidth;
+        cal.pixelDepth = header.pixelDepth;
+        cal.setUnit("microns");
+        double[][] volumes = new double[nbSettings][];
+        for (int s = 0; s < nbSettings; s++) {
+            ImagePlus labels = header.polygonAssociation
+                    ? polygonAssociations[s].rasterize(header.fullWidth, header.fullHeight, (double) header.fullWidth / header.width,
+                                                       (double) header.fullHeight / header.height)
+                    : associations[s].getStack();
+            Objects3DIntPopulation pop = tools.buildPopulation(labels, header.fullWidth, header.fullHeight, cal, minCellVol, maxCellVol);
+            List<Object3DInt> cells = pop.getObjects3DInt();
+            volumes[s] = new double[cells.size()];
+            for (int i = 0; i < cells.size(); i++)
+                volumes[s][i] = new MeasureVolume(cells.get(i)).getVolumeUnit();
+            associations[s] = null;
+            polygonAssociations[s] = null;
+        }
+        return(volumes);
+    }
+
+
+    /**
+     * Draw NMS winners in a 16-bit plane, highest scores drawn last, as StarDist label images
+     */
+    private ShortProcessor labelSlice(Candidates polygons, int width, int height, int labelId) {
+        ShortProcessor ip = new ShortProcessor(width, height);
+        List<Integer> winner = polygons.getWinner();
+        for (int i = winner.size()-1; i >= 0; i--) {
+            PolygonRoi polyRoi = polygons.getPolygonRoi(winner.get(i));
+            ip.setColor(1 + ((labelId + i) % MAX_LABEL_ID));
+            ip.fill(polyRoi);
+        }
+        return(ip);
+    }
+
+
+    /**
+     * Sweep all prediction files and write cells count and volume distribution of each setting, per image and for all images
+     */
+    public void run(List<File> files, String outFile) throws IOException {
+        int nbSettings = probThresholds.length * overlapThresholds.length;
+        ArrayList<ArrayList<Double>> allVolumes = new ArrayList<>();
+        for (int s = 0; s < nbSettings; s++)
+            allVolumes.add(new ArrayList<>());
+        try (BufferedWriter results = new BufferedWriter(new FileWriter(outFile, false))) {
+            results.write("Image name\tProb thresh\tOverlap thresh\tNb cells\tMean vol (µm3)\tMin vol (µm3)\tP10 vol (µm3)"
+                          + "\tP25 vol (µm3)\tMedian vol (µm3)\tP75 vol (µm3)\tP90 vol (µm3)\tMax vol (µm3)\n");
+            for (File file: files) {
+                String name = file.getName().substring(0, file.getName().length() - PredictionStore.EXT.length());
+                tools.print("--- SWEEPING THRESHOLDS OF " + name + " ------");
+                double[][] volumes = sweep(file);
+                for (int s = 0; s < nbSettings; s++) {
+                    for (double v: volumes[s])
+                        allVolumes.get(s).add(v);
+                    writeRow(results, name, s, volumes[s]);
+                }
+                results.flush();
+            }
+            for (int s = 0; s < nbSettings; s++) {
+                double[] volumes = allVolumes.get(s).stream().mapToDouble(Double::doubleValue).toArray();
+                writeRow(results, "All images", s, volumes);
+            }
+        }
+    }
+
+
+    private void writeRow(BufferedWriter results, String name, int setting, double[] volumes) throws IOException {
+        double probThresh = probThresholds[setting / overlapThresholds.length];
+        double overlapThresh = overlapThresholds[setting % overlapThresholds.length];
+        double[] sorted = volumes.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(Double.NaN);
+        results.write(name+"\t"+probThresh+"\t"+overlapThresh+"\t"+sorted.length+"\t"+mean+"\t"+quantile(sorted, 0)+"\t"+quantile(sorted, 0.1)
+                      +"\t"+quantile(sorted, 0.25)+"\t"+quantile(sorted, 0.5)+"\t"+quantile(sorted, 0.75)+"\t"+quantile(sorted, 0.9)+"\t"+quantile(sorted, 1)+"\n");
+    }
+
+
+    /**
+     * Quantile of sorted values with linear interpolation
+     */
+    private double quantile(double[] sorted, double q) {
+        if (sorted.length == 0)
+            return(Double.NaN);
+        double pos = q * (sorted.length - 1);
+        int i = (int) Math.floor(pos);
+        int j = Math.min(i + 1, sorted.length - 1);
+        return(sorted[i] + (pos - i) * (sorted[j] - sorted[i]));
+    }
+}
@@ -0,0 +1,59 @@
+package Sox9_PV_CFos_Tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * XY region of a large image analyzed on its own: a core of the tile grid plus a margin overlapping the neighbour tiles
+ * A cell is kept by the tile whose core contains its centroid, so that cells on tile borders are counted once,
+ * from the tile where they are whole as long as the margin is larger than cells
+ * @author ORION-CIRB
+ */
+public class Tile {
+
+    public final int index;
+    public final int x, y, width, height; // region read, margins included
+    private final int coreX0, coreY0, coreX1, coreY1;
+
+
+    private Tile(int index, int coreX0, int coreY0, int coreX1, int coreY1, int margin, int imgWidth, int imgHeight) {
+        this.index = index;
+        this.coreX0 = coreX0;
+        this.coreY0 = coreY0;
+        this.coreX1 = coreX1;
+        this.coreY1 = coreY1;
+        x = Math.max(0, coreX0 - margin);
+        y = Math.max(0, coreY0 - margin);
+        width = Math.min(imgWidth, coreX1 + margin) - x;
+        height = Math.min(imgHeight, coreY1 + margin) - y;
+    }
+
+
+    /**
+     * Tiles covering image with cores of size x size pixels, row by row
+     */
+    public static List<Tile> grid(int imgWidth, int imgHeight, int size, int margin) {
+        ArrayList<Tile> tiles = new ArrayList<>();
+        for (int y0 = 0; y0 < imgHeight; y0 += size) {
+            for (int x0 = 0; x0 < imgWidth; x0 += size)
+                tiles.add(new Tile(tiles.size(), x0, y0, Math.min(imgWidth, x0 + size), Math.min(imgHeight, y0 + size), margin, imgWidth, imgHeight));
+        }
+        return(tiles);
+    }
+
+
+    /**
+     * Check if a point given in tile coordinates is in the core of the tile
+     */
+    public boolean owns(double tileX, double tileY) {
+        double imgX = x + tileX, imgY = y + tileY;
+        return(imgX >= coreX0 && imgX < coreX1 && imgY >= coreY0 && imgY < coreY1);
+    }
+
+
+    @Override
+    public String toString() {
+        return("tile " + index + " (" + x + "," + y + " " + width + "x" + height + ")");
+    }
+}
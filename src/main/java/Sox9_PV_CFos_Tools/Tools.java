@@ -1,30 +1,50 @@
 package Sox9_PV_CFos_Tools;
 
+import Sox9_PV_CFos.StardistOrion.PercentileNormalizer;
+import Sox9_PV_CFos.StardistOrion.PredictionStore;
 import Sox9_PV_CFos.StardistOrion.StarDist2D;
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.io.FileSaver;
 import ij.measure.Calibration;
 import ij.plugin.RGBStackMerge;
 import ij.plugin.ZProjector;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 import java.awt.Color;
 import java.awt.Font;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ShortBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import javax.swing.ImageIcon;
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
+import loci.common.DataTools;
 import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
 import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+import loci.formats.out.TiffWriter;
 import loci.plugins.util.ImageProcessorReader;
+import mcib3d.geom2.Object3DInt;
+import mcib3d.geom2.Object3DPlane;
 import mcib3d.geom2.Objects3DIntPopulation;
 import mcib3d.geom2.Objects3DIntPopulationComputation;
 import mcib3d.geom2.measurements.MeasureVolume;
+import mcib3d.geom2.VoxelInt;
 import mcib3d.image3d.ImageHandler;
+import mcib3d.image3d.ImageShort;
+import ome.units.UNITS;
+import ome.units.quantity.Length;
 import org.apache.commons.io.FilenameUtils;
 import org.scijava.util.ArrayUtils;
 
@@ -34,33 +54,103 @@ import org.scijava.util.ArrayUtils;
  */
 public class Tools {
     
-    public final ImageIcon icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
+    private ImageIcon icon = null; // loaded with first dialog, not needed in headless mode
     private final String helpUrl = "https://github.com/orion-cirb/Sox9_PV_CFos.git";
     
     String[] chNames = {"Sox9", "CFos", "PV"};
     public Calibration cal = new Calibration();
+    public boolean calibOverride = false;
     public double pixVol;
+    public int nbWorkers = 2; // images or series analyzed in parallel
+    public double memoryFraction = 0.75; // fraction of max heap shared by series analyzed in parallel
+    public boolean resume = false; // continue last run, skipping images already analyzed
+    public boolean useLabelCache = false; // reuse detections of previous runs with same input and parameters
+    public double labelCacheMaxGB = 20;
+    public LabelCache labelCache = null;
+    public boolean savePredictions = false; // keep CNN outputs to sweep thresholds afterwards
+    public String predictionsDir = null;
+    public int shardIndex = 0; // part of the images analyzed by this run, among shardCount parts
+    public int shardCount = 1;
+    public boolean watch = false; // keep analyzing new images written in the folder
+    public double watchStableSeconds = 10; // an image is complete when its size did not change for this time
+    public double watchIdleMinutes = 0; // stop watching after this time without new image, 0 for never
+    public StageListener stageListener = null; // notified of each analysis stage, e.g. for throughput measures
+    public boolean recordStages = false; // write time, CPU and allocations of each stage in results folder
+    public boolean exposeMetrics = false; // live progress and throughput as JMX MBean
+    
+    // Result overlays, saved in background by overlayWriters threads
+    public static final String OVERLAY_COMPOSITE = "composite";
+    public static final String OVERLAY_DEFLATE = "deflate";
+    public static final String OVERLAY_LZW = "lzw";
+    public static final String OVERLAY_LABELS = "labels";
+    public static final String OVERLAY_NONE = "none";
+    public static final String[] OVERLAY_FORMATS = {OVERLAY_COMPOSITE, OVERLAY_DEFLATE, OVERLAY_LZW, OVERLAY_LABELS, OVERLAY_NONE};
+    private final String[] overlayFormatNames = {"Composite TIFF", "Compressed composite (deflate)", "Compressed composite (LZW)",
+                                                 "Labels only (16-bit, deflate)", "None"};
+    public String overlayFormat = OVERLAY_COMPOSITE;
+    public int overlayWriters = 1;
+    public int overlayQueueSize = 2; // images waiting for a writer before workers wait
+    public boolean saveZarr = false; // labels of each image in a chunked OME-Zarr store
+    public boolean zarrPredictions = false; // also StarDist probability maps in the OME-Zarr store
+    public boolean saveQc = false; // small PNG of each image with cells outlines, all shown in qc/index.html
+    public double qcScale = 0.25; // size of QC thumbnails relative to images
+    public boolean prefilterArea = false; // drop 2D detections whose area cannot be a cell section, before 3D association
+    public double prefilterAreaTolerance = 0.25; // keep areas from this fraction of the smallest cell section to the largest section divided by it
+    public int tileSize = 0; // analyze images larger than this in XY tiles of this size in pixels, 0 for whole images
+    public int tileMargin = 0; // overlap of tiles in pixels, at least the diameter of the largest cell
+    public boolean polygonAssociation = false; // link StarDist polygons across slices, rasterize labels once at image size
+    public boolean saveCellStore = false; // cells also in columnar cells.store, indexed by image, channel and label
+    public int metricsPort = 0; // Prometheus text endpoint on localhost, 0 for none
+    
+    // Detection stages reported to stageListener, after StarDist2D steps
+    public static final String STAGE_POPULATION = "population";
+    public static final String STAGE_FILTERING = "filtering";
      
     // NeuN and CFos detection
     public File stardistModelsPath = new File(IJ.getDirectory("imagej")+File.separator+"models");
     public String stardistModel = "StandardFluo.zip"; 
+    public static final double STARDIST_DOWNSCALE = 0.5; // images are downscaled for StarDist
     public final double stardistPercentileBottom = 0.2;
     public final double stardistPercentileTop = 99.8;
-    public final double stardistOverlapThresh = 0.2;
-    public final double stardistProbThreshSox9 = 0.75;
-    public final double stardistProbThreshPv = 0.7;
+    public boolean stardistNormalizeJointly = false; // normalize whole stack instead of slice by slice
+    private final Object stardistLock = new Object(); // network predictions run one at a time
+    public StarDist2D.Predictor stardistPredictor = null; // replaces the network if set, e.g. to test without model
+    public double stardistOverlapThresh = 0.2;
+    public double stardistProbThreshSox9 = 0.75;
+    public double stardistProbThreshPv = 0.7;
     public double minVolSox9 = 150;
     public double maxVolSox9 = 1500;
     public double minVolPv = 500;
     public double maxVolPv = 3000;
     
+    public int planeCacheSize = 8; // planes kept in memory per channel
+    public int maxOpenReaders = 4; // Bio-Formats readers kept open between images
+    public boolean useMappedTiff = true; // memory-map uncompressed TIFF files instead of decoding them with Bio-Formats
+    
+    // Storage of channels planes and drawn labels: heap (cached planes only), direct buffers or memory-mapped temporary files
+    public static final String STORAGE_HEAP = "heap";
+    public static final String STORAGE_DIRECT = "direct";
+    public static final String STORAGE_MAPPED = "mapped";
+    public static final String[] PLANE_STORAGES = {STORAGE_HEAP, STORAGE_DIRECT, STORAGE_MAPPED};
+    public String planeStorage = STORAGE_HEAP;
+    
+    
+    
+    /**
+     * Plugin icon shown in dialogs
+     */
+    public ImageIcon getIcon() {
+        if (icon == null)
+            icon = new ImageIcon(this.getClass().getResource("/Orion_icon.png"));
+        return(icon);
+    }
     
     
     /**
      * Display a message in the ImageJ console and status bar
      */
     public void print(String log) {
-        System.out.println(log);
+        StarDist2D.console().println(log);
         IJ.showStatus(log);
     }
     
@@ -145,7 +235,7 @@ public class Tools {
         File inDir = new File(imagesFolder);
         String[] files = inDir.list();
         if (files == null) {
-            System.out.println("No image found in " + imagesFolder);
+            StarDist2D.console().println("No image found in " + imagesFolder);
             return null;
         }
         ArrayList<String> images = new ArrayList();
@@ -160,23 +250,110 @@ public class Tools {
     }
     
     
+    /**
+     * Find most recent results folder of a previous run with a manifest, null if none
+     */
+    public String findLastResults(String imagesFolder) {
+        return(findLastResults(imagesFolder, ""));
+    }
+    
+    
+    /**
+     * Find most recent results folder with a manifest whose name ends with suffix, null if none
+     */
+    public String findLastResults(String imagesFolder, String suffix) {
+        String[] dirs = new File(imagesFolder).list((dir, name) -> name.startsWith("Results_") && name.endsWith(suffix) && new File(dir, name).isDirectory());
+        if (dirs == null)
+            return(null);
+        Arrays.sort(dirs);
+        for (int i = dirs.length-1; i >= 0; i--) {
+            String dir = imagesFolder + File.separator + dirs[i] + File.separator;
+            if (BatchManifest.exists(dir))
+                return(dir);
+        }
+        return(null);
+    }
+    
+    
     /**
      * Find image calibration
      */
     public Calibration findImageCalib(IMetadata meta) {
-        // read image calibration
-        cal.pixelWidth = meta.getPixelsPhysicalSizeX(0).value().doubleValue();
-        cal.pixelHeight = cal.pixelWidth;
-        if (meta.getPixelsPhysicalSizeZ(0) != null)
-            cal.pixelDepth = meta.getPixelsPhysicalSizeZ(0).value().doubleValue();
-        else
-            cal.pixelDepth = 1;
-        cal.setUnit("microns");
-        System.out.println("XY calibration = " + cal.pixelWidth + ", Z calibration = " + cal.pixelDepth);
+        cal = readImageCalib(meta, 0);
+        return(cal);
+    }
+    
+    
+    /**
+     * Find calibration of the first series of an image, metadata of the file are only read once
+     */
+    public Calibration findImageCalib(ReaderCache.Entry entry) {
+        cal = getImageCalib(entry, 0);
+        calibOverride = false;
         return(cal);
     }
     
     
+    /**
+     * Calibration to use for a series: its own calibration, or the dialog one if it was changed by the user
+     */
+    public Calibration getImageCalib(ReaderCache.Entry entry, int series) {
+        if (calibOverride)
+            return(cal.copy());
+        synchronized (entry) {
+            Calibration imgCal = entry.cals.get(series);
+            if (imgCal == null) {
+                imgCal = readImageCalib(entry.meta, series);
+                entry.cals.put(series, imgCal);
+            }
+            return(imgCal.copy());
+        }
+    }
+    
+    
+    /**
+     * Read calibration of a series in metadata
+     */
+    private Calibration readImageCalib(IMetadata meta, int series) {
+        Calibration imgCal = new Calibration();
+        imgCal.pixelWidth = meta.getPixelsPhysicalSizeX(series).value().doubleValue();
+        imgCal.pixelHeight = imgCal.pixelWidth;
+        if (meta.getPixelsPhysicalSizeZ(series) != null)
+            imgCal.pixelDepth = meta.getPixelsPhysicalSizeZ(series).value().doubleValue();
+        else
+            imgCal.pixelDepth = 1;
+        imgCal.setUnit("microns");
+        StarDist2D.console().println("XY calibration = " + imgCal.pixelWidth + ", Z calibration = " + imgCal.pixelDepth);
+        return(imgCal);
+    }
+    
+    
+    /**
+     * Find channels name of the first series, metadata of the file are only read once
+     */
+    public String[] findChannels(ReaderCache.Entry entry) throws DependencyException, ServiceException, FormatException, IOException {
+        return(findChannels(entry, 0));
+    }
+    
+    
+    /**
+     * Find channels name of a series, metadata of the file are only read once
+     */
+    public String[] findChannels(ReaderCache.Entry entry, int series) throws DependencyException, ServiceException, FormatException, IOException {
+        synchronized (entry) {
+            String[] channels = entry.channels.get(series);
+            if (channels == null) {
+                synchronized (entry.reader) {
+                    entry.reader.setSeries(series);
+                    channels = findChannels(entry.file, entry.meta, entry.reader, series);
+                }
+                entry.channels.put(series, channels);
+            }
+            return(channels.clone());
+        }
+    }
+    
+    
     /**
      * Find channels name
      * @throws loci.common.services.DependencyException
@@ -185,36 +362,44 @@ public class Tools {
      * @throws java.io.IOException
      */
     public String[] findChannels(String imageName, IMetadata meta, ImageProcessorReader reader) throws DependencyException, ServiceException, FormatException, IOException {
+        return(findChannels(imageName, meta, reader, 0));
+    }
+    
+    
+    /**
+     * Find channels name of a series, reader must be set to this series
+     */
+    public String[] findChannels(String imageName, IMetadata meta, ImageProcessorReader reader, int series) throws DependencyException, ServiceException, FormatException, IOException {
         int chs = reader.getSizeC();
         String[] channels = new String[chs];
         String imageExt =  FilenameUtils.getExtension(imageName);
         switch (imageExt) {
             case "nd" :
                 for (int n = 0; n < chs; n++) 
-                    channels[n] = (meta.getChannelName(0, n).toString().equals("")) ? Integer.toString(n) : meta.getChannelName(0, n).toString();
+                    channels[n] = (meta.getChannelName(series, n).toString().equals("")) ? Integer.toString(n) : meta.getChannelName(series, n).toString();
                 break;
             case "nd2" :
                 for (int n = 0; n < chs; n++) 
-                    channels[n] = (meta.getChannelName(0, n).toString().equals("")) ? Integer.toString(n) : meta.getChannelName(0, n).toString();
+                    channels[n] = (meta.getChannelName(series, n).toString().equals("")) ? Integer.toString(n) : meta.getChannelName(series, n).toString();
                 break;
             case "lif" :
                 for (int n = 0; n < chs; n++) 
-                    if (meta.getChannelID(0, n) == null || meta.getChannelName(0, n) == null)
+                    if (meta.getChannelID(series, n) == null || meta.getChannelName(series, n) == null)
                         channels[n] = Integer.toString(n);
                     else 
-                        channels[n] = meta.getChannelName(0, n).toString();
+                        channels[n] = meta.getChannelName(series, n).toString();
                 break;
             case "czi" :
                 for (int n = 0; n < chs; n++) 
-                    channels[n] = (meta.getChannelFluor(0, n).toString().equals("")) ? Integer.toString(n) : meta.getChannelFluor(0, n).toString();
+                    channels[n] = (meta.getChannelFluor(series, n).toString().equals("")) ? Integer.toString(n) : meta.getChannelFluor(series, n).toString();
                 break;
             case "ics" :
                 for (int n = 0; n < chs; n++) 
-                    channels[n] = meta.getChannelEmissionWavelength(0, n).value().toString();
+                    channels[n] = meta.getChannelEmissionWavelength(series, n).value().toString();
                 break;    
             case "ics2" :
                 for (int n = 0; n < chs; n++) 
-                    channels[n] = meta.getChannelEmissionWavelength(0, n).value().toString();
+                    channels[n] = meta.getChannelEmissionWavelength(series, n).value().toString();
                 break; 
             default :
                 for (int n = 0; n < chs; n++)
@@ -230,7 +415,7 @@ public class Tools {
     public String[] dialog(String imagesDir, String[] channels) {
         GenericDialogPlus gd = new GenericDialogPlus("Parameters");
         gd.setInsets​(0, 40, 0);
-        gd.addImage(icon);
+        gd.addImage(getIcon());
         
         gd.addMessage("Channels", Font.getFont("Monospace"), Color.blue);
         int index = 0;
@@ -242,16 +427,53 @@ public class Tools {
         gd.addMessage("Image calibration", Font.getFont("Monospace"), Color.blue);
         gd.addNumericField("XY calibration (µm): ", cal.pixelHeight, 3);
         gd.addNumericField("Z calibration (µm): ", cal.pixelDepth, 3);
+        
+        gd.addMessage("Batch", Font.getFont("Monospace"), Color.blue);
+        gd.addNumericField("Images analyzed in parallel: ", nbWorkers, 0);
+        gd.addNumericField("Tile size for large images (pixels, 0 = none): ", tileSize, 0);
+        gd.addChoice("Result overlays: ", overlayFormatNames, overlayFormatNames[Arrays.asList(OVERLAY_FORMATS).indexOf(overlayFormat)]);
+        gd.addCheckbox("Resume last run", resume);
+        gd.addCheckbox("Reuse cached detections", useLabelCache);
+        gd.addCheckbox("Drop 2D detections of impossible area", prefilterArea);
+        gd.addCheckbox("Associate slices from polygons", polygonAssociation);
+        gd.addCheckbox("Save predictions for threshold sweep", savePredictions);
+        gd.addCheckbox("Save labels as OME-Zarr", saveZarr);
+        gd.addCheckbox("Save QC thumbnails", saveQc);
+        gd.addCheckbox("Save cells in columnar store", saveCellStore);
+        gd.addCheckbox("Watch folder for new images", watch);
+        gd.addCheckbox("Record stage timings", recordStages);
+        gd.addCheckbox("Expose live metrics (JMX)", exposeMetrics);
         gd.addHelp(helpUrl);
         gd.showDialog();
         
         String[] chChoices = new String[chNames.length];
         for (int n = 0; n < chChoices.length; n++) 
             chChoices[n] = gd.getNextChoice();
+        overlayFormat = OVERLAY_FORMATS[gd.getNextChoiceIndex()];
         
-        cal.pixelHeight = cal.pixelWidth = gd.getNextNumber();
-        cal.pixelDepth = gd.getNextNumber();
+        double pixelWidth = gd.getNextNumber();
+        double pixelDepth = gd.getNextNumber();
+        // Calibration typed by the user applies to all series, otherwise each series uses its own
+        calibOverride = (Math.abs(pixelWidth - cal.pixelWidth) > 5e-4 || Math.abs(pixelDepth - cal.pixelDepth) > 5e-4);
+        cal.pixelHeight = cal.pixelWidth = pixelWidth;
+        cal.pixelDepth = pixelDepth;
         pixVol = cal.pixelHeight*cal.pixelWidth*cal.pixelDepth;
+        nbWorkers = Math.max(1, (int) gd.getNextNumber());
+        tileSize = Math.max(0, (int) gd.getNextNumber());
+        resume = gd.getNextBoolean();
+        useLabelCache = gd.getNextBoolean();
+        prefilterArea = gd.getNextBoolean();
+        polygonAssociation = gd.getNextBoolean();
+        savePredictions = gd.getNextBoolean();
+        saveZarr = gd.getNextBoolean();
+        saveQc = gd.getNextBoolean();
+        saveCellStore = gd.getNextBoolean();
+        watch = gd.getNextBoolean();
+        recordStages = gd.getNextBoolean();
+        exposeMetrics = gd.getNextBoolean();
+        // images already analyzed when watching was stopped are skipped at restart
+        if (watch)
+            resume = true;
         
         if (gd.wasCanceled())
             chChoices = null;
@@ -259,10 +481,111 @@ public class Tools {
     }
     
     
+    /**
+     * Memory-map reader image if it is an uncompressed 16-bit single-series TIFF
+     * Return null if image must be read with Bio-Formats
+     */
+    public MappedTiff openMappedTiff(String imageName, ImageProcessorReader reader) {
+        String ext = FilenameUtils.getExtension(imageName);
+        if (!useMappedTiff || !(ext.equals("tif") || ext.equals("tiff")))
+            return(null);
+        synchronized (reader) {
+            if (reader.getSeriesCount() != 1 || reader.getRGBChannelCount() != 1 || reader.getSizeT() != 1)
+                return(null);
+            try {
+                MappedTiff tiff = MappedTiff.open(new File(imageName));
+                if (tiff == null)
+                    return(null);
+                if (tiff.getPlaneCount() != reader.getImageCount() || tiff.getWidth() != reader.getSizeX() || tiff.getHeight() != reader.getSizeY()) {
+                    tiff.close();
+                    return(null);
+                }
+                StarDist2D.console().println("Uncompressed TIFF, reading memory-mapped planes");
+                return(tiff);
+            } catch (IOException ex) {
+                StarDist2D.console().println("Cannot memory-map " + imageName + ", reading it with Bio-Formats: " + ex.getMessage());
+                return(null);
+            }
+        }
+    }
+    
+    
+    /**
+     * Open a channel of a reader series as a virtual stack
+     * Planes are only decoded when needed, or mapped from the file if tiff is not null
+     * Planes are read as unsigned 16-bit values, other than 8 or 16-bit integer channels are rejected
+     */
+    public ImagePlus openChannel(ImageProcessorReader reader, MappedTiff tiff, int series, int channel, String title, Calibration imgCal) {
+        ImagePlus img;
+        synchronized (reader) {
+            reader.setSeries(series);
+            int pixelType = reader.getPixelType();
+            if (pixelType != FormatTools.UINT8 && pixelType != FormatTools.UINT16)
+                throw new IllegalArgumentException(title + " is " + FormatTools.getPixelTypeString(pixelType)
+                                                   + ", only 8 or 16-bit unsigned channels can be analyzed");
+            if (tiff != null)
+                img = new ImagePlus(title, new MappedChannelStack(tiff, reader, channel));
+            else
+                img = new ImagePlus(title, new LazyChannelStack(reader, series, channel, planeCacheSize));
+        }
+        img.setCalibration(imgCal);
+        return(img);
+    }
+    
+    
+    /**
+     * Check if planes of channels and labels are kept out of the heap
+     */
+    public boolean planesOffHeap() {
+        return(!planeStorage.equals(STORAGE_HEAP));
+    }
+    
+    
+    /**
+     * Copy planes of a channel opened with openChannel out of the heap if planesOffHeap, closing the channel
+     * Channels of memory-mapped TIFF files are already out of the heap and returned as they are
+     */
+    public ImagePlus storeOffHeap(ImagePlus img) throws IOException {
+        if (!planesOffHeap() || img.getStack() instanceof MappedChannelStack || img.getStack() instanceof OffHeapStack)
+            return(img);
+        ImagePlus imgOffHeap = new ImagePlus(img.getTitle(), OffHeapStack.copyOf(planesOf(img), planeStorage.equals(STORAGE_MAPPED)));
+        imgOffHeap.setCalibration(img.getCalibration());
+        closeImage(img);
+        return(imgOffHeap);
+    }
+    
+    
+    /**
+     * Give plane access to an image, without copy for channels opened with openChannel or stored off heap
+     */
+    public ChannelPlanes planesOf(ImagePlus img) {
+        if (img.getStack() instanceof ChannelPlanes)
+            return((ChannelPlanes) img.getStack());
+        ImageStack stack = img.getStack();
+        return new ChannelPlanes() {
+            public int getWidth() { return(stack.getWidth()); }
+            public int getHeight() { return(stack.getHeight()); }
+            public int getDepth() { return(stack.getSize()); }
+            public ShortBuffer getPlane(int z) {
+                ImageProcessor ip = stack.getProcessor(z+1);
+                if (ip.getBitDepth() > 16)
+                    throw new IllegalArgumentException(img.getTitle() + " is " + ip.getBitDepth() + "-bit, only 8 or 16-bit images can be analyzed");
+                if (!(ip.getPixels() instanceof short[]))
+                    ip = ip.convertToShortProcessor(false);
+                return(ShortBuffer.wrap((short[]) ip.getPixels()).asReadOnlyBuffer());
+            }
+        };
+    }
+    
+    
     /**
      * Flush and close an image
      */
     public void closeImage(ImagePlus img) {
+        if (img.getStack() instanceof LazyChannelStack)
+            ((LazyChannelStack) img.getStack()).clearCache();
+        if (img.getStack() instanceof OffHeapStack)
+            ((OffHeapStack) img.getStack()).close();
         img.flush();
         img.close();
     }
@@ -273,14 +596,161 @@ public class Tools {
      * Z projection over min intensity + read median intensity
      */
     public double findBackground(ImagePlus img) {
-      ImagePlus imgProj = doZProjection(img, ZProjector.MIN_METHOD);
-      double bg = imgProj.getProcessor().getStatistics().median;
-      System.out.println("Background (median of the min projection) = " + bg);
-      closeImage(imgProj);
+      return(findBackground(img, isTiled(img)));
+    }
+    
+    
+    /**
+     * @param byBands project bands of rows, for images too large for a whole plane in memory
+     */
+    public double findBackground(ImagePlus img, boolean byBands) {
+      ChannelPlanes planes = planesOf(img);
+      if (byBands)
+          return(findBackgroundByBands(planes));
+      short[] minProj = new short[planes.getWidth()*planes.getHeight()];
+      Arrays.fill(minProj, (short) 0xffff);
+      for (int z = 0; z < planes.getDepth(); z++) {
+          ShortBuffer plane = planes.getPlane(z);
+          for (int i = 0; i < minProj.length; i++) {
+              int v = plane.get(i) & 0xffff;
+              if (v < (minProj[i] & 0xffff))
+                  minProj[i] = (short) v;
+          }
+      }
+      double bg = new ShortProcessor(planes.getWidth(), planes.getHeight(), minProj, null).getStatistics().median;
+      StarDist2D.console().println("Background (median of the min projection) = " + bg);
       return(bg);
     }
     
     
+    /**
+     * Same as findBackground, projecting bands of rows into a histogram so that a whole plane is never in memory
+     */
+    private double findBackgroundByBands(ChannelPlanes planes) {
+      int width = planes.getWidth(), height = planes.getHeight();
+      int bandHeight = Math.max(1, Math.min(height, (1 << 22) / width)); // 4M pixels per band
+      long[] histogram = new long[65536];
+      short[] minProj = new short[width * bandHeight];
+      for (int y = 0; y < height; y += bandHeight) {
+          int rows = Math.min(bandHeight, height - y);
+          Arrays.fill(minProj, (short) 0xffff);
+          for (int z = 0; z < planes.getDepth(); z++) {
+              short[] band = planes.getRegion(z, 0, y, width, rows);
+              for (int i = 0; i < band.length; i++) {
+                  if ((band[i] & 0xffff) < (minProj[i] & 0xffff))
+                      minProj[i] = band[i];
+              }
+          }
+          for (int i = 0; i < width * rows; i++)
+              histogram[minProj[i] & 0xffff]++;
+      }
+      double half = (double) width * height / 2;
+      long sum = 0;
+      int median = 0;
+      while (median < histogram.length - 1 && (sum += histogram[median]) < half)
+          median++;
+      StarDist2D.console().println("Background (median of the min projection) = " + median);
+      return(median);
+    }
+    
+    
+    /**
+     * StarDist normalization bounds {low, high} of each plane of a channel: percentiles of whole planes, or of the whole stack
+     * if stardistNormalizeJointly, read by bands of rows
+     * Given to every tile of a tiled image, so that a cell is detected the same way whatever the size and position of its tile
+     * Percentiles are those of full-size planes, not of the nearest-neighbour downscaled StarDist input, which only differ by sampling
+     */
+    public double[][] normalizationBounds(ImagePlus img) {
+      ChannelPlanes planes = planesOf(img);
+      int width = planes.getWidth(), height = planes.getHeight(), depth = planes.getDepth();
+      int bandHeight = Math.max(1, Math.min(height, (1 << 22) / width)); // 4M pixels per band
+      PercentileNormalizer normalizer = new PercentileNormalizer(stardistPercentileBottom, stardistPercentileTop, stardistNormalizeJointly);
+      double[][] bounds = new double[depth][];
+      long[] histogram = new long[65536];
+      for (int z = 0; z < depth; z++) {
+          if (!stardistNormalizeJointly)
+              Arrays.fill(histogram, 0);
+          for (int y = 0; y < height; y += bandHeight) {
+              for (short v: planes.getRegion(z, 0, y, width, Math.min(bandHeight, height - y)))
+                  histogram[v & 0xffff]++;
+          }
+          if (!stardistNormalizeJointly)
+              bounds[z] = normalizer.bounds(histogram, (long) width * height);
+      }
+      if (stardistNormalizeJointly)
+          Arrays.fill(bounds, normalizer.bounds(histogram, (long) width * height * depth));
+      return(bounds);
+    }
+    
+    
+    /**
+     * Check if image is analyzed in tiles
+     */
+    public boolean isTiled(ImagePlus img) {
+        return(isTiled(img.getWidth(), img.getHeight(), tileSize));
+    }
+    
+    
+    public boolean isTiled(int width, int height, int size) {
+        return(size > 0 && (width > size || height > size));
+    }
+    
+    
+    /**
+     * Overlap of tiles in pixels: diameter of the largest cell plus StarDist excluded border, or tileMargin if larger
+     * Cells touching tile edges are dropped, a smaller margin would drop cells owned by the tile core
+     */
+    public int tileMargin(double pixelWidth) {
+        double maxVol = Math.max(maxVolSox9, maxVolPv);
+        double diameter = 2 * Math.cbrt(3 * maxVol / (4 * Math.PI));
+        return(Math.max(tileMargin, (int) Math.ceil(diameter / pixelWidth) + 8));
+    }
+    
+    
+    /**
+     * Copy tile region of all planes of a channel, out of the heap if planesOffHeap
+     */
+    public ImagePlus openRegion(ImagePlus img, Tile tile, String title) throws IOException {
+        ChannelPlanes planes = planesOf(img);
+        ImageStack stack;
+        if (planesOffHeap()) {
+            OffHeapStack offHeap = OffHeapStack.allocate(tile.width, tile.height, planes.getDepth(), planeStorage.equals(STORAGE_MAPPED));
+            for (int z = 0; z < planes.getDepth(); z++)
+                offHeap.getWritablePlane(z).put(planes.getRegion(z, tile.x, tile.y, tile.width, tile.height));
+            stack = offHeap;
+        } else {
+            stack = new ImageStack(tile.width, tile.height);
+            for (int z = 0; z < planes.getDepth(); z++)
+                stack.addSlice(new ShortProcessor(tile.width, tile.height, planes.getRegion(z, tile.x, tile.y, tile.width, tile.height), null));
+        }
+        ImagePlus imgTile = new ImagePlus(title, stack);
+        imgTile.setCalibration(img.getCalibration());
+        return(imgTile);
+    }
+    
+    
+    /**
+     * Remove cells whose centroid is out of tile core and label the others from firstLabel
+     */
+    public void keepTileCells(Objects3DIntPopulation pop, Tile tile, int firstLabel) {
+        pop.getObjects3DInt().removeIf(cell -> {
+            double sumX = 0, sumY = 0;
+            long n = 0;
+            for (Object3DPlane plane: cell.getObject3DPlanes()) {
+                for (VoxelInt v: plane.getVoxels()) {
+                    sumX += v.getX();
+                    sumY += v.getY();
+                    n++;
+                }
+            }
+            return(n == 0 || !tile.owns(sumX / n, sumY / n));
+        });
+        int label = firstLabel;
+        for (Object3DInt cell: pop.getObjects3DInt())
+            cell.setLabel(label++);
+    }
+    
+    
     /**
      * Do Z projection
      */
@@ -300,37 +770,202 @@ public class Tools {
      * Label detections in 3D
      */
    public Objects3DIntPopulation stardistDetection(ImagePlus img, double stardistProbThresh, double minCellVol, double maxCellVol) throws IOException{
+       return(stardistDetection(img, stardistProbThresh, minCellVol, maxCellVol, null, null, null));
+   }
+   
+   
+   /**
+    * Detect cells of a tile, normalized with bounds of the whole image given by normalizationBounds
+    */
+   public Objects3DIntPopulation stardistDetection(ImagePlus img, double stardistProbThresh, double minCellVol, double maxCellVol, double[][] normBounds) throws IOException{
+       return(stardistDetection(img, stardistProbThresh, minCellVol, maxCellVol, null, null, normBounds));
+   }
+   
+   
+   /**
+    * Detect cells with StarDist, and save probability maps in zarr store as predictions/<channel> if zarrPredictions
+    */
+   public Objects3DIntPopulation stardistDetection(ImagePlus img, double stardistProbThresh, double minCellVol, double maxCellVol, ZarrStore zarr, String channel) throws IOException{
+       return(stardistDetection(img, stardistProbThresh, minCellVol, maxCellVol, zarr, channel, null));
+   }
+   
+   
+   /**
+    * @param normBounds normalization bounds {low, high} of each plane, percentiles of img if null
+    */
+   private Objects3DIntPopulation stardistDetection(ImagePlus img, double stardistProbThresh, double minCellVol, double maxCellVol, ZarrStore zarr, String channel,
+                                                    double[][] normBounds) throws IOException{
+       // Load labels of a previous run with same input and parameters, unless predictions must be saved
+       String cacheKey = null;
+       if (labelCache != null) {
+           String params = detectionParams(img, stardistProbThresh, minCellVol, maxCellVol) + ((normBounds != null) ? "|" + Arrays.deepToString(normBounds) : "");
+           cacheKey = labelCache.key(planesOf(img), params);
+           boolean savesPredictions = predictionsDir != null || (zarr != null && zarrPredictions);
+           short[][] labels = !savesPredictions ? labelCache.load(cacheKey, img.getWidth(), img.getHeight(), img.getNSlices()) : null;
+           if (labels != null) {
+               Objects3DIntPopulation pop = labelsToPopulation(labels, img);
+               StarDist2D.console().println(pop.getNbObjects() + " detections loaded from cache");
+               return(pop);
+           }
+       }
+       
        // Downscale image by 2
-       ImagePlus imgIn = img.resize((int)(img.getWidth()*0.5), (int)(img.getHeight()*0.5), 1, "none");
+       ImagePlus imgIn = img.resize((int)(img.getWidth()*STARDIST_DOWNSCALE), (int)(img.getHeight()*STARDIST_DOWNSCALE), 1, "none");
        
        // StarDist
        File starDistModelFile = new File(stardistModelsPath+File.separator+stardistModel);
-       StarDist2D star = new StarDist2D(new Object(), starDistModelFile);
-       star.loadInput(imgIn);
+       StarDist2D star = new StarDist2D(stardistLock, starDistModelFile);
        star.setParams(stardistPercentileBottom, stardistPercentileTop, stardistProbThresh, stardistOverlapThresh, "Label Image");
+       star.setNormalizeJointly(stardistNormalizeJointly);
+       star.setNormalizationBounds(normBounds);
+       star.setPredictor(stardistPredictor);
+       if (stageListener != null)
+           star.setStepListener(new StarDist2D.StepListener() {
+               @Override
+               public void stepStarted(String step) {
+                   stageListener.stageStarted(null, null, step);
+               }
+               @Override
+               public void stepEnded(String step, int count) {
+                   stageListener.stageEnded(null, null, step, count);
+               }
+           });
+       if (zarr != null && zarrPredictions) {
+           Calibration imgCal = img.getCalibration();
+           double[] scale = {imgCal.pixelDepth, imgCal.pixelHeight * img.getHeight() / imgIn.getHeight(), imgCal.pixelWidth * img.getWidth() / imgIn.getWidth()};
+           star.setProbabilitySink(new StarDist2D.ProbabilitySink() {
+               private ZarrStore.Array predictions = null;
+               @Override
+               public void writeFrame(int frame, int nFrames, float[] prob, int width, int height) throws IOException {
+                   if (predictions == null)
+                       predictions = zarr.createPredictions(channel, nFrames, height, width, scale);
+                   predictions.writePlane(frame, prob);
+               }
+           });
+       }
+       if (prefilterArea) {
+           Calibration imgCal = img.getCalibration();
+           double pixelArea = imgCal.pixelWidth * img.getWidth() / imgIn.getWidth() * imgCal.pixelHeight * img.getHeight() / imgIn.getHeight();
+           star.setAreaFilter(prefilterAreaTolerance * sectionArea(minCellVol) / pixelArea, sectionArea(maxCellVol) / prefilterAreaTolerance / pixelArea);
+       }
+       if (polygonAssociation)
+           star.setPolygonAssociation(img.getWidth(), img.getHeight());
+       star.loadInput(imgIn);
+       if (predictionsDir != null)
+           star.setPredictionFile(new File(predictionsDir + img.getTitle() + PredictionStore.EXT), img.getWidth(), img.getHeight(),
+                                  img.getCalibration().pixelWidth, img.getCalibration().pixelDepth);
        star.run();
+       if (prefilterArea)
+           StarDist2D.console().println(star.getNbDroppedByArea() + " 2D detections dropped by area prefilter");
        
        // Label detections in 3D
        ImagePlus imgLabels = star.associateLabels();
-       imgLabels = imgLabels.resize(img.getWidth(), img.getHeight(), "none");
-       imgLabels.setCalibration(cal); 
+       Objects3DIntPopulation pop = buildPopulation(imgLabels, img.getWidth(), img.getHeight(), img.getCalibration(), minCellVol, maxCellVol);
+       
+       closeImage(imgIn);
+       if (cacheKey != null && pop.getNbObjects() <= 65535)
+           labelCache.store(cacheKey, populationToLabels(pop, img), img.getWidth(), img.getHeight());
+       return(pop);
+    }
+    
+    
+    /**
+     * Equatorial section area of a sphere of volume vol
+     */
+    private double sectionArea(double vol) {
+        double radius = Math.cbrt(3 * vol / (4 * Math.PI));
+        return(Math.PI * radius * radius);
+    }
+    
+    
+    /**
+     * Upscale associated StarDist labels to image size, unless they already have it, and filter objects on borders, in one plane only or with wrong volume
+     */
+    public Objects3DIntPopulation buildPopulation(ImagePlus imgLabelsSmall, int width, int height, Calibration imgCal, double minCellVol, double maxCellVol) {
+       stageStarted(STAGE_POPULATION);
+       ImagePlus imgLabels = imgLabelsSmall;
+       if (imgLabelsSmall.getWidth() != width || imgLabelsSmall.getHeight() != height) {
+           imgLabels = imgLabelsSmall.resize(width, height, "none");
+           closeImage(imgLabelsSmall);
+       }
+       imgLabels.setCalibration(imgCal);
        
        // Get objects as a population of objects
        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));  
-       System.out.println(pop.getNbObjects() + " Stardist detections");
+       StarDist2D.console().println(pop.getNbObjects() + " Stardist detections");
+       stageEnded(STAGE_POPULATION, pop.getNbObjects());
        
        // Filter objects
-       pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders​(ImageHandler.wrap(img), false);
+       stageStarted(STAGE_FILTERING);
+       pop = new Objects3DIntPopulationComputation(pop).getExcludeBorders​(ImageHandler.wrap(imgLabels), false);
        popFilterOneZ(pop);
-       popFilterSize(pop, minCellVol, maxCellVol);
-       System.out.println(pop.getNbObjects()+ " detections remaining after size filtering");
-       
-       closeImage(imgIn);
+       popFilterSize(pop, imgCal, minCellVol, maxCellVol);
+       StarDist2D.console().println(pop.getNbObjects()+ " detections remaining after size filtering");
+       stageEnded(STAGE_FILTERING, pop.getNbObjects());
        closeImage(imgLabels);
        return(pop);
     }
     
     
+    /**
+     * Report a stage of the work item analyzed by the calling thread
+     */
+    private void stageStarted(String stage) {
+        if (stageListener != null)
+            stageListener.stageStarted(null, null, stage);
+    }
+    
+    
+    private void stageEnded(String stage, int count) {
+        if (stageListener != null)
+            stageListener.stageEnded(null, null, stage, count);
+    }
+    
+    
+    /**
+     * Parameters that change the detections of stardistDetection, used in label cache key
+     */
+    private String detectionParams(ImagePlus img, double stardistProbThresh, double minCellVol, double maxCellVol) {
+        Calibration imgCal = img.getCalibration();
+        return(stardistModel + "|" + stardistPercentileBottom + "|" + stardistPercentileTop + "|" + stardistNormalizeJointly
+               + "|" + stardistProbThresh + "|" + stardistOverlapThresh + "|" + minCellVol + "|" + maxCellVol
+               + "|" + imgCal.pixelWidth + "|" + imgCal.pixelDepth + (prefilterArea ? "|area" + prefilterAreaTolerance : "")
+               + (polygonAssociation ? "|polygons" : ""));
+    }
+    
+    
+    /**
+     * Draw population labels in 16-bit planes
+     */
+    private short[][] populationToLabels(Objects3DIntPopulation pop, ImagePlus img) {
+        ImageHandler imh = new ImageShort("labels", img.getWidth(), img.getHeight(), img.getNSlices());
+        pop.drawInImage(imh);
+        ImageStack stack = imh.getImagePlus().getStack();
+        short[][] labels = new short[stack.getSize()][];
+        for (int z = 0; z < labels.length; z++)
+            labels[z] = (short[]) stack.getPixels(z+1);
+        imh.closeImagePlus();
+        return(labels);
+    }
+    
+    
+    /**
+     * Build population from 16-bit label planes
+     */
+    private Objects3DIntPopulation labelsToPopulation(short[][] labels, ImagePlus img) {
+        ImageStack stack = new ImageStack(img.getWidth(), img.getHeight());
+        for (short[] plane: labels)
+            stack.addSlice(new ShortProcessor(img.getWidth(), img.getHeight(), plane, null));
+        ImagePlus imgLabels = new ImagePlus("labels", stack);
+        imgLabels.setCalibration(img.getCalibration());
+        Objects3DIntPopulation pop = new Objects3DIntPopulation(ImageHandler.wrap(imgLabels));
+        pop.setVoxelSizeXY(img.getCalibration().pixelWidth);
+        pop.setVoxelSizeZ(img.getCalibration().pixelDepth);
+        closeImage(imgLabels);
+        return(pop);
+    }
+    
+    
     /**
      * Remove objects in population with only one plan
      */
@@ -343,32 +978,202 @@ public class Tools {
     /**
      * Remove objects in population with size < min and size > max
      */
-    public void popFilterSize(Objects3DIntPopulation pop, double min, double max) {
-        pop.setVoxelSizeXY(cal.pixelWidth);
-        pop.setVoxelSizeZ(cal.pixelDepth);
+    public void popFilterSize(Objects3DIntPopulation pop, Calibration imgCal, double min, double max) {
+        pop.setVoxelSizeXY(imgCal.pixelWidth);
+        pop.setVoxelSizeZ(imgCal.pixelDepth);
         pop.getObjects3DInt().removeIf(p -> (new MeasureVolume(p).getVolumeUnit() < min) || (new MeasureVolume(p).getVolumeUnit() > max));
         pop.resetLabels();
     }
     
     
     /**
-     * Draw results
+     * Compute the sum of intensities of each cell of the population
+     * Image is read plane by plane, each plane only once
      */
-    public void drawResults(Objects3DIntPopulation pop, ImagePlus img, ImagePlus imgCfos, boolean red, String name) {
-        ImageHandler imh = ImageHandler.wrap(img).createSameDimensions();
-        pop.drawInImage(imh);
+    public double[] sumIntensities(Objects3DIntPopulation pop, ImagePlus img) {
+        List<Object3DInt> cells = pop.getObjects3DInt();
+        ArrayList<ArrayList<Object3DPlane>> planes = new ArrayList<>();
+        ArrayList<ArrayList<Integer>> owners = new ArrayList<>();
+        for (int z = 0; z < img.getNSlices(); z++) {
+            planes.add(new ArrayList<>());
+            owners.add(new ArrayList<>());
+        }
+        for (int i = 0; i < cells.size(); i++) {
+            for (Object3DPlane plane: cells.get(i).getObject3DPlanes()) {
+                int z = plane.getZPlane();
+                if (z >= 0 && z < planes.size()) {
+                    planes.get(z).add(plane);
+                    owners.get(z).add(i);
+                }
+            }
+        }
         
-        ImagePlus imgObjects;
-        if(red) 
-            imgObjects = new RGBStackMerge().mergeHyperstacks(new ImagePlus[]{imh.getImagePlus(), null, null, img, imgCfos}, true);
-        else 
-            imgObjects = new RGBStackMerge().mergeHyperstacks(new ImagePlus[]{null, imh.getImagePlus(), null, img, imgCfos}, true);
-        imgObjects.setCalibration(cal);
+        double[] sums = new double[cells.size()];
+        ChannelPlanes imgPlanes = planesOf(img);
+        int width = imgPlanes.getWidth();
+        for (int z = 0; z < planes.size(); z++) {
+            if (planes.get(z).isEmpty())
+                continue;
+            ShortBuffer plane = imgPlanes.getPlane(z);
+            for (int p = 0; p < planes.get(z).size(); p++) {
+                double sum = 0;
+                for (VoxelInt v: planes.get(z).get(p).getVoxels())
+                    sum += plane.get(v.getY()*width + v.getX()) & 0xffff;
+                sums[owners.get(z).get(p)] += sum;
+            }
+        }
+        return(sums);
+    }
+    
+    
+    /**
+     * Draw cells labels in a 16-bit stack with image calibration, out of the heap if planesOffHeap
+     */
+    public ImagePlus drawLabels(Objects3DIntPopulation pop, ImagePlus img) {
+        if (planesOffHeap())
+            return(drawLabelsOffHeap(pop, img));
+        ImageHandler imh = new ImageShort("objects", img.getWidth(), img.getHeight(), img.getNSlices());
+        pop.drawInImage(imh);
+        ImagePlus imgLabels = imh.getImagePlus();
+        imgLabels.setCalibration(img.getCalibration());
+        return(imgLabels);
+    }
+    
+    
+    /**
+     * Same as drawLabels, writing voxels of cells in off-heap planes (labels above 65535 wrap around as in ImageShort)
+     */
+    private ImagePlus drawLabelsOffHeap(Objects3DIntPopulation pop, ImagePlus img) {
+        OffHeapStack labels;
+        try {
+            labels = OffHeapStack.allocate(img.getWidth(), img.getHeight(), img.getNSlices(), planeStorage.equals(STORAGE_MAPPED));
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        int width = img.getWidth();
+        for (Object3DInt cell: pop.getObjects3DInt()) {
+            short label = (short) cell.getLabel();
+            for (Object3DPlane plane: cell.getObject3DPlanes()) {
+                int z = plane.getZPlane();
+                if (z < 0 || z >= labels.getDepth())
+                    continue;
+                ShortBuffer labelsPlane = labels.getWritablePlane(z);
+                for (VoxelInt v: plane.getVoxels())
+                    labelsPlane.put(v.getY()*width + v.getX(), label);
+            }
+        }
+        ImagePlus imgLabels = new ImagePlus("objects", labels);
+        imgLabels.setCalibration(img.getCalibration());
+        return(imgLabels);
+    }
+    
+    
+    /**
+     * Copy of a channel for saveOverlay, out of the heap if planesOffHeap, null if the overlay format does not show channels
+     * saveOverlay may run after the channel is closed, in another thread, the copy is closed with closeImage once saved
+     */
+    public ImagePlus overlayChannel(ImagePlus img) {
+        if (!overlayChannelsSaved())
+            return(null);
+        if (!planesOffHeap())
+            return(img.duplicate());
+        try {
+            ImagePlus imgCopy = new ImagePlus("DUP_" + img.getTitle(), OffHeapStack.copyOf(planesOf(img), planeStorage.equals(STORAGE_MAPPED)));
+            imgCopy.setCalibration(img.getCalibration());
+            return(imgCopy);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+    
+    
+    /**
+     * Check if overlays show channels, not only labels
+     */
+    public boolean overlayChannelsSaved() {
+        return(!overlayFormat.equals(OVERLAY_LABELS) && !overlayFormat.equals(OVERLAY_NONE));
+    }
+    
+    
+    /**
+     * File extension of overlays, null if they are not saved
+     */
+    public String overlayExtension() {
+        switch (overlayFormat) {
+            case OVERLAY_NONE :
+                return(null);
+            case OVERLAY_COMPOSITE :
+                return(".tif");
+            default :
+                return(".ome.tif");
+        }
+    }
+    
+    
+    /**
+     * Save labels in red or green with channel and CFos channel, or labels only, in overlayFormat
+     */
+    public void saveOverlay(ImagePlus imgLabels, ImagePlus img, ImagePlus imgCfos, boolean red, String name) throws FormatException, IOException {
+        Color labelsColor = red ? Color.red : Color.green;
+        switch (overlayFormat) {
+            case OVERLAY_NONE :
+                break;
+            case OVERLAY_LABELS :
+                saveCompressedTiff(new ImagePlus[]{imgLabels}, new Color[]{labelsColor}, TiffWriter.COMPRESSION_ZLIB, name);
+                break;
+            case OVERLAY_DEFLATE :
+                saveCompressedTiff(new ImagePlus[]{imgLabels, img, imgCfos}, new Color[]{labelsColor, Color.white, Color.cyan}, TiffWriter.COMPRESSION_ZLIB, name);
+                break;
+            case OVERLAY_LZW :
+                saveCompressedTiff(new ImagePlus[]{imgLabels, img, imgCfos}, new Color[]{labelsColor, Color.white, Color.cyan}, TiffWriter.COMPRESSION_LZW, name);
+                break;
+            default :
+                ImagePlus imgObjects;
+                if(red) 
+                    imgObjects = new RGBStackMerge().mergeHyperstacks(new ImagePlus[]{imgLabels, null, null, img, imgCfos}, true);
+                else 
+                    imgObjects = new RGBStackMerge().mergeHyperstacks(new ImagePlus[]{null, imgLabels, null, img, imgCfos}, true);
+                imgObjects.setCalibration(img.getCalibration());
                 
-        FileSaver ImgObjectsFile = new FileSaver(imgObjects);
-        ImgObjectsFile.saveAsTiff(name); 
+                FileSaver ImgObjectsFile = new FileSaver(imgObjects);
+                ImgObjectsFile.saveAsTiff(name); 
+                closeImage(imgObjects);
+        }
+        closeImage(imgLabels);
+    }
+    
+    
+    /**
+     * Save 16-bit stacks of same size as channels of a compressed OME-TIFF, with the calibration of the first one
+     */
+    private void saveCompressedTiff(ImagePlus[] imgs, Color[] colors, String compression, String name) throws FormatException, IOException {
+        int width = imgs[0].getWidth(), height = imgs[0].getHeight(), depth = imgs[0].getNSlices();
+        Calibration imgCal = imgs[0].getCalibration();
+        IMetadata meta = MetadataTools.createOMEXMLMetadata();
+        MetadataTools.populateMetadata(meta, 0, FilenameUtils.getName(name), false, "XYZCT", FormatTools.getPixelTypeString(FormatTools.UINT16),
+                                       width, height, depth, imgs.length, 1, 1);
+        meta.setPixelsPhysicalSizeX(new Length(imgCal.pixelWidth, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeY(new Length(imgCal.pixelHeight, UNITS.MICROMETER), 0);
+        meta.setPixelsPhysicalSizeZ(new Length(imgCal.pixelDepth, UNITS.MICROMETER), 0);
+        for (int c = 0; c < imgs.length; c++)
+            meta.setChannelColor(new ome.xml.model.primitives.Color(colors[c].getRed(), colors[c].getGreen(), colors[c].getBlue(), 255), 0, c);
         
-        imh.closeImagePlus();
+        // writer would append to a file of a previous run
+        new File(name).delete();
+        try (OMETiffWriter writer = new OMETiffWriter()) {
+            writer.setMetadataRetrieve(meta);
+            writer.setCompression(compression);
+            writer.setBigTiff(2L * width * height * depth * imgs.length > 4e9);
+            writer.setWriteSequentially(true);
+            writer.setId(name);
+            for (int c = 0; c < imgs.length; c++) {
+                for (int z = 0; z < depth; z++) {
+                    short[] pixels = (short[]) imgs[c].getStack().getProcessor(z+1).convertToShortProcessor(false).getPixels();
+                    writer.saveBytes(z + depth*c, DataTools.shortsToBytes(pixels, false));
+                }
+            }
+        }
     }
     
+    
 }
@@ -0,0 +1,184 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
+import org.apache.commons.io.FileUtils;
+
+
+/**
+ * OME-Zarr (v0.4, zarr v2) directory store of the detections of an image: 3D label stacks in labels/<channel>
+ * and StarDist probability maps in predictions/<channel>, zlib-compressed chunks of one plane by CHUNK x CHUNK pixels
+ * Chunks of a plane are compressed and written in parallel, as soon as the plane is available
+ * The store holds labels and predictions only: the image itself is not copied, its channels stay in the original file,
+ * so the root has no multiscales image and labels have no image-label source
+ * @author ORION-CIRB
+ */
+public class ZarrStore {
+
+    public static final String EXT = ".ome.zarr";
+    public static final int CHUNK = 256;
+    private static final int LEVEL = 1; // fast zlib compression, labels and probabilities compress well anyway
+
+    private final File root;
+
+    /**
+     * 3D array of 16-bit integers or 32-bit floats, written plane by plane
+     */
+    public static class Array {
+        private final File dir;
+        private final int depth, height, width;
+        private final boolean floats;
+
+        Array(File dir, int depth, int height, int width, boolean floats) {
+            this.dir = dir;
+            this.depth = depth;
+            this.height = height;
+            this.width = width;
+            this.floats = floats;
+        }
+
+        public void writePlane(int z, short[] pixels) throws IOException {
+            writeChunks(z, ShortBuffer.wrap(pixels), null);
+        }
+
+        public void writePlane(int z, float[] pixels) throws IOException {
+            writeChunks(z, null, pixels);
+        }
+
+        /**
+         * Write all planes of a channel, in parallel
+         */
+        public void writeStack(ChannelPlanes planes) throws IOException {
+            try {
+                IntStream.range(0, depth).parallel().forEach(z -> {
+                    try {
+                        writeChunks(z, planes.getPlane(z), null);
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+
+        private void writeChunks(int z, ShortBuffer shorts, float[] floatPixels) throws IOException {
+            if (z < 0 || z >= depth)
+                throw new IOException("Plane " + z + " out of " + depth);
+            int nx = (width + CHUNK - 1) / CHUNK, ny = (height + CHUNK - 1) / CHUNK;
+            try {
+                IntStream.range(0, nx * ny).parallel().forEach(c -> {
+                    int cx = c % nx, cy = c / nx;
+                    // edge chunks are full-size, padded with 0
+                    ByteBuffer chunk = ByteBuffer.allocate(CHUNK * CHUNK * (floats ? 4 : 2)).order(ByteOrder.LITTLE_ENDIAN);
+                    for (int y = cy * CHUNK; y < Math.min(height, (cy+1) * CHUNK); y++) {
+                        int pos = (y - cy * CHUNK) * CHUNK * (floats ? 4 : 2);
+                        for (int x = cx * CHUNK; x < Math.min(width, (cx+1) * CHUNK); x++) {
+                            if (floats)
+                                chunk.putFloat(pos, floatPixels[x + width*y]);
+                            else
+                                chunk.putShort(pos, shorts.get(x + width*y));
+                            pos += floats ? 4 : 2;
+                        }
+                    }
+                    try {
+                        writeChunk(new File(dir, z + "/" + cy + "/" + cx), chunk.array());
+                    } catch (IOException ex) {
+                        throw new UncheckedIOException(ex);
+                    }
+                });
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+
+
+    /**
+     * Create store, replacing the one of a previous run
+     * @param labels names of the label stacks, listed in labels group
+     */
+    public ZarrStore(File root, List<String> labels) throws IOException {
+        this.root = root;
+        if (root.exists())
+            FileUtils.deleteDirectory(root);
+        writeJson(new File(root, ".zgroup"), "{\"zarr_format\": 2}");
+        writeJson(new File(root, ".zattrs"), "{}");
+        writeJson(new File(root, "labels/.zgroup"), "{\"zarr_format\": 2}");
+        StringBuilder names = new StringBuilder();
+        for (String label: labels)
+            names.append((names.length() > 0) ? ", " : "").append("\"").append(label).append("\"");
+        writeJson(new File(root, "labels/.zattrs"), "{\"labels\": [" + names + "]}");
+        writeJson(new File(root, "predictions/.zgroup"), "{\"zarr_format\": 2}");
+    }
+
+
+    /**
+     * 16-bit label stack labels/<name>
+     * @param scale z, y, x size of a voxel in µm
+     */
+    public Array createLabels(String name, int depth, int height, int width, double[] scale) throws IOException {
+        return(createArray("labels/" + name, name, depth, height, width, scale, false,
+                           ", \"image-label\": {\"version\": \"0.4\"}"));
+    }
+
+
+    /**
+     * 32-bit float probability stack predictions/<name>, at StarDist resolution
+     */
+    public Array createPredictions(String name, int depth, int height, int width, double[] scale) throws IOException {
+        return(createArray("predictions/" + name, name, depth, height, width, scale, true, ""));
+    }
+
+
+    /**
+     * Multiscale group with one resolution level, array in its "0" folder
+     */
+    private Array createArray(String path, String name, int depth, int height, int width, double[] scale, boolean floats, String attrs) throws IOException {
+        File group = new File(root, path);
+        writeJson(new File(group, ".zgroup"), "{\"zarr_format\": 2}");
+        writeJson(new File(group, ".zattrs"), "{\"multiscales\": [{\"version\": \"0.4\", \"name\": \"" + name + "\", \"axes\": ["
+                + "{\"name\": \"z\", \"type\": \"space\", \"unit\": \"micrometer\"}, "
+                + "{\"name\": \"y\", \"type\": \"space\", \"unit\": \"micrometer\"}, "
+                + "{\"name\": \"x\", \"type\": \"space\", \"unit\": \"micrometer\"}], "
+                + "\"datasets\": [{\"path\": \"0\", \"coordinateTransformations\": [{\"type\": \"scale\", \"scale\": ["
+                + scale[0] + ", " + scale[1] + ", " + scale[2] + "]}]}]}]" + attrs + "}");
+        writeJson(new File(group, "0/.zarray"), "{\"zarr_format\": 2, \"shape\": [" + depth + ", " + height + ", " + width + "], "
+                + "\"chunks\": [1, " + CHUNK + ", " + CHUNK + "], \"dtype\": \"" + (floats ? "<f4" : "<u2") + "\", "
+                + "\"compressor\": {\"id\": \"zlib\", \"level\": " + LEVEL + "}, \"fill_value\": 0, \"order\": \"C\", "
+                + "\"filters\": null, \"dimension_separator\": \"/\"}");
+        return(new Array(new File(group, "0"), depth, height, width, floats));
+    }
+
+
+    private static void writeJson(File file, String json) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+    private static void writeChunk(File file, byte[] bytes) throws IOException {
+        file.getParentFile().mkdirs();
+        Deflater deflater = new Deflater(LEVEL);
+        try (OutputStream out = new FileOutputStream(file)) {
+            deflater.setInput(bytes);
+            deflater.finish();
+            byte[] buffer = new byte[65536];
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer));
+        } finally {
+            deflater.end();
+        }
+    }
+}
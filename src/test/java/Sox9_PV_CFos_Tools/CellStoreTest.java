@@ -0,0 +1,122 @@
+package Sox9_PV_CFos_Tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Cells store written, read back, and recovered after runs killed while writing
+ * @author ORION-CIRB
+ */
+public class CellStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    private static CellStore.Batch batch(String image, String channel, int... labels) {
+        CellStore.Batch batch = new CellStore.Batch(image, 0, channel, 1000, 10, 20, 1);
+        for (int label: labels)
+            batch.add(label, label, label + 0.1, label + 0.2, label + 0.3, label + 0.4);
+        return(batch);
+    }
+
+
+    @Test
+    public void cellsAreSortedByLabelAndReadBack() throws IOException {
+        File dir = folder.getRoot();
+        try (CellStore store = new CellStore(dir, true)) {
+            store.append(batch("img1", "Sox9", 5, 2, 9));
+            store.append(batch("img1", "PV", 3));
+        }
+        try (CellStore store = new CellStore(dir, false)) {
+            List<CellStore.Block> blocks = store.find("img1", "Sox9");
+            assertEquals(1, blocks.size());
+            CellStore.Block block = blocks.get(0);
+            assertEquals(3, block.rows);
+            assertEquals(2, block.minLabel);
+            assertEquals(9, block.maxLabel);
+            assertArrayEquals(new int[]{2, 5, 9}, store.labels(block));
+            assertArrayEquals(new double[]{2.1, 5.1, 9.1}, store.column(block, "meanInt"), 0);
+            assertArrayEquals(new double[]{5, 5.1, 5.2, 5.3, 5.4}, store.cell(block, 5), 0);
+            assertNull(store.cell(block, 4));
+            assertEquals(2, store.find(null, null).size());
+            assertEquals(1, store.find(null, "PV").size());
+        }
+    }
+
+
+    @Test
+    public void truncatedBlockIsDropped() throws IOException {
+        File dir = folder.getRoot();
+        long firstEnd;
+        try (CellStore store = new CellStore(dir, true)) {
+            store.append(batch("img1", "Sox9", 1, 2));
+            firstEnd = new File(dir, CellStore.DATA_FILE).length();
+            store.append(batch("img2", "Sox9", 1, 2, 3));
+        }
+        // run killed while writing the second block
+        try (RandomAccessFile data = new RandomAccessFile(new File(dir, CellStore.DATA_FILE), "rw")) {
+            data.setLength(data.length() - 5);
+        }
+        try (CellStore store = new CellStore(dir, true)) {
+            assertEquals(1, store.find("img1", "Sox9").size());
+            assertTrue(store.find("img2", "Sox9").isEmpty());
+            assertEquals(firstEnd, new File(dir, CellStore.DATA_FILE).length());
+            store.append(batch("img2", "Sox9", 4));
+        }
+        try (CellStore store = new CellStore(dir, false)) {
+            assertArrayEquals(new int[]{4}, store.labels(store.find("img2", "Sox9").get(0)));
+            assertArrayEquals(new int[]{1, 2}, store.labels(store.find("img1", "Sox9").get(0)));
+        }
+    }
+
+
+    @Test
+    public void blockWithoutIndexLineIsDropped() throws IOException {
+        File dir = folder.getRoot();
+        long firstEnd;
+        try (CellStore store = new CellStore(dir, true)) {
+            store.append(batch("img1", "PV", 7));
+            firstEnd = new File(dir, CellStore.DATA_FILE).length();
+        }
+        // run killed after the block, before or while its index line was written
+        try (RandomAccessFile data = new RandomAccessFile(new File(dir, CellStore.DATA_FILE), "rw")) {
+            data.seek(data.length());
+            data.write(new byte[100]);
+        }
+        try (FileWriter index = new FileWriter(new File(dir, CellStore.INDEX_FILE), true)) {
+            index.write(firstEnd + "\t3\tPV");
+        }
+        try (CellStore store = new CellStore(dir, true)) {
+            assertEquals(1, store.find(null, null).size());
+            assertEquals(firstEnd, new File(dir, CellStore.DATA_FILE).length());
+        }
+    }
+
+
+    @Test
+    public void lastBlockOfImageAndChannelWins() throws IOException {
+        File dir = folder.getRoot();
+        try (CellStore store = new CellStore(dir, true)) {
+            store.append(batch("img1", "Sox9", 1));
+            store.append(batch("img1", "Sox9", 2, 3));
+        }
+        try (CellStore store = new CellStore(dir, false)) {
+            List<CellStore.Block> blocks = store.find("img1", "Sox9");
+            assertEquals(1, blocks.size());
+            assertArrayEquals(new int[]{2, 3}, store.labels(blocks.get(0)));
+        }
+    }
+}
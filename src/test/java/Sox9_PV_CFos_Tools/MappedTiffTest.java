@@ -0,0 +1,160 @@
+package Sox9_PV_CFos_Tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import loci.common.DataTools;
+import loci.formats.ImageReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * Planes and regions of MappedTiff against the values written, planes against Bio-Formats, for both byte orders, classic and BigTIFF,
+ * single and multi-strip planes, tiled planes, contiguous or not
+ * @author ORION-CIRB
+ */
+public class MappedTiffTest {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+    // x, y, width, height: whole plane, one row, one column, inner rectangles across strips and tiles, corner
+    private static final int[][] REGIONS = {{0, 0, WIDTH, HEIGHT}, {0, 11, WIDTH, 1}, {17, 0, 1, HEIGHT}, {3, 2, 20, 15},
+                                            {15, 7, 9, 3}, {WIDTH - 4, HEIGHT - 3, 4, 3}};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+
+    @Test
+    public void littleEndianSingleStrip() throws Exception {
+        check(ByteOrder.LITTLE_ENDIAN, false, HEIGHT, false);
+    }
+
+
+    @Test
+    public void bigEndianSingleStrip() throws Exception {
+        check(ByteOrder.BIG_ENDIAN, false, HEIGHT, false);
+    }
+
+
+    @Test
+    public void littleEndianMultiStrip() throws Exception {
+        check(ByteOrder.LITTLE_ENDIAN, false, 5, false);
+    }
+
+
+    @Test
+    public void bigEndianReversedStrips() throws Exception {
+        check(ByteOrder.BIG_ENDIAN, false, 4, true);
+    }
+
+
+    @Test
+    public void bigTiffLittleEndian() throws Exception {
+        check(ByteOrder.LITTLE_ENDIAN, true, HEIGHT, false);
+    }
+
+
+    @Test
+    public void bigTiffBigEndianMultiStrip() throws Exception {
+        check(ByteOrder.BIG_ENDIAN, true, 6, false);
+    }
+
+
+    @Test
+    public void bigTiffReversedStrips() throws Exception {
+        check(ByteOrder.LITTLE_ENDIAN, true, 7, true);
+    }
+
+
+    @Test
+    public void littleEndianTiles() throws Exception {
+        checkTiled(ByteOrder.LITTLE_ENDIAN, false, 16, 16, false);
+    }
+
+
+    @Test
+    public void bigEndianReversedTiles() throws Exception {
+        checkTiled(ByteOrder.BIG_ENDIAN, false, 16, 16, true);
+    }
+
+
+    @Test
+    public void bigTiffTiles() throws Exception {
+        checkTiled(ByteOrder.BIG_ENDIAN, true, 32, 16, false);
+    }
+
+
+    @Test
+    public void bigTiffSingleTile() throws Exception {
+        checkTiled(ByteOrder.LITTLE_ENDIAN, true, 48, 32, false);
+    }
+
+
+    @Test
+    public void whiteIsZeroIsNotMapped() throws Exception {
+        short[][] planes = TestTiffs.randomPlanes(1, WIDTH, HEIGHT, 0);
+        File file = TestTiffs.write(folder.newFile("test.tif"), ByteOrder.LITTLE_ENDIAN, false, WIDTH, HEIGHT, 0, HEIGHT, false,
+                                    TestTiffs.WHITE_IS_ZERO, planes);
+        assertNull(MappedTiff.open(file));
+    }
+
+
+    private void check(ByteOrder order, boolean bigTiff, int rowsPerStrip, boolean reversedStrips) throws Exception {
+        short[][] planes = TestTiffs.randomPlanes(3, WIDTH, HEIGHT, rowsPerStrip);
+        check(TestTiffs.write(folder.newFile("test.tif"), order, bigTiff, WIDTH, HEIGHT, rowsPerStrip, reversedStrips, planes),
+              order, bigTiff, planes);
+    }
+
+
+    private void checkTiled(ByteOrder order, boolean bigTiff, int tileWidth, int tileHeight, boolean reversedTiles) throws Exception {
+        short[][] planes = TestTiffs.randomPlanes(3, WIDTH, HEIGHT, tileWidth * tileHeight);
+        check(TestTiffs.writeTiled(folder.newFile("test.tif"), order, bigTiff, WIDTH, HEIGHT, tileWidth, tileHeight, reversedTiles, planes),
+              order, bigTiff, planes);
+    }
+
+
+    private void check(File file, ByteOrder order, boolean bigTiff, short[][] planes) throws Exception {
+        try (MappedTiff tiff = MappedTiff.open(file); ImageReader reader = new ImageReader()) {
+            assertNotNull("TIFF not mapped", tiff);
+            assertEquals(bigTiff, tiff.isBigTiff());
+            assertEquals(order, tiff.getByteOrder());
+            assertEquals(WIDTH, tiff.getWidth());
+            assertEquals(HEIGHT, tiff.getHeight());
+            assertEquals(planes.length, tiff.getPlaneCount());
+            reader.setId(file.getPath());
+            assertEquals(planes.length, reader.getImageCount());
+            for (int n = 0; n < planes.length; n++) {
+                short[] mapped = toArray(tiff.getPlane(n));
+                assertArrayEquals("plane " + n, planes[n], mapped);
+                short[] bioFormats = (short[]) DataTools.makeDataArray(reader.openBytes(n), 2, false, reader.isLittleEndian());
+                assertArrayEquals("plane " + n + " read by Bio-Formats", bioFormats, mapped);
+                for (int[] r: REGIONS)
+                    assertArrayEquals("region " + r[0] + "," + r[1] + " " + r[2] + "x" + r[3] + " of plane " + n,
+                                      region(planes[n], r[0], r[1], r[2], r[3]), tiff.getRegion(n, r[0], r[1], r[2], r[3]));
+            }
+        }
+    }
+
+
+    private static short[] region(short[] plane, int x, int y, int w, int h) {
+        short[] region = new short[w * h];
+        for (int row = 0; row < h; row++)
+            System.arraycopy(plane, (y + row) * WIDTH + x, region, row * w, w);
+        return(region);
+    }
+
+
+    private static short[] toArray(ShortBuffer plane) {
+        short[] pixels = new short[plane.remaining()];
+        plane.get(pixels);
+        return(pixels);
+    }
+}
@@ -0,0 +1,103 @@
+package Sox9_PV_CFos_Tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Test;
+
+
+/**
+ * Quantiles of sketches against exact ones, and sketches written as text and parsed back
+ * @author ORION-CIRB
+ */
+public class QuantileSketchTest {
+
+    private static final double[] QUANTILES = {0, 0.01, 0.25, 0.5, 0.75, 0.99, 1};
+
+
+    /**
+     * Values of both signs over several decades, with zeros
+     */
+    private static double[] values(int n, long seed) {
+        Random random = new Random(seed);
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            if (i % 20 == 0)
+                values[i] = 0;
+            else
+                values[i] = ((i % 3 == 0) ? -1 : 1) * Math.exp(random.nextDouble() * 12 - 4);
+        }
+        return(values);
+    }
+
+
+    private static QuantileSketch sketch(double[] values) {
+        QuantileSketch sketch = new QuantileSketch();
+        for (double value: values)
+            sketch.add(value);
+        return(sketch);
+    }
+
+
+    private static void assertSameQuantiles(QuantileSketch expected, QuantileSketch actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        for (double q: QUANTILES)
+            assertEquals("quantile " + q, expected.quantile(q), actual.quantile(q), 0);
+    }
+
+
+    @Test
+    public void quantilesAreWithinAccuracy() {
+        double[] values = values(10000, 1);
+        QuantileSketch sketch = sketch(values);
+        Arrays.sort(values);
+        for (double q: QUANTILES) {
+            double exact = values[(int) Math.floor(q * (values.length - 1))];
+            assertEquals("quantile " + q, exact, sketch.quantile(q), Math.abs(exact) * QuantileSketch.ACCURACY);
+        }
+    }
+
+
+    @Test
+    public void textIsParsedBack() {
+        QuantileSketch sketch = sketch(values(1000, 2));
+        QuantileSketch parsed = QuantileSketch.parse(sketch.toString());
+        assertEquals(sketch.toString(), parsed.toString());
+        assertSameQuantiles(sketch, parsed);
+    }
+
+
+    @Test
+    public void signsAndZerosAreParsedBack() {
+        assertEquals("z0 p n", new QuantileSketch().toString());
+        QuantileSketch positives = sketch(new double[]{1, 2, 3});
+        assertSameQuantiles(positives, QuantileSketch.parse(positives.toString()));
+        QuantileSketch negatives = sketch(new double[]{-1, -2, -3});
+        assertSameQuantiles(negatives, QuantileSketch.parse(negatives.toString()));
+        QuantileSketch zeros = sketch(new double[]{0, 0});
+        assertSameQuantiles(zeros, QuantileSketch.parse(zeros.toString()));
+    }
+
+
+    @Test
+    public void emptySketchIsParsedBack() {
+        QuantileSketch parsed = QuantileSketch.parse(new QuantileSketch().toString());
+        assertEquals(0, parsed.getCount());
+        assertTrue(Double.isNaN(parsed.quantile(0.5)));
+    }
+
+
+    @Test
+    public void mergeEqualsAddingAllValues() {
+        double[] first = values(500, 3), second = values(700, 4);
+        QuantileSketch merged = sketch(first);
+        merged.merge(sketch(second));
+        QuantileSketch all = sketch(first);
+        for (double value: second)
+            all.add(value);
+        assertEquals(all.toString(), merged.toString());
+        assertSameQuantiles(all, merged);
+    }
+}
@@ -0,0 +1,188 @@
+package Sox9_PV_CFos_Tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Random;
+
+
+/**
+ * Small uncompressed 16-bit TIFF files written byte by byte, to test readers on layouts writers do not choose
+ * @author ORION-CIRB
+ */
+class TestTiffs {
+
+    private static final int SHORT = 3;
+    private static final int LONG = 4;
+    static final int WHITE_IS_ZERO = 0;
+    static final int BLACK_IS_ZERO = 1;
+
+    /**
+     * Planes of random unsigned 16-bit values, above 32767 included
+     */
+    static short[][] randomPlanes(int nPlanes, int width, int height, long seed) {
+        Random random = new Random(seed);
+        short[][] planes = new short[nPlanes][width * height];
+        for (short[] plane: planes)
+            for (int i = 0; i < plane.length; i++)
+                plane[i] = (short) random.nextInt(65536);
+        return(planes);
+    }
+
+
+    /**
+     * Write one IFD per plane, each plane in strips of rowsPerStrip rows
+     * @param reversedStrips write strips of each plane in reverse order, so that they are not contiguous
+     */
+    static File write(File file, ByteOrder order, boolean bigTiff, int width, int height, int rowsPerStrip, boolean reversedStrips,
+                      short[][] planes) throws IOException {
+        return(write(file, order, bigTiff, width, height, 0, rowsPerStrip, reversedStrips, BLACK_IS_ZERO, planes));
+    }
+
+
+    /**
+     * Write one IFD per plane, each plane in tiles of tileWidth*tileHeight pixels, edge tiles padded with 0
+     * @param reversedTiles write tiles of each plane in reverse order
+     */
+    static File writeTiled(File file, ByteOrder order, boolean bigTiff, int width, int height, int tileWidth, int tileHeight,
+                           boolean reversedTiles, short[][] planes) throws IOException {
+        return(write(file, order, bigTiff, width, height, tileWidth, tileHeight, reversedTiles, BLACK_IS_ZERO, planes));
+    }
+
+
+    /**
+     * Write one IFD per plane, in strips if tileWidth is 0, in tiles otherwise
+     * @param segmentHeight rows per strip or tile height
+     */
+    static File write(File file, ByteOrder order, boolean bigTiff, int width, int height, int tileWidth, int segmentHeight,
+                      boolean reversed, int photometric, short[][] planes) throws IOException {
+        boolean tiled = tileWidth > 0;
+        int segmentWidth = tiled ? tileWidth : width;
+        int segmentsX = (width + segmentWidth - 1) / segmentWidth;
+        int segmentsY = (height + segmentHeight - 1) / segmentHeight;
+        int nSegments = segmentsX * segmentsY;
+        int offsetSize = bigTiff ? 8 : 4;
+        int nEntries = tiled ? 10 : 9;
+        int ifdSize = (bigTiff ? 8 : 2) + nEntries * (bigTiff ? 20 : 12) + offsetSize;
+        long total = 16 + (long) planes.length * (2L * segmentsX * segmentWidth * segmentsY * segmentHeight
+                                                  + 2L * nSegments * offsetSize + ifdSize + 2);
+        ByteBuffer buf = ByteBuffer.allocate((int) total).order(order);
+
+        buf.put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M')).put((byte) (order == ByteOrder.LITTLE_ENDIAN ? 'I' : 'M'));
+        buf.putShort((short) (bigTiff ? 43 : 42));
+        int nextIfdPos;
+        if (bigTiff) {
+            buf.putShort((short) 8).putShort((short) 0);
+            nextIfdPos = buf.position();
+            buf.putLong(0);
+        } else {
+            nextIfdPos = buf.position();
+            buf.putInt(0);
+        }
+
+        for (short[] plane: planes) {
+            long[] offsets = new long[nSegments];
+            long[] counts = new long[nSegments];
+            for (int i = 0; i < nSegments; i++) {
+                int s = reversed ? nSegments - 1 - i : i;
+                int x0 = (s % segmentsX) * segmentWidth, y0 = (s / segmentsX) * segmentHeight;
+                // strips end at the last row, tiles are padded
+                int rows = tiled ? segmentHeight : Math.min(segmentHeight, height - y0);
+                offsets[s] = buf.position();
+                counts[s] = 2L * segmentWidth * rows;
+                for (int y = y0; y < y0 + rows; y++)
+                    for (int x = x0; x < x0 + segmentWidth; x++)
+                        buf.putShort((x < width && y < height) ? plane[y * width + x] : 0);
+            }
+            long offsetsPos = 0, countsPos = 0;
+            if (nSegments > 1) {
+                offsetsPos = buf.position();
+                putValues(buf, offsets, bigTiff);
+                countsPos = buf.position();
+                putValues(buf, counts, bigTiff);
+            }
+            if (buf.position() % 2 == 1)
+                buf.put((byte) 0);
+
+            // IFD, tags in increasing order
+            long ifdPos = buf.position();
+            if (bigTiff)
+                buf.putLong(nextIfdPos, ifdPos);
+            else
+                buf.putInt(nextIfdPos, (int) ifdPos);
+            if (bigTiff)
+                buf.putLong(nEntries);
+            else
+                buf.putShort((short) nEntries);
+            putEntry(buf, bigTiff, 256, LONG, width);
+            putEntry(buf, bigTiff, 257, LONG, height);
+            putEntry(buf, bigTiff, 258, SHORT, 16);
+            putEntry(buf, bigTiff, 259, SHORT, 1);
+            putEntry(buf, bigTiff, 262, SHORT, photometric);
+            if (!tiled)
+                putArrayEntry(buf, bigTiff, 273, nSegments, (nSegments > 1) ? offsetsPos : offsets[0]);
+            putEntry(buf, bigTiff, 277, SHORT, 1);
+            if (tiled) {
+                putEntry(buf, bigTiff, 322, LONG, tileWidth);
+                putEntry(buf, bigTiff, 323, LONG, segmentHeight);
+                putArrayEntry(buf, bigTiff, 324, nSegments, (nSegments > 1) ? offsetsPos : offsets[0]);
+                putArrayEntry(buf, bigTiff, 325, nSegments, (nSegments > 1) ? countsPos : counts[0]);
+            } else {
+                putEntry(buf, bigTiff, 278, LONG, segmentHeight);
+                putArrayEntry(buf, bigTiff, 279, nSegments, (nSegments > 1) ? countsPos : counts[0]);
+            }
+            nextIfdPos = buf.position();
+            if (bigTiff)
+                buf.putLong(0);
+            else
+                buf.putInt(0);
+        }
+        byte[] bytes = new byte[buf.position()];
+        buf.flip();
+        buf.get(bytes);
+        Files.write(file.toPath(), bytes);
+        return(file);
+    }
+
+
+    private static void putValues(ByteBuffer buf, long[] values, boolean bigTiff) {
+        for (long value: values) {
+            if (bigTiff)
+                buf.putLong(value);
+            else
+                buf.putInt((int) value);
+        }
+    }
+
+
+    /**
+     * Entry of one SHORT or LONG value, left-justified in the value field
+     */
+    private static void putEntry(ByteBuffer buf, boolean bigTiff, int tag, int type, long value) {
+        buf.putShort((short) tag).putShort((short) type);
+        if (bigTiff)
+            buf.putLong(1);
+        else
+            buf.putInt(1);
+        if (type == SHORT)
+            buf.putShort((short) value).putShort((short) 0);
+        else
+            buf.putInt((int) value);
+        if (bigTiff)
+            buf.putInt(0);
+    }
+
+
+    /**
+     * Entry of count offsets or byte counts (LONG, LONG8 in BigTIFF), value inline if count is 1, offset of values otherwise
+     */
+    private static void putArrayEntry(ByteBuffer buf, boolean bigTiff, int tag, int count, long valueOrOffset) {
+        buf.putShort((short) tag).putShort((short) (bigTiff ? 16 : 4));
+        if (bigTiff)
+            buf.putLong(count).putLong(valueOrOffset);
+        else
+            buf.putInt(count).putInt((int) valueOrOffset);
+    }
+}